@@ -0,0 +1,147 @@
+package com.davehub.dlooper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.davehub.dlooper.loop.BenchmarkLoops;
+
+/**
+ * Benchmarks loading and saving .dlf and .dlb files with a controller. The sound is decoded once and then served from the SampleCache,
+ * so this measures parsing and building the loop rather than decoding audio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DLooperBenchmark {
+	
+	/**
+	 * The number of patterns in the file
+	 */
+	@Param({"1", "16", "128", "1024"})
+	public int numPatterns;
+	/**
+	 * The length of the patterns
+	 */
+	@Param({"16", "256", "4096"})
+	public int patternLength;
+	/**
+	 * The controller files are loaded into
+	 */
+	private DLooper controller;
+	/**
+	 * The path of the .dlf file
+	 */
+	private String filePath;
+	/**
+	 * The path of the .dlb file holding the same loop
+	 */
+	private String binaryPath;
+	/**
+	 * The path .dlf files are saved to
+	 */
+	private String textSavePath;
+	/**
+	 * The path .dlb files are saved to
+	 */
+	private String binarySavePath;
+	
+	
+	// -----
+	// Setup
+	// -----
+	
+	
+	/**
+	 * Writes the .dlf file to load, then the same loop as a .dlb file
+	 * @throws Exception When the files can't be written or loaded
+	 */
+	@Setup
+	public void setup() throws Exception {
+		String soundPath = BenchmarkLoops.writeClick();
+		File file = File.createTempFile("dlooper-benchmark", ".dlf");
+		file.deleteOnExit();
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write(patternLength + "\n");
+			writer.write("120\n");
+			for (String steps: BenchmarkLoops.randomPatterns(numPatterns, patternLength)) {
+				writer.write(steps + " " + soundPath + "\n");
+			}
+		}
+		controller = new DLooper();
+		filePath = file.getPath();
+		File binary = File.createTempFile("dlooper-benchmark", ".dlb");
+		binary.deleteOnExit();
+		binaryPath = binary.getPath();
+		controller.loadFromFile(filePath);
+		controller.saveToFile(binaryPath);
+		File textSave = File.createTempFile("dlooper-benchmark-save", ".dlf");
+		textSave.deleteOnExit();
+		textSavePath = textSave.getPath();
+		File binarySave = File.createTempFile("dlooper-benchmark-save", ".dlb");
+		binarySave.deleteOnExit();
+		binarySavePath = binarySave.getPath();
+	}
+	
+	
+	// ----------
+	// Benchmarks
+	// ----------
+	
+	
+	/**
+	 * Loads the file into the controller
+	 * @return The number of patterns loaded
+	 * @throws Exception When the file can't be loaded
+	 */
+	@Benchmark
+	public int loadFromFile() throws Exception {
+		controller.loadFromFile(filePath);
+		return controller.getNumPatterns();
+	}
+	
+	/**
+	 * Loads the .dlb file into the controller
+	 * @return The number of patterns loaded
+	 * @throws Exception When the file can't be loaded
+	 */
+	@Benchmark
+	public int loadFromBinaryFile() throws Exception {
+		controller.loadFromFile(binaryPath);
+		return controller.getNumPatterns();
+	}
+	
+	/**
+	 * Saves the loaded loop as a .dlf file
+	 * @throws IOException When the file can't be written
+	 */
+	@Benchmark
+	public void saveToFile() throws IOException {
+		controller.saveToFile(textSavePath);
+	}
+	
+	/**
+	 * Saves the loaded loop as a .dlb file
+	 * @throws IOException When the file can't be written
+	 */
+	@Benchmark
+	public void saveToBinaryFile() throws IOException {
+		controller.saveToFile(binarySavePath);
+	}
+}
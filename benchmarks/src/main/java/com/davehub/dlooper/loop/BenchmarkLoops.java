@@ -0,0 +1,96 @@
+package com.davehub.dlooper.loop;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Builds the loops the benchmarks run against, using a generated click so no sample library or audio device is needed
+ */
+public class BenchmarkLoops {
+	
+	/**
+	 * The seed for the pattern steps, so every run benchmarks the same loops
+	 */
+	private static final long SEED = 42;
+	/**
+	 * The chance of each step being a beat
+	 */
+	private static final double DENSITY = 0.25;
+	/**
+	 * The length of the generated click in frames
+	 */
+	private static final int CLICK_FRAMES = 2205;
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Writes a short decaying click as a WAV file in the engine format
+	 * @return The path of the temporary WAV file, deleted when the JVM exits
+	 * @throws IOException When the file can't be written
+	 */
+	public static String writeClick() throws IOException {
+		byte[] pcm = new byte[CLICK_FRAMES * AudioEngine.OUTPUT_FORMAT.getFrameSize()];
+		for (int f = 0, b = 0; f < CLICK_FRAMES; f++) {
+			int value = (int) (Short.MAX_VALUE * Math.sin(f * 0.2) * (1.0 - (double) f / CLICK_FRAMES));
+			for (int c = 0; c < AudioEngine.CHANNELS; c++) {
+				pcm[b++] = (byte) value;
+				pcm[b++] = (byte) (value >> 8);
+			}
+		}
+		File file = File.createTempFile("dlooper-click", ".wav");
+		file.deleteOnExit();
+		AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), AudioEngine.OUTPUT_FORMAT, CLICK_FRAMES);
+		AudioSystem.write(in, AudioFileFormat.Type.WAVE, file);
+		return file.getPath();
+	}
+	
+	/**
+	 * Builds a loop of random patterns all playing the given sound
+	 * @param numPatterns The number of patterns
+	 * @param patternLength The length of the patterns
+	 * @param soundPath The path of the sound every pattern plays
+	 * @return The loop
+	 * @throws Exception When the sound can't be loaded
+	 */
+	public static Loop build(int numPatterns, int patternLength, String soundPath) throws Exception {
+		Loop loop = new Loop(120, patternLength);
+		ArrayList<Pattern> patterns = new ArrayList<Pattern>(numPatterns);
+		for (String steps: randomPatterns(numPatterns, patternLength)) {
+			Pattern pattern = new Pattern(new DrumSound(soundPath));
+			pattern.setPattern(steps);
+			patterns.add(pattern);
+		}
+		loop.addPatterns(patterns);
+		return loop;
+	}
+	
+	/**
+	 * Generates random pattern strings
+	 * @param numPatterns The number of patterns
+	 * @param patternLength The length of each pattern string
+	 * @return The pattern strings
+	 */
+	public static String[] randomPatterns(int numPatterns, int patternLength) {
+		Random random = new Random(SEED);
+		String[] patterns = new String[numPatterns];
+		char[] steps = new char[patternLength];
+		for (int i = 0; i < numPatterns; i++) {
+			for (int step = 0; step < patternLength; step++) {
+				steps[step] = random.nextDouble() < DENSITY ? 'x' : '-';
+			}
+			patterns[i] = new String(steps);
+		}
+		return patterns;
+	}
+}
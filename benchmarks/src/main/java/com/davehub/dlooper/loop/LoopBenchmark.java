@@ -0,0 +1,93 @@
+package com.davehub.dlooper.loop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the whole-loop operations, sounds are started in a Mixer rather than sent to an audio device
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopBenchmark {
+	
+	/**
+	 * The number of patterns in the loop
+	 */
+	@Param({"1", "16", "128", "1024"})
+	public int numPatterns;
+	/**
+	 * The length of the patterns
+	 */
+	@Param({"16", "256", "4096"})
+	public int patternLength;
+	/**
+	 * The loop being benchmarked
+	 */
+	private Loop loop;
+	/**
+	 * The mixer sounds are started in
+	 */
+	private Mixer mixer;
+	/**
+	 * The next step to play
+	 */
+	private int step;
+	
+	
+	// -----
+	// Setup
+	// -----
+	
+	
+	/**
+	 * Builds the loop and mixer
+	 * @throws Exception When the click can't be written or loaded
+	 */
+	@Setup
+	public void setup() throws Exception {
+		loop = BenchmarkLoops.build(numPatterns, patternLength, BenchmarkLoops.writeClick());
+		mixer = new Mixer(AudioEngine.BLOCK_FRAMES);
+		step = 0;
+	}
+	
+	
+	// ----------
+	// Benchmarks
+	// ----------
+	
+	
+	/**
+	 * Plays the next beat of the loop into the mixer, as the Sequencer does on the render thread
+	 * @return False if the step was out of range
+	 */
+	@Benchmark
+	public boolean playBeat() {
+		boolean played = loop.playBeat(step, mixer);
+		step = (step + 1) % patternLength;
+		return played;
+	}
+	
+	/**
+	 * Converts the loop to the text saved in .dlf files
+	 * @return The loop as text
+	 */
+	@Benchmark
+	public String toText() {
+		return loop.toString();
+	}
+}
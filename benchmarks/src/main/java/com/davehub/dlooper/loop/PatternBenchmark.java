@@ -0,0 +1,112 @@
+package com.davehub.dlooper.loop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per-pattern operations, sounds are started in a Mixer rather than sent to an audio device
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatternBenchmark {
+	
+	/**
+	 * The number of patterns in the loop
+	 */
+	@Param({"1", "16", "128", "1024"})
+	public int numPatterns;
+	/**
+	 * The length of the patterns
+	 */
+	@Param({"16", "256", "4096"})
+	public int patternLength;
+	/**
+	 * The loop the patterns belong to
+	 */
+	private Loop loop;
+	/**
+	 * The patterns of the loop
+	 */
+	private Pattern[] patterns;
+	/**
+	 * The mixer sounds are started in
+	 */
+	private Mixer mixer;
+	/**
+	 * The next step to play
+	 */
+	private int step;
+	/**
+	 * True when setLength should shorten the pattern next, false to restore it
+	 */
+	private boolean shorten;
+	
+	
+	// -----
+	// Setup
+	// -----
+	
+	
+	/**
+	 * Builds the loop and mixer
+	 * @throws Exception When the click can't be written or loaded
+	 */
+	@Setup
+	public void setup() throws Exception {
+		loop = BenchmarkLoops.build(numPatterns, patternLength, BenchmarkLoops.writeClick());
+		patterns = loop.getPatterns().toArray(new Pattern[0]);
+		mixer = new Mixer(AudioEngine.BLOCK_FRAMES);
+		step = 0;
+		shorten = true;
+	}
+	
+	
+	// ----------
+	// Benchmarks
+	// ----------
+	
+	
+	/**
+	 * Checks every pattern at the next step and starts the ones with a beat, the way beats were played before the trigger table
+	 * @return The number of sounds started
+	 */
+	@Benchmark
+	public int playPosition() {
+		int started = 0;
+		for (Pattern pattern: patterns) {
+			if (pattern.isStep(step)) {
+				mixer.start(pattern.getSound(), pattern);
+				started++;
+			}
+		}
+		step = (step + 1) % patternLength;
+		return started;
+	}
+	
+	/**
+	 * Alternately halves and restores the length of the first pattern, including recompiling the loop's trigger table
+	 * @return The new length
+	 */
+	@Benchmark
+	public int setLength() {
+		int length = shorten ? patternLength / 2 + 1 : patternLength;
+		patterns[0].setLength(length);
+		shorten = !shorten;
+		return length;
+	}
+}
@@ -2,9 +2,12 @@ package com.davehub.dlooper;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
+import com.davehub.dlooper.loop.Arrangement;
 import com.davehub.dlooper.loop.Loop;
 import com.davehub.dlooper.loop.Pattern;
+import com.davehub.dlooper.loop.TimingStats;
 
 /**
  * Interface for a Controller that user interfaces interact with in a View-Controller-Model design
@@ -18,22 +21,46 @@ public interface Controller {
 	 */
 	public void play();
 	/**
-	 * Stops playing the loop
+	 * Stops playing the loop or the arrangement
 	 */
 	public void stop();
+	/**
+	 * Starts the arrangement playing from its first section
+	 * @return False when the arrangement has no sections, in which case nothing is played
+	 */
+	public boolean playArrangement();
+	/**
+	 * Returns the arrangement of loops this controller plays as a song
+	 * @return The Arrangement instance
+	 */
+	public Arrangement getArrangement();
+	/**
+	 * Adds a section to the end of the arrangement
+	 * @param loop The loop to play, such as the current loop or one read from a file
+	 * @param repeats The number of times to play through the loop's pattern
+	 * @return False when repeats <= 0, in which case the section isn't added
+	 */
+	public boolean addSection(Loop loop, int repeats);
+	/**
+	 * Removes the section at the given index from the arrangement
+	 * @param index The index of the section
+	 * @return True if the section existed and was removed
+	 */
+	public boolean removeSection(int index);
 	/**
 	 * Sets the bpm to the given value
-	 * @param bpm The desired bpm value
+	 * @param bpm The desired bpm value, which can be fractional
 	 * @return False when bpm <= 0, in which case the bpm isnt changed
 	 */
-	public boolean setBpm(int bpm);
+	public boolean setBpm(double bpm);
 	/**
 	 * Get the BPM setting of the current loop
-	 * @return The BPM as an int
+	 * @return The BPM, which can be fractional
 	 */
-	public int getBpm();
+	public double getBpm();
 	/**
-	 * Set this controller to use the given loop
+	 * Set this controller to use the given loop.
+	 * If the current loop is playing, the new loop takes over at the end of its cycle without a gap.
 	 * @param loop The loop to use.
 	 */
 	public void setLoop(Loop loop);
@@ -48,6 +75,13 @@ public interface Controller {
 	 * @throws Exception 
 	 */
 	public void addPattern(String filePath) throws Exception;
+	/**
+	 * Starts adding a new pattern with the specified audio file, decoding it in the background.
+	 * Patterns are added in the order they were asked for, even when a later file decodes first.
+	 * @param filePath The path to the audio file
+	 * @return A future completed with the pattern once it is in the loop, or completed exceptionally when the file can't be read
+	 */
+	public CompletableFuture<Pattern> addPatternAsync(String filePath);
 	/**
 	 * Removes the pattern at the given index from the loop
 	 * @param index The index of the pattern, the number on the left when using 'view'
@@ -94,6 +128,36 @@ public interface Controller {
 	 * @return The pattern length as an int
 	 */
 	public int getPatternLength();
+	/**
+	 * Sets the number of steps in each beat of the loop, keeping the bpm as the tempo
+	 * @param stepsPerBeat The steps per beat, which must divide Loop.PPQN, such as 1, 2, 3, 4, 6 or 8
+	 * @return False when the steps per beat doesn't divide Loop.PPQN, in which case it is unchanged
+	 */
+	public boolean setStepsPerBeat(int stepsPerBeat);
+	/**
+	 * Gets the number of steps in each beat of the current loop
+	 * @return The steps per beat
+	 */
+	public int getStepsPerBeat();
+	/**
+	 * Sets the number of steps in each beat of the pattern at the given index, resizing it to fill the pattern length
+	 * @param index The index of the pattern within the loop
+	 * @param stepsPerBeat The steps per beat, which must divide Loop.PPQN, or Pattern.LOOP_STEPS_PER_BEAT to follow the loop
+	 * @return False when the steps per beat doesn't divide Loop.PPQN, in which case it is unchanged
+	 */
+	public boolean setPatternStepsPerBeat(int index, int stepsPerBeat);
+	/**
+	 * Sets the pattern at the given index to keep its own number of steps, playing against the pattern length
+	 * @param index The index of the pattern within the loop
+	 * @param length The number of steps, or Pattern.LOOP_LENGTH to be resized with the loop again
+	 * @return False when length < 0 or length > Loop.MAX_PATTERN_LENGTH, in which case it is unchanged
+	 */
+	public boolean setPatternOwnLength(int index, int length);
+	/**
+	 * Gets the number of times the pattern length is played before every pattern lines up again
+	 * @return The number of bars in the full cycle, 1 when no pattern keeps its own length
+	 */
+	public long getCycleBars();
 	/**
 	 * Sets the sound of the pattern at the given index, to the audio file specified by the file path
 	 * @param index The index of the pattern to change within the loop ArrayList
@@ -101,6 +165,14 @@ public interface Controller {
 	 * @throws Exception 
 	 */
 	public void setPatternSound(int index, String filePath) throws Exception;
+	/**
+	 * Starts changing the sound of the pattern at the given index, decoding it in the background.
+	 * The pattern keeps playing its old sound until the new one is ready.
+	 * @param index The index of the pattern to change within the loop ArrayList
+	 * @param filePath The path to the audio file
+	 * @return A future completed with the pattern once it plays the new sound, or completed exceptionally when the file can't be read
+	 */
+	public CompletableFuture<Pattern> setPatternSoundAsync(int index, String filePath);
 	/**
 	 * Returns the current repeat setting.
 	 */
@@ -110,6 +182,16 @@ public interface Controller {
 	 * @param repeat True if you want the loop to repeat.
 	 */
 	public void setRepeat(boolean repeat);
+	/**
+	 * Turns the recording of beat timing during playback on or off
+	 * @param record True to record timing, starting with empty stats
+	 */
+	public void setRecordTiming(boolean record);
+	/**
+	 * Returns the beat timing recorded during playback
+	 * @return The TimingStats of the current loop, or null if timing isn't being recorded
+	 */
+	public TimingStats getTimingStats();
 	/**
 	 * Save to a file of the given path. Will create a file.
 	 * @param filePath The path to the file to save to. 
@@ -118,10 +200,32 @@ public interface Controller {
 	 */
 	public void saveToFile(String filePath) throws IOException, Exception;
 	/**
-	 * Loads the loop from the given file.
+	 * Renders the loop to a WAV file without playing it, as fast as possible.
+	 * @param filePath The path of the WAV file to write. Will create a file.
+	 * @param bars The number of times to play through the pattern
+	 * @return False when bars <= 0, in which case nothing is written
+	 * @throws IOException
+	 */
+	public boolean renderToFile(String filePath, int bars) throws IOException;
+	/**
+	 * Renders the arrangement once through to a WAV file without playing it, as fast as possible.
+	 * @param filePath The path of the WAV file to write. Will create a file.
+	 * @return False when the arrangement has no sections, in which case nothing is written
+	 * @throws IOException
+	 */
+	public boolean renderArrangementToFile(String filePath) throws IOException;
+	/**
+	 * Loads the loop from the given file. If the current loop is playing, the loaded loop takes over at the end of its cycle.
 	 * @param filePath
 	 */
 	public void loadFromFile(String filePath) throws IOException, Exception;
+	/**
+	 * Starts loading the loop from the given file, decoding its sounds in parallel in the background.
+	 * The current loop is kept until every sound is ready, and if it's playing, the loaded loop takes over at the end of its cycle.
+	 * @param filePath The path of the file to load
+	 * @return A future completed with the loaded loop, or completed exceptionally when the file has errors or can't be read
+	 */
+	public CompletableFuture<Loop> loadFromFileAsync(String filePath);
 	/**
 	 * Returns pattern string for pattern at given index
 	 * @param index The index of the pattern to retrieve
@@ -141,5 +245,26 @@ public interface Controller {
 	 * @param value The value to set the volume to
 	 */
 	public void setPatternVolume(int index, double value);
+	/**
+	 * Sets how one step of the pattern at the given index is played
+	 * @param index The index of the pattern within the loop
+	 * @param step The index of the step within the pattern
+	 * @param velocity The velocity, from 0 to Pattern.MAX_VELOCITY
+	 * @param probability The chance of the step playing in percent, from 0 to Pattern.MAX_PROBABILITY
+	 * @param nudge How far the step is played early (negative) or late in ticks of Loop.PPQN per beat,
+	 * from -Pattern.MAX_NUDGE to Pattern.MAX_NUDGE
+	 * @return False when the step or any value is out of range, in which case nothing is changed
+	 */
+	public boolean setPatternStep(int index, int step, int velocity, int probability, int nudge);
+	/**
+	 * Registers a listener to be told about every change made through this controller
+	 * @param listener The listener to add
+	 */
+	public void addLoopListener(LoopListener listener);
+	/**
+	 * Stops a listener being told about changes
+	 * @param listener The listener to remove
+	 */
+	public void removeLoopListener(LoopListener listener);
 
 }
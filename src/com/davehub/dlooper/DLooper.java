@@ -1,16 +1,21 @@
 package com.davehub.dlooper;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.davehub.dlooper.loop.Arrangement;
+import com.davehub.dlooper.loop.BinaryLoopFile;
 import com.davehub.dlooper.loop.DrumSound;
 import com.davehub.dlooper.loop.Loop;
+import com.davehub.dlooper.loop.LoopBundle;
+import com.davehub.dlooper.loop.LoopReader;
+import com.davehub.dlooper.loop.LoopRenderer;
 import com.davehub.dlooper.loop.Pattern;
+import com.davehub.dlooper.loop.TimingStats;
 
 /**
  * Acts as a Controller in a View Model Controller design
@@ -18,10 +23,30 @@ import com.davehub.dlooper.loop.Pattern;
  */
 public class DLooper implements Controller {
 	
+	/**
+	 * Matches whole numbers, compiled once rather than on every check
+	 */
+	private static final java.util.regex.Pattern NUMERIC = java.util.regex.Pattern.compile("[0-9]+");
+	/**
+	 * Matches decimal numbers such as "120" or "128.5"
+	 */
+	private static final java.util.regex.Pattern DECIMAL = java.util.regex.Pattern.compile("[0-9]+(\\.[0-9]+)?");
 	/**
 	 * The loop which is currently being edited and played
 	 */
-	private Loop loop;
+	private volatile Loop loop;
+	/**
+	 * The loops played one after another as a song
+	 */
+	private final Arrangement arrangement;
+	/**
+	 * The last pattern added with addPatternAsync, so each add waits for the one before it
+	 */
+	private CompletableFuture<Pattern> pendingAdd;
+	/**
+	 * The listeners told about changes, safe to tell from loading threads while listeners are added
+	 */
+	private final CopyOnWriteArrayList<LoopListener> listeners;
 	
 	
 	// -----------
@@ -34,6 +59,9 @@ public class DLooper implements Controller {
 	 */
 	public DLooper() {
 		this.loop = new Loop();
+		this.arrangement = new Arrangement();
+		this.pendingAdd = CompletableFuture.completedFuture(null);
+		this.listeners = new CopyOnWriteArrayList<LoopListener>();
 	}
 	
 	
@@ -51,11 +79,51 @@ public class DLooper implements Controller {
 	}
 	
 	/**
-	 * Stops playing the loop
+	 * Stops playing the loop or the arrangement
 	 */
 	@Override
 	public void stop() {
 		loop.stop();
+		arrangement.stop();
+	}
+	
+	/**
+	 * Plays the loops of the arrangement one after another, from the first section
+	 * @return False when the arrangement has no sections, in which case nothing is played
+	 */
+	@Override
+	public boolean playArrangement() {
+		return arrangement.play();
+	}
+	
+	/**
+	 * Returns the arrangement of loops this controller plays as a song
+	 * @return The Arrangement instance
+	 */
+	@Override
+	public Arrangement getArrangement() {
+		return arrangement;
+	}
+	
+	/**
+	 * Adds a section to the end of the arrangement
+	 * @param loop The loop to play, whose sounds are already decoded
+	 * @param repeats The number of times to play through the loop's pattern
+	 * @return False when repeats <= 0, in which case the section isn't added
+	 */
+	@Override
+	public boolean addSection(Loop loop, int repeats) {
+		return arrangement.addSection(loop, repeats);
+	}
+	
+	/**
+	 * Removes the section at the given index from the arrangement
+	 * @param index The index of the section
+	 * @return True if the section existed and was removed
+	 */
+	@Override
+	public boolean removeSection(int index) {
+		return arrangement.removeSection(index);
 	}
 	
 	/**
@@ -67,21 +135,30 @@ public class DLooper implements Controller {
 	}
 
 	/**
-	 * Set this controller to use the given loop
+	 * Set this controller to use the given loop.
+	 * If the current loop is playing, the new loop takes over at the end of its cycle without a gap.
 	 * @param loop The loop to use.
 	 */
 	public void setLoop(Loop loop) {
+		Loop previous = this.loop;
 		this.loop = loop;
+		previous.handOver(loop);
+		for (LoopListener listener: listeners) {
+			listener.loopChanged();
+		}
 	}
 
 	/**
 	 * Sets the loop bpm to the given value
-	 * @param bpm The desired bpm value as an int
+	 * @param bpm The desired bpm value, which can be fractional
 	 * @return False if the bpm <= 0, in which case the bpm value is unchanged
 	 */
 	@Override
-	public boolean setBpm(int bpm) {
-		return loop.setBpm(bpm);
+	public boolean setBpm(double bpm) {
+		if (loop.setBpm(bpm)) {
+			fireSettingsChanged();
+			return true;
+		} else return false;
 	}
 	
 	/**
@@ -92,7 +169,29 @@ public class DLooper implements Controller {
 	 */
 	@Override
 	public void addPattern(String filePath) throws Exception {
-		loop.addPattern(new Pattern(new DrumSound(filePath)));
+		Loop target = loop;
+		Pattern pattern = new Pattern(new DrumSound(filePath));
+		target.addPattern(pattern);
+		firePatternAdded(target, pattern);
+	}
+	
+	/**
+	 * Starts adding a pattern with the audio file specified by path, decoding it on the SampleCache's loader threads.
+	 * The pattern is added to the loop that was current when this was called, after every earlier add.
+	 * @param filePath The path to the audio file to load
+	 * @return A future completed with the pattern once it is in the loop, or completed exceptionally when the file can't be read
+	 */
+	@Override
+	public synchronized CompletableFuture<Pattern> addPatternAsync(String filePath) {
+		Loop target = loop;
+		pendingAdd = pendingAdd.handle((previous, failure) -> previous)
+				.thenCombine(DrumSound.loadAsync(filePath), (previous, sound) -> {
+					Pattern pattern = new Pattern(sound);
+					target.addPattern(pattern);
+					firePatternAdded(target, pattern);
+					return pattern;
+				});
+		return pendingAdd;
 	}
 	
 	/**
@@ -102,7 +201,12 @@ public class DLooper implements Controller {
 	 */
 	@Override
 	public boolean removePattern(int index) {
-		return loop.removePattern(index);
+		if (loop.removePattern(index)) {
+			for (LoopListener listener: listeners) {
+				listener.patternRemoved(index);
+			}
+			return true;
+		} else return false;
 	}
 	
 	/**
@@ -113,17 +217,25 @@ public class DLooper implements Controller {
 	 */
 	@Override
 	public boolean setPattern(int index, String pattern) {
-		return loop.getPatternAt(index).setPattern(pattern);
+		if (loop.getPatternAt(index).setPattern(pattern)) {
+			firePatternChanged(index);
+			return true;
+		} else return false;
 	}
 	
 	/**
 	 * Sets the pattern length to the specified value. Calls loop.setPatternLength()
 	 * @param patternLength
-	 * @return False if the length specified is <= 0
+	 * @return False if the length specified is <= 0 or > Loop.MAX_PATTERN_LENGTH
 	 */
 	@Override
 	public boolean setPatternLength(int patternLength) {
-		return loop.setPatternLength(patternLength);
+		if (loop.setPatternLength(patternLength)) {
+			for (LoopListener listener: listeners) {
+				listener.loopChanged();
+			}
+			return true;
+		} else return false;
 	}
 	
 	/**
@@ -136,6 +248,25 @@ public class DLooper implements Controller {
 	@Override
 	public void setPatternSound(int index, String filePath) throws Exception {
 		loop.getPatternAt(index).setSoundFilePath(filePath);
+		firePatternChanged(index);
+	}
+	
+	/**
+	 * Starts changing the sound of the pattern at the given index, decoding it on the SampleCache's loader threads
+	 * @param index The index of the pattern within the loop
+	 * @param filePath The path to the audio file
+	 * @return A future completed with the pattern once it plays the new sound, or completed exceptionally when the file can't be read
+	 */
+	@Override
+	public CompletableFuture<Pattern> setPatternSoundAsync(int index, String filePath) {
+		Loop target = loop;
+		return target.getPatternAt(index).setSoundFilePathAsync(filePath).thenApply(pattern -> {
+			//the pattern may have moved or gone while its sound was decoding
+			if (target == loop && target.indexOf(pattern) >= 0) {
+				firePatternChanged(target.indexOf(pattern));
+			}
+			return pattern;
+		});
 	}
 	
 	/**
@@ -194,12 +325,73 @@ public class DLooper implements Controller {
 		return loop.getPatternLength();
 	}
 	
+	/**
+	 * Sets the number of steps in each beat of the loop. Calls loop.setStepsPerBeat()
+	 * @param stepsPerBeat The steps per beat, which must divide Loop.PPQN
+	 * @return False if the steps per beat doesn't divide Loop.PPQN
+	 */
+	@Override
+	public boolean setStepsPerBeat(int stepsPerBeat) {
+		if (loop.setStepsPerBeat(stepsPerBeat)) {
+			for (LoopListener listener: listeners) {
+				listener.loopChanged();
+			}
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Delegator function to get the steps per beat of the loop
+	 * @return The steps per beat
+	 */
+	@Override
+	public int getStepsPerBeat() {
+		return loop.getStepsPerBeat();
+	}
+	
+	/**
+	 * Sets the number of steps in each beat of the pattern at the given index, resizing it to fill the pattern length
+	 * @param index The index of the pattern within the loop
+	 * @param stepsPerBeat The steps per beat, which must divide Loop.PPQN, or Pattern.LOOP_STEPS_PER_BEAT to follow the loop
+	 * @return False if the steps per beat doesn't divide Loop.PPQN
+	 */
+	@Override
+	public boolean setPatternStepsPerBeat(int index, int stepsPerBeat) {
+		if (loop.getPatternAt(index).setStepsPerBeat(stepsPerBeat)) {
+			firePatternChanged(index);
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Sets the pattern at the given index to keep its own number of steps, playing against the pattern length
+	 * @param index The index of the pattern within the loop
+	 * @param length The number of steps, or Pattern.LOOP_LENGTH to be resized with the loop again
+	 * @return False if length < 0 or length > Loop.MAX_PATTERN_LENGTH
+	 */
+	@Override
+	public boolean setPatternOwnLength(int index, int length) {
+		if (loop.getPatternAt(index).setOwnLength(length)) {
+			firePatternChanged(index);
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Delegator function to get the number of bars before every pattern lines up again
+	 * @return The number of bars in the full cycle
+	 */
+	@Override
+	public long getCycleBars() {
+		return loop.getCycleBars();
+	}
+	
 	/**
 	 * Delegator function to get the BPM of the loop
-	 * @return The BPM of the loop as an int
+	 * @return The BPM of the loop, which can be fractional
 	 */
 	@Override
-	public int getBpm() {
+	public double getBpm() {
 		return loop.getBpm();
 	}
 
@@ -219,15 +411,53 @@ public class DLooper implements Controller {
 	@Override
 	public void setRepeat(boolean repeat) {
 		loop.setRepeat(repeat);
+		fireSettingsChanged();
+	}
+	
+	/**
+	 * Turns the recording of beat timing during playback on or off
+	 * @param record True to record timing, starting with empty stats
+	 */
+	@Override
+	public void setRecordTiming(boolean record) {
+		loop.setRecordTiming(record);
+	}
+	
+	/**
+	 * Returns the beat timing recorded during playback of the current loop
+	 * @return The TimingStats, or null if timing isn't being recorded
+	 */
+	@Override
+	public TimingStats getTimingStats() {
+		return loop.getTimingStats();
 	}
 
 	/**
 	 * Save to file at the given path. Will create a new file.
+	 * Paths ending in .dlpack are saved as a bundle with the sounds' audio, .dlb in the binary format, anything else as .dlf text.
 	 * @param filePath The path of the file to save to.
 	 * @throws IOException 
 	 */
 	@Override
 	public void saveToFile(String filePath) throws IOException {
+		writeToFile(loop, filePath);
+	}
+	
+	/**
+	 * Writes a loop to the given file without it being loaded in a controller, used to convert between formats.
+	 * Paths ending in .dlpack are written as a bundle with the sounds' audio, .dlb in the binary format, anything else as .dlf text.
+	 * @param loop The loop to write
+	 * @param filePath The path of the file to write. Will create a file.
+	 * @throws IOException
+	 */
+	public static void writeToFile(Loop loop, String filePath) throws IOException {
+		if (LoopBundle.isBundle(filePath)) {
+			LoopBundle.write(loop, filePath);
+			return;
+		} else if (BinaryLoopFile.isBinary(filePath)) {
+			BinaryLoopFile.write(loop, filePath);
+			return;
+		}
 		try (BufferedWriter bw = new BufferedWriter(new PrintWriter(filePath))) {
 			bw.write(loop.toString());
 			bw.close();
@@ -237,68 +467,183 @@ public class DLooper implements Controller {
 	}
 	
 	/**
-	 * Loads the loop from the given file to this controller
+	 * Renders the loop to a WAV file at the given path, without needing an audio device.
+	 * @param filePath The path of the WAV file to write.
+	 * @param bars The number of times to play through the pattern
+	 * @return False if bars <= 0, in which case nothing is written
+	 * @throws IOException
+	 */
+	@Override
+	public boolean renderToFile(String filePath, int bars) throws IOException {
+		if (bars > 0) {
+			new LoopRenderer(loop, bars).renderToFile(filePath);
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Renders the arrangement once through to a WAV file at the given path, without needing an audio device.
+	 * @param filePath The path of the WAV file to write.
+	 * @return False if the arrangement has no sections, in which case nothing is written
+	 * @throws IOException
+	 */
+	@Override
+	public boolean renderArrangementToFile(String filePath) throws IOException {
+		if (arrangement.getNumSections() > 0) {
+			new LoopRenderer(arrangement).renderToFile(filePath);
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Loads the loop from the given file to this controller, taking over at the end of the cycle if a loop is playing
 	 * @param filePath The path of the file to load
 	 * @throws IOException
 	 * @throws Exception
 	 */
 	public void loadFromFile(String filePath) throws IOException, Exception{
-		BufferedReader br = new BufferedReader(new FileReader(filePath));
-		String line;
-		ArrayList<String> patternLines = new ArrayList<String>();
-		
-		//read loop settings from first 2 lines
-		String patternLengthString = br.readLine();
-		String bpmString = br.readLine();
-		
-		//read patterns from file
-		while ((line = br.readLine()) != null) {
-			patternLines.add(line);
-		}
-		
-		br.close();
-		
-		//check for errors
-		if (!isNumeric(patternLengthString)) {
-			throw new Exception("Line 1: Pattern Length should be only numeric");
-		}
-		if (!isNumeric(bpmString)) {
-			throw new Exception("Line 2: Beats Per Minute should be only numeric");
-		}
-		
-		
-		//initialise new Loop
-		Loop loop = new Loop(Integer.parseInt(bpmString), Integer.parseInt(patternLengthString));
-		
-		//add patterns
-		for (String patternLine: patternLines) {
-			String[] parts = patternLine.split(" ", 2);
-			Pattern pattern = new Pattern(new DrumSound(parts[1]));
-			pattern.setPattern(parts[0]);
-			loop.addPattern(pattern);
-		}
-		
 		//Load the loop into this controller
-		setLoop(loop);
+		setLoop(readFromFile(filePath));
+	}
+	
+	/**
+	 * Starts loading the loop from the given file, switching to it once every sound has been decoded,
+	 * at the end of the current cycle if a loop is playing
+	 * @param filePath The path of the file to load
+	 * @return A future completed with the loaded loop, or completed exceptionally when the file has errors or can't be read
+	 */
+	@Override
+	public CompletableFuture<Loop> loadFromFileAsync(String filePath) {
+		CompletableFuture<Loop> read;
+		if (LoopBundle.isBundle(filePath)) {
+			read = LoopBundle.readAsync(filePath);
+		} else if (BinaryLoopFile.isBinary(filePath)) {
+			read = BinaryLoopFile.readAsync(filePath);
+		} else read = LoopReader.readAsync(filePath);
+		return read.thenApply(loaded -> {
+			setLoop(loaded);
+			return loaded;
+		});
 	}
 	
 	/**
-	 * Sets the mute value for the sound of the pattern at the given index to the given value
+	 * Reads a loop from the given file without loading it into a controller, used by batch tools.
+	 * Paths ending in .dlpack are opened as bundles, .dlb read as the binary format, anything else as .dlf text.
+	 * @param filePath The path of the file to read
+	 * @return The loop described by the file
+	 * @throws IOException
+	 * @throws Exception When the file contains errors or a sound can't be loaded, giving where in the file @see LoopReader @see BinaryLoopFile @see LoopBundle
+	 */
+	public static Loop readFromFile(String filePath) throws IOException, Exception {
+		if (LoopBundle.isBundle(filePath)) {
+			return LoopBundle.read(filePath);
+		} else if (BinaryLoopFile.isBinary(filePath)) {
+			return BinaryLoopFile.read(filePath);
+		} else return LoopReader.read(filePath);
+	}
+	
+	/**
+	 * Sets the mute value for the sound of the pattern at the given index to the given value.
+	 * The mixer picks it up on its next block without locking. Listeners are only told when the value changes.
 	 * @param index The index of the PAttern to change within the loop ArrayList
 	 * @param value The value to set it to, True for muted.
 	 * @return value
 	 */
 	public void setPatternMute(int index, boolean value) {
-		loop.getPatternAt(index).getSound().getPlayer().setMute(value);
+		Pattern pattern = loop.getPatternAt(index);
+		if (pattern.isMuted() != value) {
+			pattern.setMute(value);
+			firePatternChanged(index);
+		}
 	}
 	
 	/**
-	 * Sets the volume of the sound of the pattern at the given index to the given value
+	 * Sets the volume of the sound of the pattern at the given index to the given value.
+	 * The mixer picks it up on its next block without locking. Listeners are only told when the value changes,
+	 * so a slider being dragged over the same value doesn't refresh the user interfaces.
 	 * @param index The index of the PAttern to change within the loop ArrayList
 	 * @param value The value to set the volume to
 	 */
-	public synchronized void setPatternVolume(int index, double value) {
-		loop.getPatternAt(index).getSound().getPlayer().setVolume(value);
+	public void setPatternVolume(int index, double value) {
+		Pattern pattern = loop.getPatternAt(index);
+		if (pattern.getVolume() != value) {
+			pattern.setVolume(value);
+			firePatternChanged(index);
+		}
+	}
+	
+	/**
+	 * Sets how one step of the pattern at the given index is played, heard from the next time the step is reached
+	 * @param index The index of the pattern within the loop
+	 * @param step The index of the step within the pattern
+	 * @param velocity The velocity, from 0 to Pattern.MAX_VELOCITY
+	 * @param probability The chance of the step playing in percent, from 0 to Pattern.MAX_PROBABILITY
+	 * @param nudge How far the step is played early (negative) or late in ticks of Loop.PPQN per beat,
+	 * from -Pattern.MAX_NUDGE to Pattern.MAX_NUDGE
+	 * @return False when the step or any value is out of range, in which case nothing is changed
+	 */
+	public boolean setPatternStep(int index, int step, int velocity, int probability, int nudge) {
+		Pattern pattern = loop.getPatternAt(index);
+		if (step < 0 || step >= pattern.getLength() || velocity < 0 || velocity > Pattern.MAX_VELOCITY
+				|| probability < 0 || probability > Pattern.MAX_PROBABILITY || Math.abs(nudge) > Pattern.MAX_NUDGE) {
+			return false;
+		}
+		pattern.setVelocity(step, velocity);
+		pattern.setProbability(step, probability);
+		pattern.setNudge(step, nudge);
+		firePatternChanged(index);
+		return true;
+	}
+	
+	/**
+	 * Registers a listener to be told about every change made through this controller
+	 * @param listener The listener to add
+	 */
+	@Override
+	public void addLoopListener(LoopListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Stops a listener being told about changes
+	 * @param listener The listener to remove
+	 */
+	@Override
+	public void removeLoopListener(LoopListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Tells the listeners a pattern was added, unless it was added to a loop that has since been replaced
+	 * @param target The loop the pattern was added to
+	 * @param pattern The pattern added
+	 */
+	private void firePatternAdded(Loop target, Pattern pattern) {
+		int index = target.indexOf(pattern);
+		if (target == loop && index >= 0) {
+			for (LoopListener listener: listeners) {
+				listener.patternAdded(index);
+			}
+		}
+	}
+	
+	/**
+	 * Tells the listeners the pattern at the given index changed
+	 * @param index The index of the pattern
+	 */
+	private void firePatternChanged(int index) {
+		for (LoopListener listener: listeners) {
+			listener.patternChanged(index);
+		}
+	}
+	
+	/**
+	 * Tells the listeners the bpm or repeat setting changed
+	 */
+	private void fireSettingsChanged() {
+		for (LoopListener listener: listeners) {
+			listener.settingsChanged();
+		}
 	}
 	
 	/**
@@ -307,6 +652,15 @@ public class DLooper implements Controller {
 	 * @return Returns true if the string contains only numbers
 	 */
 	public static boolean isNumeric(String str) {
-		return java.util.regex.Pattern.compile("[0-9]+").matcher(str).matches();
+		return NUMERIC.matcher(str).matches();
+	}
+	
+	/**
+	 * Checks whether a string is a positive decimal number, such as "120" or "128.5"
+	 * @param str The string to check
+	 * @return Returns true if the string is digits with at most one decimal point between them
+	 */
+	public static boolean isDecimal(String str) {
+		return str != null && DECIMAL.matcher(str).matches();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.davehub.dlooper;
+
+/**
+ * Interface for user interfaces that want to hear about changes made to a Controller's loop,
+ * so they can update only what changed rather than redrawing everything.
+ * Events are sent on the thread that made the change, which can be a background loading thread.
+ * @see Controller#addLoopListener
+ */
+public interface LoopListener {
+	
+	/**
+	 * Called after a pattern has been added to the loop
+	 * @param index The index of the new pattern, later patterns have moved up one
+	 */
+	public void patternAdded(int index);
+	/**
+	 * Called after a pattern has been removed from the loop
+	 * @param index The index the pattern had, later patterns have moved down one
+	 */
+	public void patternRemoved(int index);
+	/**
+	 * Called after the steps, sound, mute or volume of a pattern has changed
+	 * @param index The index of the pattern
+	 */
+	public void patternChanged(int index);
+	/**
+	 * Called after the bpm or repeat setting of the loop has changed
+	 */
+	public void settingsChanged();
+	/**
+	 * Called after the whole loop has changed, when a new loop is set or the pattern length changes every pattern
+	 */
+	public void loopChanged();
+
+}
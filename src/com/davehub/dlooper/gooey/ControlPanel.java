@@ -6,6 +6,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.io.File;
+import java.util.concurrent.CompletionException;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
@@ -127,7 +128,7 @@ public class ControlPanel extends JPanel {
 		this.repeatLabel = new JLabel("Repeat:");
 		this.repeatCheckBox = new JCheckBox();
 		this.bpmLabel = new JLabel("  BPM:");
-		this.bpmField = new JTextField(""+controller.getLoop().getBpm());
+		this.bpmField = new JTextField(Loop.formatBpm(controller.getLoop().getBpm()));
 		this.patternLengthLabel = new JLabel("  Pattern Length:");
 		this.patternLengthField = new JTextField(""+controller.getLoop().getPatternLength());
 		settingsPanel.add(repeatLabel);
@@ -165,9 +166,6 @@ public class ControlPanel extends JPanel {
             	//if ok selected, create new loop and refresh UI
             	if (val == 0) {
             		controller.setLoop(new Loop());
-            		DLooperWindow window = (DLooperWindow) SwingUtilities.getWindowAncestor(mainPanel);
-        	    	window.clearPatternPanels();
-        	    	window.refresh();
             	}
             }
         });
@@ -183,14 +181,24 @@ public class ControlPanel extends JPanel {
                 	if (val == 0) {
 	            		JFileChooser chooser = new JFileChooser();
 	            		chooser.setCurrentDirectory(new File("samples"));
-	            	    chooser.setFileFilter(new FileNameExtensionFilter("DLooper files", "dlf"));
+	            	    chooser.setFileFilter(new FileNameExtensionFilter("DLooper files", "dlf", "dlb", "dlpack"));
 	            	    //if file is approved, attempt to load it.
 	            	    if(chooser.showOpenDialog(mainPanel) == JFileChooser.APPROVE_OPTION) {
-	            	    	controller.loadFromFile(chooser.getSelectedFile().getPath());
-	            	    	//refresh UI
+	            	    	//sounds decode in the background, the current loop stays until they're ready
 	            	    	DLooperWindow window = (DLooperWindow) SwingUtilities.getWindowAncestor(mainPanel);
-	            	    	window.clearPatternPanels();
-	            	    	window.refresh();
+	            	    	JPanel placeholder = window.addPlaceholder(chooser.getSelectedFile().getPath());
+	            	    	controller.loadFromFileAsync(chooser.getSelectedFile().getPath()).whenComplete((loop, failure) -> {
+	            	    		SwingUtilities.invokeLater(() -> {
+	            	    			window.removePlaceholder(placeholder);
+	            	    			if (failure != null) {
+	            	    				JOptionPane.showMessageDialog(mainPanel,
+	            	    						"Errors exist in the given file:\n" +
+	            	    						cause(failure).getMessage(),
+	            	    						"Bad File",
+	            	    						JOptionPane.ERROR_MESSAGE);
+	            	    			}
+	            	    		});
+	            	    	});
 	            	    }
                 	}
             	} catch (Exception ex) {
@@ -209,7 +217,7 @@ public class ControlPanel extends JPanel {
             		JFileChooser chooser = new JFileChooser();
             		chooser.setCurrentDirectory(new File("samples"));
             		chooser.setSelectedFile(new File("untitled.dlf"));
-            	    chooser.setFileFilter(new FileNameExtensionFilter("DLooper files", "dlf"));
+            	    chooser.setFileFilter(new FileNameExtensionFilter("DLooper files", "dlf", "dlb", "dlpack"));
             	    //if file name chosen, save to file
             	    if(chooser.showSaveDialog(mainPanel) == JFileChooser.APPROVE_OPTION) {
             	    	controller.saveToFile(chooser.getSelectedFile().getPath());
@@ -228,17 +236,21 @@ public class ControlPanel extends JPanel {
             public void actionPerformed(ActionEvent e) {
             	String path = DLooperWindow.loadSoundFileWithPreview(parentFrame);
             	if (path != null) {
-            		try {
-						controller.addPattern(path);
-						DLooperWindow window = (DLooperWindow) SwingUtilities.getWindowAncestor(mainPanel);
-		    	    	window.refresh();
-					} catch (Exception ex) {
-						JOptionPane.showMessageDialog(parentFrame,
-	        				    "Unable to add pattern.\n" +
-	        				    ex.getMessage(),
-	        				    "Add Error",
-	        				    JOptionPane.ERROR_MESSAGE);
-					}
+            		//show a placeholder while the sound decodes in the background
+            		DLooperWindow window = (DLooperWindow) SwingUtilities.getWindowAncestor(mainPanel);
+            		JPanel placeholder = window.addPlaceholder(path);
+            		controller.addPatternAsync(path).whenComplete((pattern, failure) -> {
+            			SwingUtilities.invokeLater(() -> {
+            				window.removePlaceholder(placeholder);
+            				if (failure != null) {
+            					JOptionPane.showMessageDialog(parentFrame,
+            							"Unable to add pattern.\n" +
+            							cause(failure).getMessage(),
+            							"Add Error",
+            							JOptionPane.ERROR_MESSAGE);
+            				}
+            			});
+            		});
             	}
             }
         });
@@ -277,8 +289,6 @@ public class ControlPanel extends JPanel {
 		patternLengthField.addActionListener(new ActionListener(){
             public void actionPerformed(ActionEvent e){
 				changePatternLength(patternLengthField.getText());
-				DLooperWindow window = (DLooperWindow) SwingUtilities.getWindowAncestor(mainPanel);
-    	    	window.refresh();
             }
         });
 		//undo change on loss of focus
@@ -300,41 +310,52 @@ public class ControlPanel extends JPanel {
 	 * Refreshes this objects components with Controller
 	 */
 	public void refresh() {
-		bpmField.setText(controller.getBpm()+"");
+		bpmField.setText(Loop.formatBpm(controller.getBpm()));
 		patternLengthField.setText(controller.getPatternLength()+"");
 	}
 	
+	/**
+	 * Returns the exception that made a background load fail, rather than the CompletionException wrapping it
+	 * @param failure The exception a future completed with
+	 * @return The underlying exception
+	 */
+	static Throwable cause(Throwable failure) {
+		if (failure instanceof CompletionException && failure.getCause() != null) {
+			return failure.getCause();
+		} else return failure;
+	}
+	
 	/**
 	 * Changes the patternLength to the integer value of the given string and reports errors if failed.
 	 * @param patternLength The String representing the new patternLength.
 	 */
 	private void changePatternLength(String patternLength) {
-		if (!DLooper.isNumeric(patternLength)) {
+		if (!DLooper.isNumeric(patternLength) || patternLength.length() > 9) {
 			JOptionPane.showMessageDialog(this,
-				    "Pattern length must be numeric",
+				    "Pattern length must be a whole number from 1 to " + Loop.MAX_PATTERN_LENGTH,
 				    "Bad Pattern",
 				    JOptionPane.ERROR_MESSAGE);
 			patternLengthField.setText(controller.getPatternLength()+"");
 			patternLengthField.requestFocusInWindow();
-		} else {
-			controller.setPatternLength(Integer.parseInt(patternLength));
+		} else if (!controller.setPatternLength(Integer.parseInt(patternLength))) {
+			patternLengthField.setText(controller.getPatternLength()+"");
 		}
 	}
 	
 	/**
-	 * Changes the BPM to the integer value of the given string and reports errors if failed.
+	 * Changes the BPM to the decimal value of the given string and reports errors if failed.
 	 * @param BPM The String representing the new BPM.
 	 */
 	private void changeBpm(String bpm) {
-		if (!DLooper.isNumeric(bpm)) {
+		if (!DLooper.isDecimal(bpm)) {
 			JOptionPane.showMessageDialog(this,
-				    "BPM must be numeric",
+				    "BPM must be a number, such as 120 or 128.5",
 				    "Bad Pattern",
 				    JOptionPane.ERROR_MESSAGE);
-			bpmField.setText(controller.getBpm()+"");
+			bpmField.setText(Loop.formatBpm(controller.getBpm()));
 			bpmField.requestFocusInWindow();
-		} else {
-			controller.setBpm(Integer.parseInt(bpm));
+		} else if (!controller.setBpm(Double.parseDouble(bpm))) {
+			bpmField.setText(Loop.formatBpm(controller.getBpm()));
 		}
 	}
 }
@@ -1,19 +1,24 @@
 package com.davehub.dlooper.gooey;
 
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.GridLayout;
 import java.io.File;
 import java.util.ArrayList;
 
+import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import com.davehub.dlooper.Controller;
+import com.davehub.dlooper.LoopListener;
 
 @SuppressWarnings("serial")
 public class DLooperWindow extends JFrame {
@@ -30,6 +35,10 @@ public class DLooperWindow extends JFrame {
 	 * List of PatternPanels
 	 */
 	private ArrayList<PatternPanel> patternPanels;
+	/**
+	 * Panels standing in for patterns whose sounds are still loading, shown after the PatternPanels
+	 */
+	private ArrayList<JPanel> placeholders;
 	/**
 	 * The Controller this ui uses
 	 */
@@ -51,6 +60,7 @@ public class DLooperWindow extends JFrame {
 		this.controlPanel = new ControlPanel(controller, this);
 		this.contentPanel = new JPanel(new BoxLayout(contentPanel, BoxLayout.Y_AXIS));
 		this.patternPanels = new ArrayList<PatternPanel>();
+		this.placeholders = new ArrayList<JPanel>();
 		
 		contentPanel.setLayout(new GridLayout(0, 1));
 		contentPanel.setBorder(new EmptyBorder(10,10,10,10));
@@ -58,11 +68,43 @@ public class DLooperWindow extends JFrame {
 		getContentPane().add(controlPanel, BorderLayout.PAGE_START);
 		getContentPane().add(contentPanel, BorderLayout.CENTER);
 		
+		setupListeners();
+		
 		pack();
 		setVisible(true);
 	}
 	
 	
+	// ---------
+	// Listeners
+	// ---------
+	
+	
+	/**
+	 * Listens to the Controller, updating only the panels for the patterns that changed.
+	 * Changes can come from loading threads, so each is handled on the event dispatch thread.
+	 */
+	private void setupListeners() {
+		controller.addLoopListener(new LoopListener() {
+			public void patternAdded(int index) {
+				SwingUtilities.invokeLater(() -> insertPatternPanel(index));
+			}
+			public void patternRemoved(int index) {
+				SwingUtilities.invokeLater(() -> removePatternPanel(index));
+			}
+			public void patternChanged(int index) {
+				SwingUtilities.invokeLater(() -> refreshPatternPanel(index));
+			}
+			public void settingsChanged() {
+				SwingUtilities.invokeLater(() -> controlPanel.refresh());
+			}
+			public void loopChanged() {
+				SwingUtilities.invokeLater(() -> refresh());
+			}
+		});
+	}
+	
+	
 	// -------
 	// Methods
 	// -------
@@ -77,6 +119,63 @@ public class DLooperWindow extends JFrame {
 		contentPanel.add(panel);
 	}
 	
+	/**
+	 * Adds a PatternPanel for a pattern added to the loop, renumbering the panels after it.
+	 * If the panels no longer match the loop, such as after changes made while this event was queued, rebuilds them all.
+	 * @param index The index of the added pattern
+	 */
+	private void insertPatternPanel(int index) {
+		if (index > patternPanels.size() || patternPanels.size() + 1 != controller.getNumPatterns()) {
+			refresh();
+			return;
+		}
+		PatternPanel panel = new PatternPanel(index, controller, this);
+		patternPanels.add(index, panel);
+		contentPanel.add(panel, index);
+		renumberPatternPanels(index + 1);
+		contentPanel.revalidate();
+		super.setSize(getPreferredSize());
+	}
+	
+	/**
+	 * Removes the PatternPanel of a pattern removed from the loop, renumbering the panels after it.
+	 * If the panels no longer match the loop, rebuilds them all.
+	 * @param index The index the removed pattern had
+	 */
+	private void removePatternPanel(int index) {
+		if (index >= patternPanels.size() || patternPanels.size() - 1 != controller.getNumPatterns()) {
+			refresh();
+			return;
+		}
+		contentPanel.remove(patternPanels.remove(index));
+		renumberPatternPanels(index);
+		contentPanel.revalidate();
+		contentPanel.repaint();
+		super.setSize(getPreferredSize());
+	}
+	
+	/**
+	 * Refreshes the PatternPanel of a changed pattern. If the panels no longer match the loop, rebuilds them all.
+	 * @param index The index of the changed pattern
+	 */
+	private void refreshPatternPanel(int index) {
+		if (index >= patternPanels.size() || patternPanels.size() != controller.getNumPatterns()) {
+			refresh();
+		} else {
+			patternPanels.get(index).refresh();
+		}
+	}
+	
+	/**
+	 * Gives the PatternPanels from the given index onwards the ids of their positions
+	 * @param from The index of the first panel to renumber
+	 */
+	private void renumberPatternPanels(int from) {
+		for (int i = from; i < patternPanels.size(); i++) {
+			patternPanels.get(i).setId(i);
+		}
+	}
+	
 	/**
 	 * Clears all the PatternPanels from the UI
 	 */
@@ -86,7 +185,35 @@ public class DLooperWindow extends JFrame {
 	}
 	
 	/**
-	 * Refreshes all child components.
+	 * Shows a placeholder for a pattern until its sound has loaded
+	 * @param filePath The path of the sound being loaded
+	 * @return The placeholder, to pass to removePlaceholder once loading has finished
+	 */
+	public JPanel addPlaceholder(String filePath) {
+		JPanel placeholder = new JPanel(new BorderLayout());
+		placeholder.add(new JLabel("Loading " + new File(filePath).getName() + "..."), BorderLayout.CENTER);
+		placeholder.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+		placeholders.add(placeholder);
+		contentPanel.add(placeholder);
+		contentPanel.revalidate();
+		super.setSize(getPreferredSize());
+		return placeholder;
+	}
+	
+	/**
+	 * Removes a placeholder shown by addPlaceholder
+	 * @param placeholder The placeholder to remove
+	 */
+	public void removePlaceholder(JPanel placeholder) {
+		placeholders.remove(placeholder);
+		contentPanel.remove(placeholder);
+		contentPanel.revalidate();
+		super.setSize(getPreferredSize());
+	}
+	
+	/**
+	 * Refreshes all child components, rebuilding every PatternPanel.
+	 * Only needed when the whole loop changes, other changes update just their own panel.
 	 */
 	public void refresh() {
 		controlPanel.refresh();
@@ -99,20 +226,33 @@ public class DLooperWindow extends JFrame {
 				addPatternPanel(new PatternPanel(currentSize + i, controller, this));
 			}
 		}
+		for (JPanel placeholder: placeholders) {
+			contentPanel.add(placeholder);
+		}
+		contentPanel.revalidate();
+		contentPanel.repaint();
 		super.setSize(getPreferredSize());
 	}
 
 	/**
-	 * Opens a window for loading a sound file, and once a file is selected, displays a confirmation window 
+	 * Opens the sample library to pick a sound file from. If the user wants a file outside the library,
+	 * opens a window for loading a sound file, and once a file is selected, displays a confirmation window 
 	 * with a button to play the sound they've chosen, and confirm if
 	 * @param panel The Component object for which the ui pop-ups display
 	 */
 	protected static String loadSoundFileWithPreview(JFrame parent) {
+		SampleBrowserWindow browser = new SampleBrowserWindow(parent);
+		int choice = browser.open();
+		if (choice == SampleBrowserWindow.CONFIRMED) {
+			return browser.getFilePath();
+		} else if (choice == SampleBrowserWindow.CANCELLED) {
+			return null;
+		}
 		JFileChooser chooser = new JFileChooser();
 		chooser.setCurrentDirectory(new File("samples"));
 		do {
 			try {
-	    	    chooser.setFileFilter(new FileNameExtensionFilter("Audio Files", "wav", "mp3", "m4a"));
+	    	    chooser.setFileFilter(new FileNameExtensionFilter("Audio Files", "wav", "aif", "aiff", "au"));
 	    	    //if file chosen, add new pattern with given file
 	    	    if(chooser.showOpenDialog(parent) == JFileChooser.APPROVE_OPTION) {
 	    	    	int val = PreviewSoundWindow.previewFile(chooser.getSelectedFile().getAbsolutePath(), parent);
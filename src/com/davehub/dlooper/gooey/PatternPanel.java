@@ -20,10 +20,12 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import com.davehub.dlooper.Controller;
+import com.davehub.dlooper.loop.Pattern;
 
 @SuppressWarnings("serial")
 public class PatternPanel extends JPanel {
@@ -56,6 +58,11 @@ public class PatternPanel extends JPanel {
 	 * The field at which the pattern string can be edited
 	 */
 	private JTextField patternField;
+	/**
+	 * The pattern string last shown from the Controller, so refresh can tell whether the steps changed
+	 * without overwriting an edit in progress when something else did
+	 */
+	private String shownPattern;
 	/**
 	 * The slider fot the volume of this pattern
 	 */
@@ -72,6 +79,10 @@ public class PatternPanel extends JPanel {
 	 * The Button for changin this patterns sound file
 	 */
 	private JButton changeSoundButton;
+	/**
+	 * True while refresh is updating the controls, so their listeners don't send the values back to the Controller
+	 */
+	private boolean refreshing;
 	
 	
 	// -----------
@@ -93,9 +104,11 @@ public class PatternPanel extends JPanel {
 		this.idLabel = new JLabel(id + ")");
 		this.middlePanel = new JPanel();
 		this.audioLabel = new JLabel(controller.getPattern(id).getSound().getFilePath());
-		this.patternField = new JTextField(controller.getPattern(id).getPattern());
-		this.volumeSlider = new JSlider(0, 100);
-		this.muteCheckBox = new JCheckBox("Mute");
+		this.shownPattern = controller.getPattern(id).getPattern();
+		this.patternField = new JTextField(shownPattern);
+		this.volumeSlider = new JSlider(0, 100, (int) Math.round(controller.getPattern(id).getVolume() * 100));
+		this.muteCheckBox = new JCheckBox("Mute", controller.getPattern(id).isMuted());
+		this.refreshing = false;
 		this.removeButton = new JButton("X");
 		this.changeSoundButton = new JButton("File");
 		
@@ -168,38 +181,46 @@ public class PatternPanel extends JPanel {
 		//change sound on button click
 		changeSoundButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-            	try {
-            		String path = DLooperWindow.loadSoundFileWithPreview(window);
-                	if (path != null) {
-                		controller.setPatternSound(id, path);
-                		window.refresh();
-                	}
-				} catch (Exception ex) {
-					JOptionPane.showMessageDialog(window,
-        				    "Unable to add pattern.\n" +
-        				    ex.getMessage(),
-        				    "Add Error",
-        				    JOptionPane.ERROR_MESSAGE);
-				}
+            	String path = DLooperWindow.loadSoundFileWithPreview(window);
+            	if (path != null) {
+            		//the old sound keeps playing until the new one has decoded
+            		audioLabel.setText("Loading " + path + "...");
+            		controller.setPatternSoundAsync(id, path).whenComplete((pattern, failure) -> {
+            			SwingUtilities.invokeLater(() -> {
+            				//on success the controller tells the window which pattern changed
+            				if (failure != null) {
+            					refresh();
+            					JOptionPane.showMessageDialog(window,
+            							"Unable to add pattern.\n" +
+            							ControlPanel.cause(failure).getMessage(),
+            							"Add Error",
+            							JOptionPane.ERROR_MESSAGE);
+            				}
+            			});
+            		});
+            	}
             }
         });
 		//remove pattern on button click
 		removeButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
             	controller.removePattern(id);
-            	window.refresh();
             }
 		});
 		//change mute value on box checking or unchecking
 		muteCheckBox.addItemListener(new ItemListener() {
 			public void itemStateChanged(ItemEvent e) {
-				controller.setPatternMute(id, ((JCheckBox) e.getSource()).isSelected());
+				if (!refreshing) {
+					controller.setPatternMute(id, ((JCheckBox) e.getSource()).isSelected());
+				}
 			}
 		});
 		//change volume on slider change
 		volumeSlider.addChangeListener(new ChangeListener() {
 			public void stateChanged(ChangeEvent e) {
-				controller.setPatternVolume(id, (((JSlider) e.getSource()).getValue() / 100f));
+				if (!refreshing) {
+					controller.setPatternVolume(id, (((JSlider) e.getSource()).getValue() / 100f));
+				}
 			}
 		});
 	}
@@ -215,9 +236,10 @@ public class PatternPanel extends JPanel {
 	 * @param pattern The pattern string to change to
 	 */
 	public void changePattern(String pattern) {
-		if (patternField.getText().length() != controller.getPatternLength()) {
+		int length = controller.getPattern(id).getLength();
+		if (patternField.getText().length() != length) {
 			JOptionPane.showMessageDialog(this,
-				    "Pattern not the correct length: " + pattern.length() + ", should be: " + controller.getPatternLength(),
+				    "Pattern not the correct length: " + pattern.length() + ", should be: " + length,
 				    "Bad Pattern",
 				    JOptionPane.ERROR_MESSAGE);
 			patternField.setText(controller.getPatternString(id));
@@ -233,10 +255,37 @@ public class PatternPanel extends JPanel {
 	}
 	
 	/**
-	 * Refreshes this component with the Controller
+	 * Changes which pattern this panel shows, when patterns before it are added or removed
+	 * @param id The new index of the pattern within the Loop
+	 */
+	public void setId(int id) {
+		this.id = id;
+		idLabel.setText(id + ")");
+	}
+	
+	/**
+	 * Refreshes this component with the Controller, only updating the controls whose values have changed
+	 * so that changing the volume or mute doesn't rewrite a pattern being edited
 	 */
 	public void refresh() {
-		audioLabel.setText(controller.getPattern(id).getSound().getFilePath());
-		patternField.setText(controller.getPattern(id).getPattern());
+		Pattern pattern = controller.getPattern(id);
+		String filePath = pattern.getSound().getFilePath();
+		if (!audioLabel.getText().equals(filePath)) {
+			audioLabel.setText(filePath);
+		}
+		String steps = pattern.getPattern();
+		if (!steps.equals(shownPattern)) {
+			shownPattern = steps;
+			patternField.setText(steps);
+		}
+		refreshing = true;
+		int volume = (int) Math.round(pattern.getVolume() * 100);
+		if (volumeSlider.getValue() != volume) {
+			volumeSlider.setValue(volume);
+		}
+		if (muteCheckBox.isSelected() != pattern.isMuted()) {
+			muteCheckBox.setSelected(pattern.isMuted());
+		}
+		refreshing = false;
 	}
 }
@@ -12,6 +12,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import com.davehub.dlooper.loop.DrumSound;
+import com.davehub.dlooper.loop.SampleCache;
 
 @SuppressWarnings("serial")
 public class PreviewSoundWindow extends JDialog {
@@ -67,12 +68,12 @@ public class PreviewSoundWindow extends JDialog {
 	/**
 	 * path of the current sound file
 	 */
-	@SuppressWarnings("unused")
 	private String filePath;
 	/**
-	 * The current sound object
+	 * The sound every preview is played with, kept between windows and limited to one voice,
+	 * so auditioning file after file reuses one voice in the AudioEngine and each preview cuts off the last
 	 */
-	private DrumSound sound;
+	private static DrumSound audition;
 	/**
 	 * Value returned
 	 */
@@ -86,8 +87,9 @@ public class PreviewSoundWindow extends JDialog {
 		super(parentFrame, "Preview Sound File");
 		this.filePath = filePath;
 		
-		//check if sound can actually be loaded before creating 
-		this.sound = new DrumSound(filePath);
+		//check if sound can actually be loaded before creating, decoding it into the SampleCache
+		//so previewing and then using the file doesn't decode it again
+		SampleCache.getInstance().get(filePath);
 		this.mainPanel = new JPanel();
 		this.soundPanel = new JPanel();
 		this.confirmPanel = new JPanel();
@@ -96,7 +98,6 @@ public class PreviewSoundWindow extends JDialog {
 		this.changeButton = new JButton("Change");
 		this.cancelButton = new JButton("Cancel");
 		this.fileLabel = new JLabel(filePath);
-		this.sound = new DrumSound(filePath);
 		
 		soundPanel.add(playButton, BorderLayout.BEFORE_LINE_BEGINS);
 		soundPanel.add(fileLabel, BorderLayout.CENTER);
@@ -122,7 +123,11 @@ public class PreviewSoundWindow extends JDialog {
 	private void setupListeners() {
 		playButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				sound.play();
+				try {
+					preview(filePath);
+				} catch (Exception ex) {
+					System.err.println(ex.getMessage());
+				}
 			}
 		});
 		okButton.addActionListener(new ActionListener() {
@@ -148,6 +153,34 @@ public class PreviewSoundWindow extends JDialog {
 	public static int previewFile(String filePath, JFrame parentFrame) throws Exception {
 		PreviewSoundWindow window = new PreviewSoundWindow(filePath, parentFrame);
 		window.setVisible(true);
+		stopPreview();
+		window.dispose();
 		return window.retval;
 	}
+	
+	/**
+	 * Plays a sound file through the shared preview sound, cutting off any preview still playing.
+	 * The audio comes from the SampleCache, so a file already loaded or previewed isn't decoded again.
+	 * @param filePath The path of the sound file
+	 * @throws Exception When the file can't be read
+	 */
+	static synchronized void preview(String filePath) throws Exception {
+		if (audition == null) {
+			audition = new DrumSound(filePath);
+			audition.setPolyphony(1);
+		} else {
+			audition.stop_playing();
+			audition.setFilePath(filePath);
+		}
+		audition.play();
+	}
+	
+	/**
+	 * Stops any preview still playing
+	 */
+	static synchronized void stopPreview() {
+		if (audition != null) {
+			audition.stop_playing();
+		}
+	}
 }
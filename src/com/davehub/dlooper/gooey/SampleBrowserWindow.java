@@ -0,0 +1,374 @@
+package com.davehub.dlooper.gooey;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import com.davehub.dlooper.loop.SampleIndex;
+import com.davehub.dlooper.loop.SampleInfo;
+
+/**
+ * Lets the user search the SampleIndex as they type, showing each sample's waveform, length and level, and pick one
+ */
+@SuppressWarnings("serial")
+public class SampleBrowserWindow extends JDialog {
+	
+	/**
+	 * Constant for the user choosing a sample
+	 */
+	public static final int CONFIRMED = 1;
+	/**
+	 * Constant for the user asking to pick a file outside the index
+	 */
+	public static final int OTHER_FILE = 0;
+	/**
+	 * Constant for the user cancelling the action
+	 */
+	public static final int CANCELLED = -1;
+	/**
+	 * The index searched
+	 */
+	private SampleIndex index;
+	/**
+	 * The field the search words are typed in
+	 */
+	private JTextField searchField;
+	/**
+	 * The samples matching the search
+	 */
+	private DefaultListModel<SampleInfo> results;
+	/**
+	 * The list showing the results
+	 */
+	private JList<SampleInfo> resultList;
+	/**
+	 * Label showing how many samples match and whether the index is being scanned
+	 */
+	private JLabel statusLabel;
+	/**
+	 * Button to play the selected sample
+	 */
+	private JButton playButton;
+	/**
+	 * Button to add a directory to the index
+	 */
+	private JButton addFolderButton;
+	/**
+	 * Button to pick a file outside the index
+	 */
+	private JButton otherFileButton;
+	/**
+	 * Button to choose the selected sample
+	 */
+	private JButton okButton;
+	/**
+	 * Button to cancel
+	 */
+	private JButton cancelButton;
+	/**
+	 * The sample chosen
+	 */
+	private String filePath;
+	/**
+	 * Value returned
+	 */
+	private int retval;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a browser of the shared SampleIndex
+	 * @param parentFrame The window the browser belongs to
+	 */
+	public SampleBrowserWindow(JFrame parentFrame) {
+		super(parentFrame, "Sample Library");
+		this.index = SampleIndex.getInstance();
+		this.searchField = new JTextField(30);
+		this.results = new DefaultListModel<SampleInfo>();
+		this.resultList = new JList<SampleInfo>(results);
+		this.statusLabel = new JLabel();
+		this.playButton = new JButton("Play");
+		this.addFolderButton = new JButton("Add Folder...");
+		this.otherFileButton = new JButton("Other File...");
+		this.okButton = new JButton("OK");
+		this.cancelButton = new JButton("Cancel");
+		this.retval = CANCELLED;
+		
+		resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		resultList.setCellRenderer(new SampleRenderer());
+		resultList.setVisibleRowCount(10);
+		
+		JPanel searchPanel = new JPanel(new BorderLayout());
+		searchPanel.add(new JLabel("Search: "), BorderLayout.LINE_START);
+		searchPanel.add(searchField, BorderLayout.CENTER);
+		searchPanel.add(statusLabel, BorderLayout.PAGE_END);
+		
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(playButton);
+		buttonPanel.add(addFolderButton);
+		buttonPanel.add(otherFileButton);
+		buttonPanel.add(okButton);
+		buttonPanel.add(cancelButton);
+		
+		JPanel mainPanel = new JPanel(new BorderLayout());
+		mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		mainPanel.add(searchPanel, BorderLayout.PAGE_START);
+		mainPanel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+		mainPanel.add(buttonPanel, BorderLayout.PAGE_END);
+		super.setContentPane(mainPanel);
+		
+		setupListeners();
+		search();
+		if (index.isScanning()) {
+			refreshWhenScanned();
+		}
+		
+		pack();
+		setLocationRelativeTo(parentFrame);
+		setModal(true);
+	}
+	
+	
+	// ---------
+	// Listeners
+	// ---------
+	
+	
+	/**
+	 * Sets up the listeners for each Component
+	 */
+	private void setupListeners() {
+		//search as the user types
+		searchField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				search();
+			}
+			public void removeUpdate(DocumentEvent e) {
+				search();
+			}
+			public void changedUpdate(DocumentEvent e) {
+				search();
+			}
+		});
+		//choose on enter or double click
+		searchField.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				choose();
+			}
+		});
+		resultList.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) {
+					choose();
+				}
+			}
+		});
+		playButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				play();
+			}
+		});
+		//add a directory and index it in the background
+		addFolderButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser();
+				chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if (chooser.showOpenDialog(SampleBrowserWindow.this) == JFileChooser.APPROVE_OPTION) {
+					index.addDirectory(chooser.getSelectedFile().getPath());
+					refreshWhenScanned();
+				}
+			}
+		});
+		otherFileButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				retval = OTHER_FILE;
+				setVisible(false);
+			}
+		});
+		okButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				choose();
+			}
+		});
+		cancelButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				retval = CANCELLED;
+				setVisible(false);
+			}
+		});
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Shows the samples matching the search field, keeping the first selected
+	 */
+	private void search() {
+		List<SampleInfo> matches = index.search(searchField.getText());
+		results.clear();
+		results.addAll(matches);
+		if (!matches.isEmpty()) {
+			resultList.setSelectedIndex(0);
+		}
+		statusLabel.setText(matches.size() + " of " + index.getSamples().size() + " samples"
+				+ (index.isScanning() ? ", indexing..." : ""));
+	}
+	
+	/**
+	 * Starts a scan of the index and searches again once it has finished
+	 */
+	private void refreshWhenScanned() {
+		index.scanAsync().whenComplete((analysed, failure) -> SwingUtilities.invokeLater(this::search));
+		search();
+	}
+	
+	/**
+	 * Plays the selected sample through the shared preview sound, so its audio stays cached for when it's chosen
+	 */
+	private void play() {
+		SampleInfo selected = resultList.getSelectedValue();
+		if (selected != null) {
+			try {
+				PreviewSoundWindow.preview(selected.getFilePath());
+			} catch (Exception ex) {
+				JOptionPane.showMessageDialog(this, ex.getMessage(), "File Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
+	/**
+	 * Chooses the selected sample and closes the browser
+	 */
+	private void choose() {
+		SampleInfo selected = resultList.getSelectedValue();
+		if (selected != null) {
+			filePath = selected.getFilePath();
+			retval = CONFIRMED;
+			setVisible(false);
+		}
+	}
+	
+	/**
+	 * Opens the browser and waits for the user to choose
+	 * @return CONFIRMED when a sample was chosen, OTHER_FILE when the user wants to pick a file outside the index,
+	 * or CANCELLED
+	 */
+	public int open() {
+		setVisible(true);
+		PreviewSoundWindow.stopPreview();
+		dispose();
+		return retval;
+	}
+	
+	/**
+	 * Returns the path of the sample chosen
+	 * @return The file path, or null if none was chosen
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+	
+	/**
+	 * Draws a result as its waveform thumbnail beside its name and details
+	 */
+	private static class SampleRenderer extends JPanel implements ListCellRenderer<SampleInfo> {
+		
+		/**
+		 * The waveform of the sample
+		 */
+		private final Waveform waveform;
+		/**
+		 * The name and details of the sample
+		 */
+		private final JLabel label;
+		
+		/**
+		 * Creates the renderer
+		 */
+		private SampleRenderer() {
+			super(new BorderLayout(8, 0));
+			this.waveform = new Waveform();
+			this.label = new JLabel();
+			add(waveform, BorderLayout.LINE_START);
+			add(label, BorderLayout.CENTER);
+			setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+		}
+		
+		@Override
+		public Component getListCellRendererComponent(JList<? extends SampleInfo> list, SampleInfo value, int index,
+				boolean isSelected, boolean cellHasFocus) {
+			waveform.thumbnail = value.getThumbnail();
+			label.setText(value.toString());
+			label.setToolTipText(value.getFilePath());
+			setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+			label.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+			return this;
+		}
+	}
+	
+	/**
+	 * Draws a waveform thumbnail as a bar for each point, mirrored about the middle
+	 */
+	private static class Waveform extends JComponent {
+		
+		/**
+		 * The thumbnail to draw
+		 */
+		private byte[] thumbnail;
+		
+		/**
+		 * Creates an empty waveform
+		 */
+		private Waveform() {
+			setPreferredSize(new Dimension(SampleInfo.THUMBNAIL_POINTS * 2, 24));
+		}
+		
+		@Override
+		protected void paintComponent(Graphics g) {
+			if (thumbnail == null) {
+				return;
+			}
+			int middle = getHeight() / 2;
+			int barWidth = Math.max(1, getWidth() / thumbnail.length);
+			g.setColor(Color.DARK_GRAY);
+			for (int i = 0; i < thumbnail.length; i++) {
+				int height = (thumbnail[i] & 0xFF) * middle / 255;
+				g.fillRect(i * barWidth, middle - height, barWidth, Math.max(1, height * 2));
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.davehub.dlooper.loop;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * A song made of loops played one after another, such as an intro, a verse and a fill, each repeated a number of times.
+ * The sections are played by one Sequencer, which moves to the next section on the beat the last bar ends,
+ * so there is no gap or drift between sections. Every section's sounds are decoded when its loop is made,
+ * so nothing is loaded while the song plays.
+ */
+public class Arrangement {
+	
+	/**
+	 * The sections in the order they're played, replaced as a whole on every edit so the render thread never locks
+	 */
+	private volatile Section[] sections;
+	/**
+	 * True if the song starts again from the first section after the last
+	 */
+	private volatile boolean repeat;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates an empty arrangement that plays once
+	 */
+	public Arrangement() {
+		this.sections = new Section[0];
+		this.repeat = false;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Adds a section to the end of the song
+	 * @param loop The loop to play, edits made to it later are heard when the section plays
+	 * @param repeats The number of times to play through the loop's pattern
+	 * @return False when repeats <= 0, in which case the section isn't added
+	 */
+	public synchronized boolean addSection(Loop loop, int repeats) {
+		if (repeats > 0) {
+			Section[] added = Arrays.copyOf(sections, sections.length + 1);
+			added[sections.length] = new Section(loop, repeats);
+			this.sections = added;
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Removes the section at the given index
+	 * @param index The index of the section, the number on the left when viewing the song
+	 * @return True if the section existed and was removed
+	 */
+	public synchronized boolean removeSection(int index) {
+		if (index < 0 || index >= sections.length) {
+			return false;
+		}
+		Section[] removed = new Section[sections.length - 1];
+		System.arraycopy(sections, 0, removed, 0, index);
+		System.arraycopy(sections, index + 1, removed, index, removed.length - index);
+		this.sections = removed;
+		return true;
+	}
+	
+	/**
+	 * Starts the AudioEngine playing the song from its first section, replacing any loop or song already playing
+	 * @return False when there are no sections, in which case nothing is played
+	 */
+	public boolean play() {
+		if (sections.length == 0) {
+			return false;
+		}
+		try {
+			AudioEngine.getInstance().play(this);
+		} catch (LineUnavailableException e) {
+			System.err.println("Unable to open audio output: " + e.getMessage());
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops the song from playing, silencing every section's sounds
+	 */
+	public void stop() {
+		AudioEngine engine = AudioEngine.getInstance();
+		if (engine.isPlaying(this)) {
+			engine.stop(this);
+			for (Section section: sections) {
+				for (Pattern pattern: section.loop.getSnapshot().getPatterns()) {
+					pattern.getSound().stop_playing();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether the song is being played
+	 * @return True if the song is playing and hasn't reached its end
+	 */
+	public boolean isPlaying() {
+		return AudioEngine.getInstance().isPlaying(this);
+	}
+	
+	/**
+	 * Creates a copy of this song whose loops can be played independently, such as when rendering to file.
+	 * A loop used by several sections is copied once, and the copies share decoded audio with the originals.
+	 * @return The copied Arrangement
+	 */
+	public Arrangement copy() {
+		Arrangement copy = new Arrangement();
+		IdentityHashMap<Loop, Loop> copies = new IdentityHashMap<Loop, Loop>();
+		for (Section section: sections) {
+			copy.addSection(copies.computeIfAbsent(section.loop, Loop::copy), section.repeats);
+		}
+		copy.setRepeat(repeat);
+		return copy;
+	}
+	
+	/**
+	 * Returns the exact length of one play through the song in sample frames, each section at its own bpm
+	 * @return The number of frames, usually fractional
+	 */
+	public double getFrames() {
+		double frames = 0;
+		for (Section section: sections) {
+			Loop.Snapshot current = section.loop.getSnapshot();
+			frames += (double) section.repeats * current.getPatternLength() * current.getFramesPerStep();
+		}
+		return frames;
+	}
+	
+	/**
+	 * Describes the song, one section per line, such as "0: 4 x 16 steps at 120 bpm, 3 patterns"
+	 * @return The description
+	 */
+	@Override
+	public String toString() {
+		StringBuilder output = new StringBuilder();
+		int i = 0;
+		for (Section section: sections) {
+			output.append(i++).append(": ").append(section.repeats).append(" x ")
+					.append(section.loop.getPatternLength()).append(" steps at ")
+					.append(Loop.formatBpm(section.loop.getBpm())).append(" bpm, ")
+					.append(section.loop.getNumPatterns()).append(" patterns\n");
+		}
+		return output.toString();
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the section at the given index
+	 * @param index The index of the section
+	 * @return The Section instance
+	 */
+	public Section getSectionAt(int index) {
+		return sections[index];
+	}
+	
+	/**
+	 * Returns the sections as they were when called. Later edits to the song don't change it.
+	 * @return An unmodifiable List of sections, in the order they're played
+	 */
+	public List<Section> getSections() {
+		return Collections.unmodifiableList(Arrays.asList(sections));
+	}
+	
+	/**
+	 * Returns the sections without copying, for the Sequencer
+	 * @return The sections, which must not be modified
+	 */
+	Section[] getSectionArray() {
+		return sections;
+	}
+	
+	/**
+	 * Returns the number of sections in the song
+	 * @return The number of sections
+	 */
+	public int getNumSections() {
+		return sections.length;
+	}
+	
+	/**
+	 * Returns whether the song starts again after its last section
+	 * @return True if the song repeats
+	 */
+	public boolean getRepeat() {
+		return repeat;
+	}
+	
+	/**
+	 * Sets whether the song starts again after its last section, each loop's own repeat setting is ignored
+	 * @param repeat True to repeat the song
+	 */
+	public void setRepeat(boolean repeat) {
+		this.repeat = repeat;
+	}
+	
+	/**
+	 * A loop and the number of times it's played through before the next section, never modified once made
+	 */
+	public static final class Section {
+		
+		/**
+		 * The loop played
+		 */
+		private final Loop loop;
+		/**
+		 * The number of times the loop's pattern is played through
+		 */
+		private final int repeats;
+		
+		/**
+		 * Creates a section
+		 * @param loop The loop played
+		 * @param repeats The number of times the loop's pattern is played through
+		 */
+		private Section(Loop loop, int repeats) {
+			this.loop = loop;
+			this.repeats = repeats;
+		}
+		
+		/**
+		 * Returns the loop played
+		 * @return The Loop instance
+		 */
+		public Loop getLoop() {
+			return loop;
+		}
+		
+		/**
+		 * Returns the number of times the loop's pattern is played through
+		 * @return The number of bars
+		 */
+		public int getRepeats() {
+			return repeats;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package com.davehub.dlooper.loop;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Renders all sounding DrumSounds through one Mixer into a single SourceDataLine on a dedicated thread.
+ * Loop playback is scheduled by a Sequencer counting sample frames, so beats land on their exact frame.
+ */
+public class AudioEngine {
+	
+	/**
+	 * The sample rate everything is mixed and played at
+	 */
+	public static final float SAMPLE_RATE = 44100.0f;
+	/**
+	 * The number of channels everything is mixed and played with
+	 */
+	public static final int CHANNELS = 2;
+	/**
+	 * The number of frames rendered in each block written to the line
+	 */
+	public static final int BLOCK_FRAMES = 512;
+	/**
+	 * The number of blocks the line buffers, setting the output latency
+	 */
+	private static final int LINE_BLOCKS = 4;
+	/**
+	 * The format written to the audio device, signed 16 bit little endian PCM
+	 */
+	static final AudioFormat OUTPUT_FORMAT = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+	/**
+	 * The engine shared by the whole process
+	 */
+	private static AudioEngine instance;
+	/**
+	 * The thread rendering audio, null while the engine is idle
+	 */
+	private Thread renderThread;
+	/**
+	 * The sequencer of the loop currently playing, null when no loop is playing
+	 */
+	private volatile Sequencer sequencer;
+	/**
+	 * Sounds triggered from outside the render thread, started at the beginning of the next block
+	 */
+	private final ConcurrentLinkedQueue<Trigger> triggers;
+	/**
+	 * Sounds stopped from outside the render thread, silenced at the beginning of the next block
+	 */
+	private final ConcurrentLinkedQueue<DrumSound> releases;
+	/**
+	 * The mixer summing every sounding voice. Only touched by the render thread.
+	 */
+	private final Mixer mixer;
+	/**
+	 * The byte buffer each block is converted into for the line. Only touched by the render thread.
+	 */
+	private final byte[] outputBuffer;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates an idle engine, use getInstance() to get the shared one
+	 */
+	private AudioEngine() {
+		this.triggers = new ConcurrentLinkedQueue<Trigger>();
+		this.releases = new ConcurrentLinkedQueue<DrumSound>();
+		this.mixer = new Mixer(BLOCK_FRAMES);
+		this.outputBuffer = new byte[BLOCK_FRAMES * OUTPUT_FORMAT.getFrameSize()];
+	}
+	
+	/**
+	 * Returns the engine shared by the whole process
+	 * @return The AudioEngine instance
+	 */
+	public static synchronized AudioEngine getInstance() {
+		if (instance == null) {
+			instance = new AudioEngine();
+		}
+		return instance;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Starts playing the given loop from its first beat, replacing any loop already playing
+	 * @param loop The loop to play
+	 * @throws LineUnavailableException When the audio device can't be opened
+	 */
+	public synchronized void play(Loop loop) throws LineUnavailableException {
+		this.sequencer = new Sequencer(loop, mixer);
+		ensureRunning();
+	}
+	
+	/**
+	 * Starts playing the given arrangement from its first section, replacing any loop already playing
+	 * @param arrangement The arrangement to play, which must have at least one section
+	 * @throws LineUnavailableException When the audio device can't be opened
+	 */
+	public synchronized void play(Arrangement arrangement) throws LineUnavailableException {
+		this.sequencer = new Sequencer(arrangement, mixer);
+		ensureRunning();
+	}
+	
+	/**
+	 * Queues a loop to take over from the given loop once its current cycle ends, if it's playing,
+	 * so a loop loaded during playback starts on the next beat of the grid with no gap
+	 * @param playing The loop expected to be playing, or already queued to play
+	 * @param next The loop to play next, whose sounds must already be decoded
+	 * @return False when the given loop isn't playing, in which case nothing is queued
+	 */
+	public synchronized boolean queue(Loop playing, Loop next) {
+		if (isPlaying(playing)) {
+			sequencer.queue(next);
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Stops scheduling beats for the given loop, if it's the one playing. Sounds already started play out unless released.
+	 * @param loop The loop to stop
+	 */
+	public synchronized void stop(Loop loop) {
+		if (isPlaying(loop)) {
+			this.sequencer = null;
+		}
+	}
+	
+	/**
+	 * Stops scheduling beats for the given arrangement, if it's the one playing
+	 * @param arrangement The arrangement to stop
+	 */
+	public synchronized void stop(Arrangement arrangement) {
+		if (isPlaying(arrangement)) {
+			this.sequencer = null;
+		}
+	}
+	
+	/**
+	 * Returns whether the given loop is currently being played on its own, rather than as a section of an arrangement.
+	 * A loop queued to take over at the end of the current cycle counts as playing.
+	 * @param loop The loop to check
+	 * @return True if the loop is playing and hasn't reached its end
+	 */
+	public boolean isPlaying(Loop loop) {
+		Sequencer current = sequencer;
+		return current != null && current.getArrangement() == null && !current.isFinished()
+				&& (current.getLoop() == loop || current.getQueued() == loop);
+	}
+	
+	/**
+	 * Returns whether the given arrangement is currently being played
+	 * @param arrangement The arrangement to check
+	 * @return True if the arrangement is playing and hasn't reached its end
+	 */
+	public boolean isPlaying(Arrangement arrangement) {
+		Sequencer current = sequencer;
+		return current != null && current.getArrangement() == arrangement && !current.isFinished();
+	}
+	
+	/**
+	 * Starts the given sound from its first frame.
+	 * On the render thread this happens at the frame being rendered, otherwise at the start of the next block.
+	 * @param sound The sound to play
+	 * @param channel The pattern whose volume and mute apply, or null for full volume
+	 */
+	void trigger(DrumSound sound, Pattern channel) {
+		if (Thread.currentThread() == renderThread) {
+			mixer.start(sound, channel);
+		} else {
+			Trigger trigger = new Trigger(sound, channel);
+			triggers.add(trigger);
+			try {
+				ensureRunning();
+			} catch (LineUnavailableException e) {
+				triggers.remove(trigger);
+				System.err.println("Unable to open audio output: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Silences the given sound
+	 * @param sound The sound to stop
+	 */
+	void release(DrumSound sound) {
+		if (Thread.currentThread() == renderThread) {
+			mixer.stop(sound);
+		} else {
+			releases.add(sound);
+		}
+	}
+	
+	/**
+	 * Opens the line and starts the render thread if the engine is idle
+	 * @throws LineUnavailableException When the audio device can't be opened
+	 */
+	private synchronized void ensureRunning() throws LineUnavailableException {
+		if (renderThread == null) {
+			SourceDataLine line;
+			try {
+				line = AudioSystem.getSourceDataLine(OUTPUT_FORMAT);
+			} catch (IllegalArgumentException e) {
+				throw new LineUnavailableException("No audio device supports " + OUTPUT_FORMAT);
+			}
+			line.open(OUTPUT_FORMAT, outputBuffer.length * LINE_BLOCKS);
+			line.start();
+			renderThread = new Thread(() -> run(line), "DLooper audio");
+			renderThread.setDaemon(true);
+			renderThread.setPriority(Thread.MAX_PRIORITY);
+			renderThread.start();
+		}
+	}
+	
+	/**
+	 * Stops the render thread if nothing is left to play.
+	 * Synchronized with ensureRunning so a sound triggered while stopping is never lost.
+	 * @return True if the render thread should exit
+	 */
+	private synchronized boolean stopIfIdle() {
+		if (sequencer == null && mixer.isIdle() && triggers.isEmpty()) {
+			renderThread = null;
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * The render thread's main loop, rendering blocks into the line until the engine is idle
+	 * @param line The opened line to write to
+	 */
+	private void run(SourceDataLine line) {
+		try {
+			boolean started = false;
+			do {
+				int queued = (line.getBufferSize() - line.available()) / OUTPUT_FORMAT.getFrameSize();
+				renderBlock(System.nanoTime(), queued, started && queued == 0);
+				line.write(outputBuffer, 0, outputBuffer.length);
+				started = true;
+			} while (!stopIfIdle());
+			line.drain();
+		} finally {
+			line.close();
+		}
+	}
+	
+	/**
+	 * Renders the next block of audio into the output buffer, playing any beats that fall inside it on their exact frame.
+	 * When the playing loop is recording timing, each beat is recorded at the time its frame will reach the device.
+	 * @param blockNanos The System.nanoTime() when rendering of the block started
+	 * @param queued The number of frames in the line waiting to be played ahead of this block
+	 * @param underrun True if the line ran out of audio before this block, so its beats are heard late
+	 */
+	private void renderBlock(long blockNanos, int queued, boolean underrun) {
+		DrumSound sound;
+		while ((sound = releases.poll()) != null) {
+			mixer.stop(sound);
+		}
+		Trigger trigger;
+		while ((trigger = triggers.poll()) != null) {
+			mixer.start(trigger.sound, trigger.channel);
+		}
+		mixer.clear();
+		int rendered = 0;
+		while (rendered < BLOCK_FRAMES) {
+			Sequencer current = sequencer;
+			int frames = BLOCK_FRAMES - rendered;
+			if (current != null) {
+				long beats = current.getBeatsPlayed();
+				frames = current.advance(frames);
+				TimingStats stats = current.getLoop().getTimingStats();
+				if (stats != null && current.getBeatsPlayed() > beats) {
+					long heard = blockNanos + Math.round((queued + rendered) * 1e9 / SAMPLE_RATE);
+					stats.record(heard, current.getBeatNanos(), underrun);
+				}
+				if (current.isFinished()) {
+					finish(current);
+				}
+			}
+			mixer.render(rendered, frames);
+			rendered += frames;
+		}
+		mixer.writePcm16(outputBuffer);
+	}
+	
+	/**
+	 * Clears the given sequencer once its loop has played to the end, unless it has already been replaced
+	 * @param finished The finished sequencer
+	 */
+	private synchronized void finish(Sequencer finished) {
+		if (sequencer == finished) {
+			this.sequencer = null;
+		}
+	}
+	
+	/**
+	 * A sound started from outside the render thread, waiting for the next block
+	 */
+	private static class Trigger {
+		
+		/**
+		 * The sound to start
+		 */
+		private final DrumSound sound;
+		/**
+		 * The pattern whose volume and mute apply, or null for full volume
+		 */
+		private final Pattern channel;
+		
+		/**
+		 * Creates a pending trigger
+		 * @param sound The sound to start
+		 * @param channel The pattern whose volume and mute apply, or null for full volume
+		 */
+		private Trigger(DrumSound sound, Pattern channel) {
+			this.sound = sound;
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,482 @@
+package com.davehub.dlooper.loop;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Reads and writes .dlb files, a compact binary alternative to .dlf holding the same loop.
+ * Steps are stored as the patterns' bit masks and each sound path is stored once, so large loops
+ * save and load without building or splitting strings. Files are read through a memory mapped buffer.
+ *
+ * All values are big endian:
+ * Header: int magic "DLB1", short version, short reserved, double bpm, int patternLength, int numPaths, int numPatterns
+ * Paths: numPaths times int byteLength then that many bytes of UTF-8
+ * Patterns: numPatterns times int pathIndex then ceil(patternLength / 64) longs of steps, bit (i % 64) of word (i / 64) for step i
+ * 
+ * Version 2 stores the loop's steps per beat in place of the reserved short, and each pattern's own resolution and
+ * number of steps after its pathIndex: byte stepsPerBeat, 0 to follow the loop, then int length. The pattern's steps
+ * are then that length, followed by its step settings: byte flags, then length bytes of velocities if bit 0 is set,
+ * of probabilities if bit 1 is set and of nudges if bit 2 is set. Bit 3 of the flags is set when it keeps its own length.
+ * 
+ * Version 1 is still written for loops without step settings, resolutions or patterns of their own length,
+ * so they can be read by older versions of DLooper.
+ */
+public class BinaryLoopFile {
+	
+	/**
+	 * The extension of binary loop files
+	 */
+	public static final String EXTENSION = ".dlb";
+	/**
+	 * The first four bytes of every file, "DLB1"
+	 */
+	private static final int MAGIC = 0x444C4231;
+	/**
+	 * The version of the format written for loops without step settings
+	 */
+	private static final short VERSION = 1;
+	/**
+	 * The version of the format written for loops with step settings, patterns of their own length
+	 * or resolutions other than one step per beat
+	 */
+	private static final short EXTENDED_VERSION = 2;
+	/**
+	 * The number of per step arrays stored in version 2, velocities, probabilities then nudges
+	 */
+	private static final int DETAILS = 3;
+	/**
+	 * The bit of a pattern's flags set in version 2 when the pattern keeps its own length
+	 */
+	private static final int OWN_LENGTH_FLAG = 1 << DETAILS;
+	/**
+	 * The size of the header in bytes
+	 */
+	private static final int HEADER_BYTES = 28;
+	/**
+	 * Starts getting the decoded audio of each sound path as it's read
+	 */
+	private final Function<String, CompletableFuture<Sample>> sounds;
+	/**
+	 * The loop with the settings read, patterns are added once their sounds are decoded
+	 */
+	private Loop loop;
+	/**
+	 * The sound paths in the file
+	 */
+	private String[] paths;
+	/**
+	 * The decoding sound of each path, started as soon as the path is read
+	 */
+	private List<CompletableFuture<Sample>> samples;
+	/**
+	 * The index into paths of each pattern's sound
+	 */
+	private int[] pathIndexes;
+	/**
+	 * The step mask of each pattern
+	 */
+	private long[][] steps;
+	/**
+	 * The velocities, probabilities and nudges of each pattern, each null when every step has the default
+	 */
+	private byte[][][] details;
+	/**
+	 * The steps per beat of each pattern, Pattern.LOOP_STEPS_PER_BEAT for patterns following the loop
+	 */
+	private int[] resolutions;
+	/**
+	 * The number of steps of each pattern
+	 */
+	private int[] lengths;
+	/**
+	 * Whether each pattern keeps its own length
+	 */
+	private boolean[] ownLengths;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a reader
+	 * @param sounds Starts getting the decoded audio of a sound path
+	 */
+	private BinaryLoopFile(Function<String, CompletableFuture<Sample>> sounds) {
+		this.sounds = sounds;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Returns whether the given path names a binary loop file
+	 * @param filePath The path to check
+	 * @return True if the path ends with .dlb
+	 */
+	public static boolean isBinary(String filePath) {
+		return filePath.toLowerCase().endsWith(EXTENSION);
+	}
+	
+	/**
+	 * Reads the loop in the given .dlb file
+	 * @param filePath The path of the file to read
+	 * @return The loop described by the file
+	 * @throws FileNotFoundException When the file doesn't exist
+	 * @throws IOException When the file can't be read
+	 * @throws Exception When the file is damaged or a sound can't be loaded, with the byte offset of the problem
+	 */
+	public static Loop read(String filePath) throws IOException, Exception {
+		try {
+			return readAsync(filePath).get();
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+	
+	/**
+	 * Reads the patterns in the given .dlb file on the calling thread, leaving their sounds decoding in the background
+	 * @param filePath The path of the file to read
+	 * @return A future completed with the loop once every sound is decoded, or completed exceptionally with
+	 * the same exceptions as read
+	 */
+	public static CompletableFuture<Loop> readAsync(String filePath) {
+		MappedByteBuffer in;
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return CompletableFuture.failedFuture(new Exception("The file is too large to open, " + filePath + " is over 2 GB"));
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return CompletableFuture.failedFuture(new FileNotFoundException(filePath));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return readAsync(in, SampleCache.getInstance()::getAsync);
+	}
+	
+	/**
+	 * Reads a loop in the .dlb format from the buffer's position to its limit, such as the loop section of a LoopBundle
+	 * @param in The buffer to read, errors give positions within it
+	 * @param sounds Starts getting the decoded audio of a sound path, called once for each path as it's read
+	 * @return A future completed with the loop once every sound is ready, or completed exceptionally when
+	 * the loop is damaged or a sound can't be loaded
+	 */
+	static CompletableFuture<Loop> readAsync(ByteBuffer in, Function<String, CompletableFuture<Sample>> sounds) {
+		BinaryLoopFile reader = new BinaryLoopFile(sounds);
+		try {
+			reader.parse(in);
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return CompletableFuture.allOf(reader.samples.toArray(new CompletableFuture<?>[0])).handle((loaded, failure) -> {
+			try {
+				return reader.build();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the header, the paths and the step masks, starting each sound loading as its path is read
+	 * @param in The buffer to read from its position
+	 * @throws Exception When the loop is damaged
+	 */
+	private void parse(ByteBuffer in) throws Exception {
+		int start = in.position();
+		try {
+			if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC) {
+				throw error(start, "Not a DLooper binary file");
+			}
+			short version = in.getShort();
+			if (version != VERSION && version != EXTENDED_VERSION) {
+				throw error(start + 4, "Unsupported version " + version + ", expected " + VERSION + " or " + EXTENDED_VERSION);
+			}
+			int stepsPerBeat = in.getShort();
+			if (version == VERSION) {
+				stepsPerBeat = Loop.DEFAULT_STEPS_PER_BEAT;
+			} else if (!Loop.isStepsPerBeat(stepsPerBeat)) {
+				throw error(start + 6, "Steps Per Beat should divide " + Loop.PPQN);
+			}
+			double bpm = in.getDouble();
+			if (!(bpm > 0) || Double.isInfinite(bpm)) {
+				throw error(start + 8, "Beats Per Minute should be a number greater than 0");
+			}
+			int patternLength = in.getInt();
+			if (patternLength <= 0 || patternLength > Loop.MAX_PATTERN_LENGTH) {
+				throw error(start + 16, "Pattern Length should be a whole number from 1 to " + Loop.MAX_PATTERN_LENGTH);
+			}
+			int numPaths = in.getInt();
+			int numPatterns = in.getInt();
+			long patternBytes = version == VERSION
+					? Integer.BYTES + (long) Pattern.words(patternLength) * Long.BYTES
+					: Integer.BYTES * 2 + 2;
+			if (numPaths < 0 || numPatterns < 0 || (long) numPaths * Integer.BYTES > in.remaining()
+					|| numPatterns * patternBytes > in.remaining()) {
+				throw error(start + 20, "The number of sounds or patterns doesn't fit in the file");
+			}
+			loop = new Loop(bpm, patternLength);
+			loop.setStepsPerBeat(stepsPerBeat);
+			paths = new String[numPaths];
+			samples = new ArrayList<CompletableFuture<Sample>>(numPaths);
+			for (int i = 0; i < numPaths; i++) {
+				int offset = in.position();
+				int length = in.getInt();
+				if (length <= 0 || length > in.remaining()) {
+					throw error(offset, "Sound path " + i + " doesn't fit in the file");
+				}
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				paths[i] = new String(bytes, StandardCharsets.UTF_8);
+				samples.add(sounds.apply(paths[i]));
+			}
+			pathIndexes = new int[numPatterns];
+			steps = new long[numPatterns][];
+			details = new byte[numPatterns][DETAILS][];
+			resolutions = new int[numPatterns];
+			lengths = new int[numPatterns];
+			ownLengths = new boolean[numPatterns];
+			for (int i = 0; i < numPatterns; i++) {
+				int offset = in.position();
+				pathIndexes[i] = in.getInt();
+				if (pathIndexes[i] < 0 || pathIndexes[i] >= numPaths) {
+					throw error(offset, "Pattern " + i + " refers to sound " + pathIndexes[i] + " of " + numPaths);
+				}
+				lengths[i] = patternLength;
+				if (version == EXTENDED_VERSION) {
+					parseResolution(in, i);
+				}
+				steps[i] = new long[Pattern.words(lengths[i])];
+				in.asLongBuffer().get(steps[i]);
+				in.position(in.position() + steps[i].length * Long.BYTES);
+				if (version == EXTENDED_VERSION) {
+					parseDetails(in, i, lengths[i]);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw error(in.position(), "The file ends early");
+		}
+	}
+	
+	/**
+	 * Reads the resolution and number of steps of a pattern, checking they're valid and its steps fit in the file
+	 * @param in The buffer to read from its position
+	 * @param pattern The index of the pattern
+	 * @throws Exception When the resolution or length is invalid
+	 */
+	private void parseResolution(ByteBuffer in, int pattern) throws Exception {
+		int offset = in.position();
+		resolutions[pattern] = in.get();
+		if (resolutions[pattern] != Pattern.LOOP_STEPS_PER_BEAT && !Loop.isStepsPerBeat(resolutions[pattern])) {
+			throw error(offset, "Pattern " + pattern + " has " + resolutions[pattern] + " steps per beat, which doesn't divide "
+					+ Loop.PPQN);
+		}
+		lengths[pattern] = in.getInt();
+		if (lengths[pattern] <= 0 || lengths[pattern] > Loop.MAX_PATTERN_LENGTH) {
+			throw error(offset + 1, "Pattern " + pattern + " length should be a whole number from 1 to " + Loop.MAX_PATTERN_LENGTH);
+		} else if ((long) Pattern.words(lengths[pattern]) * Long.BYTES > in.remaining()) {
+			throw error(offset + 1, "Pattern " + pattern + " has a length of " + lengths[pattern]
+					+ ", which doesn't fit in the file");
+		}
+	}
+	
+	/**
+	 * Reads the flags and step settings of a pattern, checking each value is in range
+	 * @param in The buffer to read from its position
+	 * @param pattern The index of the pattern
+	 * @param patternLength The number of steps
+	 * @throws Exception When a value is out of range
+	 */
+	private void parseDetails(ByteBuffer in, int pattern, int patternLength) throws Exception {
+		int flags = in.get();
+		ownLengths[pattern] = (flags & OWN_LENGTH_FLAG) != 0;
+		int[] min = {0, 0, -Pattern.MAX_NUDGE};
+		int[] max = {Pattern.MAX_VELOCITY, Pattern.MAX_PROBABILITY, Pattern.MAX_NUDGE};
+		for (int d = 0; d < DETAILS; d++) {
+			if ((flags & (1 << d)) != 0) {
+				int offset = in.position();
+				byte[] values = new byte[patternLength];
+				in.get(values);
+				for (int i = 0; i < patternLength; i++) {
+					if (values[i] < min[d] || values[i] > max[d]) {
+						throw error(offset + i, "Pattern " + pattern + " step " + i + " has a setting of " + values[i]
+								+ ", expected " + min[d] + " to " + max[d]);
+					}
+				}
+				details[pattern][d] = values;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the patterns once their sounds are decoded and adds them to the loop, in the order they're in the file
+	 * @return The loop described by the file
+	 * @throws Exception When a sound can't be loaded
+	 */
+	private Loop build() throws Exception {
+		ArrayList<Pattern> patterns = new ArrayList<Pattern>(steps.length);
+		for (int i = 0; i < steps.length; i++) {
+			Sample sample;
+			try {
+				sample = samples.get(pathIndexes[i]).get();
+			} catch (ExecutionException e) {
+				throw new Exception("Pattern " + i + ": " + e.getCause().getMessage());
+			}
+			Pattern pattern = new Pattern(new DrumSound(paths[pathIndexes[i]], sample));
+			pattern.setSteps(steps[i], lengths[i]);
+			pattern.setStepsPerBeat(resolutions[i]);
+			pattern.setOwnLength(ownLengths[i] ? lengths[i] : Pattern.LOOP_LENGTH);
+			pattern.setStepDetails(details[i][0], details[i][1], details[i][2]);
+			patterns.add(pattern);
+		}
+		loop.addPatterns(patterns);
+		return loop;
+	}
+	
+	/**
+	 * Writes the given loop to a .dlb file, creating or replacing it
+	 * @param loop The loop to write
+	 * @param filePath The path of the file to write
+	 * @throws IOException When the file can't be written
+	 */
+	public static void write(Loop loop, String filePath) throws IOException {
+		ByteBuffer out = encode(loop.getSnapshot());
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+	}
+	
+	/**
+	 * Encodes a loop in the .dlb format, version 2 if any pattern has step settings or its own length,
+	 * or the loop or any pattern has a resolution other than one step per beat
+	 * @param current The state of the loop to encode
+	 * @return A buffer holding the encoded loop from position 0 to its limit
+	 * @throws IOException When the loop is too large to encode
+	 */
+	static ByteBuffer encode(Loop.Snapshot current) throws IOException {
+		Pattern[] patterns = current.getPatterns();
+		int patternLength = current.getPatternLength();
+		LinkedHashMap<String, Integer> pathIndexes = new LinkedHashMap<String, Integer>();
+		ArrayList<byte[]> paths = new ArrayList<byte[]>();
+		int[] indexes = new int[patterns.length];
+		int[] resolutions = new int[patterns.length];
+		int[] lengths = new int[patterns.length];
+		boolean[] ownLengths = new boolean[patterns.length];
+		byte[][][] details = new byte[patterns.length][][];
+		boolean extended = current.getStepsPerBeat() != Loop.DEFAULT_STEPS_PER_BEAT;
+		for (int i = 0; i < patterns.length; i++) {
+			resolutions[i] = patterns[i].getStepsPerBeat();
+			ownLengths[i] = patterns[i].hasOwnLength();
+			lengths[i] = ownLengths[i] ? patterns[i].getLength() : current.getLengthAt(resolutions[i]);
+			details[i] = patterns[i].getStepDetails();
+			extended |= resolutions[i] != Pattern.LOOP_STEPS_PER_BEAT || ownLengths[i]
+					|| details[i][0] != null || details[i][1] != null || details[i][2] != null;
+		}
+		long size = HEADER_BYTES;
+		for (int i = 0; i < patterns.length; i++) {
+			size += Integer.BYTES + (long) Pattern.words(lengths[i]) * Long.BYTES;
+			if (extended) {
+				size += 1 + Integer.BYTES + 1;
+				for (byte[] values: details[i]) {
+					size += values == null ? 0 : lengths[i];
+				}
+			}
+		}
+		for (int i = 0; i < patterns.length; i++) {
+			String path = patterns[i].getSound().getFilePath();
+			Integer index = pathIndexes.get(path);
+			if (index == null) {
+				index = paths.size();
+				pathIndexes.put(path, index);
+				byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+				paths.add(bytes);
+				size += Integer.BYTES + bytes.length;
+			}
+			indexes[i] = index;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Loop is too large to save as " + EXTENSION);
+		}
+		ByteBuffer out = ByteBuffer.allocate((int) size);
+		out.putInt(MAGIC).putShort(extended ? EXTENDED_VERSION : VERSION);
+		out.putShort((short) (extended ? current.getStepsPerBeat() : 0));
+		out.putDouble(current.getBpm()).putInt(patternLength).putInt(paths.size()).putInt(patterns.length);
+		for (byte[] path: paths) {
+			out.putInt(path.length).put(path);
+		}
+		for (int i = 0; i < patterns.length; i++) {
+			out.putInt(indexes[i]);
+			if (extended) {
+				out.put((byte) resolutions[i]).putInt(lengths[i]);
+			}
+			long[] mask = patterns[i].getSteps();
+			int words = Pattern.words(lengths[i]);
+			long lastMask = (lengths[i] & 63) == 0 ? -1L : (1L << lengths[i]) - 1;
+			for (int w = 0; w < words; w++) {
+				long word = w < mask.length ? mask[w] : 0L;
+				out.putLong(w == words - 1 ? word & lastMask : word);
+			}
+			if (extended) {
+				putDetails(out, details[i], lengths[i], ownLengths[i]);
+			}
+		}
+		out.flip();
+		return out;
+	}
+	
+	/**
+	 * Writes the flags and step settings of a pattern, filling any steps past the end of its arrays with the defaults
+	 * @param out The buffer to write to
+	 * @param details The pattern's velocities, probabilities and nudges, each null when every step has the default
+	 * @param patternLength The number of steps
+	 * @param ownLength True if the pattern keeps its own length
+	 */
+	private static void putDetails(ByteBuffer out, byte[][] details, int patternLength, boolean ownLength) {
+		int flags = ownLength ? OWN_LENGTH_FLAG : 0;
+		for (int d = 0; d < DETAILS; d++) {
+			flags |= details[d] == null ? 0 : 1 << d;
+		}
+		out.put((byte) flags);
+		byte[] defaults = {Pattern.MAX_VELOCITY, Pattern.MAX_PROBABILITY, 0};
+		for (int d = 0; d < DETAILS; d++) {
+			if (details[d] != null) {
+				for (int i = 0; i < patternLength; i++) {
+					out.put(i < details[d].length ? details[d][i] : defaults[d]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates an error at the given position in the file
+	 * @param offset The byte offset of the problem
+	 * @param message What is wrong
+	 * @return The exception to throw
+	 */
+	private Exception error(int offset, String message) {
+		return new Exception("Byte " + offset + ": " + message);
+	}
+}
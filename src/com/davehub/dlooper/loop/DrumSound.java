@@ -1,25 +1,25 @@
 package com.davehub.dlooper.loop;
 
-import java.io.File;
-
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
-import javafx.util.Duration;
+import java.util.concurrent.CompletableFuture;
 
 public class DrumSound {
-
+	
 	/**
-	 * The path to the sound file 
+	 * The number of hits of a sound that can overlap unless changed with setPolyphony
+	 */
+	public static final int DEFAULT_POLYPHONY = 4;
+	/**
+	 * The path to the sound file
 	 */
 	private String filePath;
 	/**
-	 * The Media object representing the sound
+	 * The decoded audio of the sound file
 	 */
-	private Media media;
+	private volatile Sample sample;
 	/**
-	 * The MediaPlayer object that plays the media
+	 * The voices the sound is played with, replaced as a whole when the polyphony changes
 	 */
-	private MediaPlayer player;
+	private volatile VoicePool voicePool;
 	
 	
 	// ------------
@@ -30,12 +30,72 @@ public class DrumSound {
 	/**
 	 * Main constructor
 	 * @param filePath Path of the audio file which this drum sound plays
-	 * @throws Exception 
+	 * @throws Exception
 	 */
 	public DrumSound(String filePath) throws Exception {
+		this.voicePool = new VoicePool(DEFAULT_POLYPHONY, VoicePool.StealPolicy.OLDEST);
 		this.setFilePath(filePath);
 	}
 	
+	/**
+	 * Creates a sound from audio already decoded, such as by SampleCache.getAsync
+	 * @param filePath Path of the audio file which this drum sound plays
+	 * @param sample The decoded audio of the file
+	 */
+	DrumSound(String filePath, Sample sample) {
+		this.filePath = filePath;
+		this.sample = sample;
+		this.voicePool = new VoicePool(DEFAULT_POLYPHONY, VoicePool.StealPolicy.OLDEST);
+	}
+	
+	/**
+	 * Copy constructor, sharing the decoded audio but with a voice pool of its own
+	 * @param other The DrumSound to copy
+	 */
+	public DrumSound(DrumSound other) {
+		this.filePath = other.filePath;
+		this.sample = other.sample;
+		this.voicePool = new VoicePool(other.getPolyphony(), other.getStealPolicy());
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Starts loading a sound on the SampleCache's loader threads, so the caller isn't blocked while the file is decoded
+	 * @param filePath Path of the audio file which the drum sound plays
+	 * @return A future completed with the DrumSound, or completed exceptionally when the file can't be read
+	 */
+	public static CompletableFuture<DrumSound> loadAsync(String filePath) {
+		return SampleCache.getInstance().getAsync(filePath).thenApply(sample -> new DrumSound(filePath, sample));
+	}
+	
+	/**
+	 * Plays this DrumSound's audio from the start at full volume, overlapping any hits still sounding.
+	 * When called from the AudioEngine render thread it starts at the exact frame being rendered.
+	 */
+	public void play() {
+		AudioEngine.getInstance().trigger(this, null);
+	}
+	
+	/**
+	 * Plays this DrumSound's audio from the start through the given pattern's volume and mute
+	 * @param pattern The pattern playing the sound
+	 */
+	public void play(Pattern pattern) {
+		AudioEngine.getInstance().trigger(this, pattern);
+	}
+	
+	/**
+	 * Stops the DrumSound's audio
+	 */
+	public void stop_playing() {
+		AudioEngine.getInstance().release(this);
+	}
+	
 	
 	// -------------------
 	// Getters and Setters
@@ -51,48 +111,80 @@ public class DrumSound {
 	}
 	
 	/**
-	 * Returns the Media instance this DrumSound uses
-	 * @return the Media instance this sound represents
+	 * Returns the decoded audio this DrumSound plays
+	 * @return the Sample instance this sound represents
 	 */
-	public Media getMedia() {
-		return this.media;
+	public Sample getSample() {
+		return sample;
 	}
 	
 	/**
-	 * Returns the MediaPlayer instance that plays this sound
-	 * @return see above
+	 * Sets the filePath to the new filePath, taking the decoded audio from the SampleCache
+	 * @param filePath
 	 */
-	public MediaPlayer getPlayer() {
-		return this.player;
+	public synchronized void setFilePath(String filePath) throws Exception {
+		this.sample = SampleCache.getInstance().get(filePath);
+		this.filePath = filePath;
 	}
-
+	
 	/**
-	 * Sets the filePath to the new filePath, updating the audiostream too
-	 * @param filePath
+	 * Starts changing the sound to the given file, which keeps playing the old file until the new one is decoded
+	 * @param filePath The path to the audio file
+	 * @return A future completed with this DrumSound once it plays the new file, or completed exceptionally when the file can't be read
 	 */
-	public synchronized void setFilePath(String filePath) throws Exception {
-		try {
-			this.filePath = filePath;
-			this.media = new Media(new File(filePath).toURI().toString());
-			this.player = new MediaPlayer(media);
-		} catch (Exception e) {
-			throw new Exception("Unable to read file: " + filePath);
-		}
+	public CompletableFuture<DrumSound> setFilePathAsync(String filePath) {
+		return SampleCache.getInstance().getAsync(filePath).thenApply(sample -> {
+			synchronized (this) {
+				this.sample = sample;
+				this.filePath = filePath;
+			}
+			return this;
+		});
 	}
-
+	
 	/**
-	 * Plays this DrumSound's audio
+	 * Returns the pool of voices this sound is played with
+	 * @return The current VoicePool
 	 */
-	public synchronized void play() {
-		player.seek(Duration.ZERO);
-		player.play();
+	VoicePool getVoicePool() {
+		return voicePool;
 	}
 	
 	/**
-	 * Stops the DrumSound's audio
+	 * Returns the number of hits of this sound that can sound at once
+	 * @return The polyphony
 	 */
-	public synchronized void stop_playing() {
-		player.stop();
+	public int getPolyphony() {
+		return voicePool.getPolyphony();
 	}
 	
+	/**
+	 * Sets the number of hits of this sound that can sound at once.
+	 * A new pool of voices is allocated here, hits already sounding play out in the old pool.
+	 * @param polyphony The number of voices, must be > 0
+	 * @return False when polyphony <= 0, in which case it is unchanged
+	 */
+	public boolean setPolyphony(int polyphony) {
+		if (polyphony > 0) {
+			this.voicePool = new VoicePool(polyphony, voicePool.getStealPolicy());
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Returns the policy used to pick a sounding hit to cut off when every voice is busy
+	 * @return The StealPolicy
+	 */
+	public VoicePool.StealPolicy getStealPolicy() {
+		return voicePool.getStealPolicy();
+	}
+	
+	/**
+	 * Sets the policy used to pick a sounding hit to cut off when every voice is busy
+	 * @param stealPolicy The StealPolicy to use
+	 */
+	public void setStealPolicy(VoicePool.StealPolicy stealPolicy) {
+		voicePool.setStealPolicy(stealPolicy);
+	}
+
 }
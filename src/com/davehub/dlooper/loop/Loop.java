@@ -1,18 +1,32 @@
 package com.davehub.dlooper.loop;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.UnaryOperator;
 
-import javafx.animation.Animation;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
-import javafx.util.Duration;
+import javax.sound.sampled.LineUnavailableException;
 
 /**
- * Represents a playable drum loop through layers of patterns that play sounds to mimic playing the drums
+ * Represents a playable drum loop through layers of patterns that play sounds to mimic playing the drums.
+ * The patterns, bpm, length and repeat setting are published together as an immutable Snapshot, and every edit
+ * swaps in a new one, so playback and iteration never see a half made change and never take a lock.
  */
 public class Loop {
 	
+	/**
+	 * The number of ticks in a beat. Every step starts on a tick, so the steps per beat of a loop or pattern
+	 * must divide it, and steps can be nudged off their tick by whole ticks.
+	 */
+	public static final int PPQN = 96;
+	/**
+	 * The steps per beat of a new loop, one step per crotchet as loops had before the setting existed
+	 */
+	public static final int DEFAULT_STEPS_PER_BEAT = 1;
 	/**
 	 * The default bpm set when starting a new loop in any user interface
 	 */
@@ -22,33 +36,29 @@ public class Loop {
 	 */
 	private static final int DEFAULT_PATTERN_LENGTH = 32;
 	/**
-	 * The collection of patterns us
+	 * The longest pattern length allowed, so a damaged or mistyped file can't allocate tables of billions of steps
 	 */
-	private ArrayList<Pattern> patterns;
+	public static final int MAX_PATTERN_LENGTH = 1 << 16;
 	/**
-	 * The timer for playing the loop at a given bpm
+	 * The trigger table entry for a step where no pattern plays
 	 */
-	private Timeline timer;
+	private static final Pattern[] NO_TRIGGERS = new Pattern[0];
 	/**
-	 * Value of the beats per minute at which the loop will play.
+	 * The trigger steps and offsets entry for a step where no pattern plays
 	 */
-	private int bpm;
+	private static final int[] NO_TICKS = new int[0];
 	/**
-	 * Length of the patterns in notes, so a patternLength of 30 means you can play a sound 30 times within the loop.
+	 * The current patterns, bpm, length, repeat setting and trigger table, replaced as a whole on every edit
 	 */
-	private int patternLength;
-	/**
-	 * Delay between polling the patterns for beats, equivalent
-	 */
-	private int pollDelay;
+	private final AtomicReference<Snapshot> state;
 	/**
 	 * The current beat during playback
 	 */
 	private int currentBeat;
 	/**
-	 * True if at the end of the pattern, it plays the pattern again immediatly after.
+	 * Records how late each beat is heard while playing, null unless timing is being recorded
 	 */
-	private boolean repeat;
+	private volatile TimingStats timingStats;
 	
 	
 	// ------------
@@ -58,17 +68,12 @@ public class Loop {
 	
 	/**
 	 * Full attribute constructor
-	 * @param bpm The beats per minute at which the loop will play
+	 * @param bpm The beats per minute at which the loop will play, which can be fractional
 	 * @param patternLength The maximum length that a pattern can be
 	 */
-	public Loop(int bpm, int patternLength) {
-		this.bpm = bpm;
-		this.patternLength = patternLength;
-		this.timer = new Timeline();
-		this.patterns = new ArrayList<Pattern>();
-		this.repeat = false;
+	public Loop(double bpm, int patternLength) {
+		this.state = new AtomicReference<Snapshot>(new Snapshot(new Pattern[0], bpm, patternLength, DEFAULT_STEPS_PER_BEAT, false));
 		this.currentBeat = 0;
-		updatePollDelay();
 	}
 	
 	/**
@@ -85,30 +90,47 @@ public class Loop {
 	
 	
 	/**
-	 * Starts a timer to play
+	 * Starts the AudioEngine playing this loop from the first beat, restarting any timing being recorded
 	 */
 	public synchronized void play() {
-		if (timer.getStatus() != Animation.Status.RUNNING) {
+		AudioEngine engine = AudioEngine.getInstance();
+		if (!engine.isPlaying(this)) {
 			currentBeat = 0;
-			this.timer = new Timeline(new KeyFrame(
-			    Duration.millis(pollDelay),
-			    ae ->{playBeat(nextBeat());
-			}));
-			if (repeat) {
-				timer.setCycleCount(Animation.INDEFINITE);
-			} else {
-				timer.setCycleCount(patternLength);
+			TimingStats stats = timingStats;
+			if (stats != null) {
+				stats.reset();
+			}
+			try {
+				engine.play(this);
+			} catch (LineUnavailableException e) {
+				System.err.println("Unable to open audio output: " + e.getMessage());
 			}
-			timer.play();
 		}
 	}
 	
+	/**
+	 * If this loop is playing, hands playback over to the given loop once the current cycle ends.
+	 * The next loop starts on the beat the cycle would have wrapped on, so there is no gap, and as its
+	 * sounds are already decoded nothing has to load at the switch. Timing being recorded carries on into the next loop.
+	 * @param next The loop to play next
+	 * @return False when this loop isn't playing, in which case the next loop isn't started
+	 */
+	public boolean handOver(Loop next) {
+		if (next != this && AudioEngine.getInstance().queue(this, next)) {
+			TimingStats stats = timingStats;
+			if (stats != null && next.timingStats == null) {
+				next.timingStats = stats;
+			}
+			return true;
+		} else return false;
+	}
+	
 	/**
 	 * Returns the next beat, increasing the value of the current beat so the next call will be one greater
 	 * @return The next beat
 	 */
 	public synchronized int nextBeat() {
-		if (this.currentBeat == this.patternLength) {
+		if (this.currentBeat >= getPatternLength()) {
 			this.currentBeat = 0;
 		}	
 		return this.currentBeat++;
@@ -120,22 +142,69 @@ public class Loop {
 	 * @return Returns false when the beat was out the range 0 <= beat < patternLength
 	 */
 	public boolean playBeat(int beat) {
-		if (beat < patternLength && beat >= 0) {
-			for (Pattern pattern: patterns) {
-				pattern.playPosition(beat);
+		Pattern[][] table = state.get().triggers;
+		if (beat < table.length && beat >= 0) {
+			for (Pattern pattern: table[beat]) {
+				pattern.getSound().play(pattern);
 			}
 			return true;
 		} else return false;
 	}
 	
+	/**
+	 * Starts the sounds of each pattern that has a beat at the given position in the given mixer
+	 * @param beat The index of the beat to play
+	 * @param mixer The mixer to start the sounds in
+	 * @return Returns false when the beat was out the range 0 <= beat < patternLength
+	 */
+	boolean playBeat(int beat, Mixer mixer) {
+		return state.get().playBeat(beat, mixer);
+	}
+	
+	/**
+	 * Recompiles the trigger table from the current patterns, called by a pattern when its steps change
+	 */
+	void compileTriggers() {
+		update(current -> new Snapshot(current.patterns, current.bpm, current.patternLength, current.stepsPerBeat, current.repeat));
+	}
+	
+	/**
+	 * Replaces the snapshot with the one built by the given function, retrying if another edit got there first.
+	 * The function may be called more than once so must have no side effects.
+	 * @param edit Builds the new snapshot from the current one
+	 * @return The snapshot that was published
+	 */
+	private Snapshot update(UnaryOperator<Snapshot> edit) {
+		return state.updateAndGet(edit);
+	}
+	
+	/**
+	 * Creates a copy of this loop whose patterns and sounds can be played independently, such as when rendering to file.
+	 * The copy shares decoded audio with this loop.
+	 * @return The copied Loop
+	 */
+	public Loop copy() {
+		Snapshot current = state.get();
+		Loop copy = new Loop(current.bpm, current.patternLength);
+		copy.setRepeat(current.repeat);
+		copy.setStepsPerBeat(current.stepsPerBeat);
+		ArrayList<Pattern> patterns = new ArrayList<Pattern>(current.patterns.length);
+		for (Pattern pattern: current.patterns) {
+			patterns.add(new Pattern(pattern));
+		}
+		copy.addPatterns(patterns);
+		return copy;
+	}
+	
 	/**
 	 * Stops the loop from playing
 	 */
 	public synchronized void stop() {
-		if (timer.getStatus() == Animation.Status.RUNNING) {
-			this.timer.stop();
+		AudioEngine engine = AudioEngine.getInstance();
+		if (engine.isPlaying(this)) {
+			engine.stop(this);
 			this.currentBeat = 0;
-			for (Pattern pattern: patterns) {
+			for (Pattern pattern: state.get().patterns) {
 				pattern.getSound().stop_playing();
 			}
 		}
@@ -147,8 +216,33 @@ public class Loop {
 	 * @return True if patterns is changes as a result, this will rarely be false, no need to use the value
 	 */
 	public boolean addPattern(Pattern pattern) {
-		pattern.setLength(patternLength);
-		return patterns.add(pattern);
+		return addPatterns(Collections.singletonList(pattern));
+	}
+	
+	/**
+	 * Adds the given patterns to the end of the loop in one edit, compiling the trigger table once for all of them.
+	 * Each pattern is padded or cut to the number of its own steps that fill the loop's pattern length,
+	 * unless it keeps its own length.
+	 * @param added The pattern instances to add
+	 * @return True if the loop is changed as a result
+	 */
+	public boolean addPatterns(Collection<Pattern> added) {
+		Snapshot before = state.get();
+		for (Pattern pattern: added) {
+			if (!pattern.hasOwnLength()) {
+				pattern.setLength(before.getLengthOf(pattern));
+			}
+			pattern.setLoop(this);
+		}
+		update(current -> {
+			Pattern[] patterns = Arrays.copyOf(current.patterns, current.patterns.length + added.size());
+			int i = current.patterns.length;
+			for (Pattern pattern: added) {
+				patterns[i++] = pattern;
+			}
+			return new Snapshot(patterns, current.bpm, current.patternLength, current.stepsPerBeat, current.repeat);
+		});
+		return !added.isEmpty();
 	}
 	
 	/**
@@ -157,9 +251,19 @@ public class Loop {
 	 * @return True if the pattern was in the loop and was removed.
 	 */
 	public boolean removePattern(int index) {
-		if (patterns.remove(index) != null)
-			return true;
-		else return false;
+		while (true) {
+			Snapshot current = state.get();
+			if (index < 0 || index >= current.patterns.length) {
+				return false;
+			}
+			Pattern[] patterns = new Pattern[current.patterns.length - 1];
+			System.arraycopy(current.patterns, 0, patterns, 0, index);
+			System.arraycopy(current.patterns, index + 1, patterns, index, patterns.length - index);
+			if (state.compareAndSet(current, new Snapshot(patterns, current.bpm, current.patternLength, current.stepsPerBeat, current.repeat))) {
+				current.patterns[index].setLoop(null);
+				return true;
+			}
+		}
 	}
 	
 	/**
@@ -168,17 +272,47 @@ public class Loop {
 	 * @return The instance of the pattern at that index
 	 */
 	public Pattern getPatternAt(int index) {
-		return patterns.get(index);
+		return state.get().patterns[index];
 	}
 	
 	/**
-	 * Sets the poll delay to 60,000 / bpm, which produces the value of the length of the beat in milliseconds
-	 * E.g. 60,000 / 120 bpm = 600 ms.
-	 * Takes the current value of bpm for this.
-	 * Is called in setBpm for synchronicity
+	 * Returns the index of the given pattern within the loop
+	 * @param pattern The pattern instance to find
+	 * @return The index of the pattern, or -1 if it isn't in the loop
 	 */
-	private void updatePollDelay() {
-		setPollDelay((int) (60000.0f / bpm));
+	public int indexOf(Pattern pattern) {
+		Pattern[] patterns = state.get().patterns;
+		for (int i = 0; i < patterns.length; i++) {
+			if (patterns[i] == pattern) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the exact length of one beat in sample frames at the current bpm.
+	 * This is usually fractional, the Sequencer accumulates it so beats never drift from the tempo.
+	 * @return The number of frames between beats
+	 */
+	public double getFramesPerBeat() {
+		return state.get().getFramesPerBeat();
+	}
+	
+	/**
+	 * Returns the exact length of one step of the pattern length in sample frames, at the current bpm and steps per beat
+	 * @return The number of frames between steps, usually fractional
+	 */
+	public double getFramesPerStep() {
+		return state.get().getFramesPerStep();
+	}
+	
+	/**
+	 * Returns the current state of the loop, which never changes, so it can be read consistently without locking
+	 * @return The current Snapshot
+	 */
+	Snapshot getSnapshot() {
+		return state.get();
 	}
 	
 	
@@ -192,7 +326,8 @@ public class Loop {
 	 * @return An array of pattern strings
 	 */
 	public String[] getPatternStrings() {
-		String[] patternStrings = new String[patterns.size()];
+		Pattern[] patterns = state.get().patterns;
+		String[] patternStrings = new String[patterns.length];
 		int i = 0;
 		for (Pattern pattern: patterns) {
 			patternStrings[i++] = pattern.getPattern();
@@ -201,11 +336,11 @@ public class Loop {
 	}
 	
 	/**
-	 * Get the Collection of patterns in this loop
-	 * @return A Collection of patterns
+	 * Get the Collection of patterns in this loop, as they were when called. Later edits to the loop don't change it.
+	 * @return An unmodifiable Collection of patterns
 	 */
 	public Collection<Pattern> getPatterns() {
-		return patterns;
+		return Collections.unmodifiableList(Arrays.asList(state.get().patterns));
 	}
 	
 	/**
@@ -213,27 +348,25 @@ public class Loop {
 	 * @return the number of patterns in the loop
 	 */
 	public int getNumPatterns() {
-		return patterns.size();
+		return state.get().patterns.length;
 	}
 	
 	/**
 	 * Returns the value of the current bpm
-	 * @return The bpm value as an int
+	 * @return The bpm value, which can be fractional
 	 */
-	public int getBpm() {
-		return bpm;
+	public double getBpm() {
+		return state.get().bpm;
 	}
 
 	/**
 	 * Sets the beats per minute at which the loop will play.
-	 * Also updates the pollDelay value to match the new bpm value.
-	 * @param bpm The bpm value, must be > 0
-	 * @return Returns false when the 
+	 * @param bpm The bpm value, can be fractional, must be > 0
+	 * @return Returns false when the bpm is <= 0 or not finite, in which case it is unchanged
 	 */
-	public boolean setBpm(int bpm) {
-		if (bpm > 0) {
-			this.bpm = bpm;
-			updatePollDelay();
+	public boolean setBpm(double bpm) {
+		if (bpm > 0 && !Double.isInfinite(bpm)) {
+			update(current -> new Snapshot(current.patterns, bpm, current.patternLength, current.stepsPerBeat, current.repeat));
 			return true;
 		} else return false;
 	}
@@ -243,38 +376,84 @@ public class Loop {
 	 * @return The patternLength value
 	 */
 	public int getPatternLength() {
-		return patternLength;
+		return state.get().patternLength;
 	}
 
 	/**
-	 * Set the pattern length to the given value
+	 * Set the pattern length to the given value, resizing every pattern that doesn't keep its own length
 	 * @param patternLength The length you want the patterns to be
-	 * @return False if patternLength given <= 0, in which case the patternLength of the object is unchanged.
+	 * @return False if patternLength given <= 0 or > MAX_PATTERN_LENGTH, in which case the patternLength of the object is unchanged.
 	 */
 	public boolean setPatternLength(int patternLength) {
-		if (patternLength > 0) {
-			this.patternLength = patternLength;
-			for (Pattern pattern: patterns) {
-				pattern.setLength(patternLength);
+		if (patternLength > 0 && patternLength <= MAX_PATTERN_LENGTH) {
+			Snapshot updated = update(current -> new Snapshot(current.patterns, current.bpm, patternLength, current.stepsPerBeat, current.repeat));
+			for (Pattern pattern: updated.patterns) {
+				if (!pattern.hasOwnLength()) {
+					pattern.setLength(updated.getLengthOf(pattern));
+				}
+			}
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Returns the number of steps in each beat, the resolution the pattern length is counted in
+	 * @return The steps per beat, 1 for crotchets, 2 for quavers, 4 for semiquavers
+	 */
+	public int getStepsPerBeat() {
+		return state.get().stepsPerBeat;
+	}
+	
+	/**
+	 * Sets the number of steps in each beat, keeping the bpm as the tempo, so 4 makes each step a semiquaver.
+	 * The pattern length stays the same number of steps, patterns with their own steps per beat are resized to fill it
+	 * and patterns with their own length keep their number of steps.
+	 * @param stepsPerBeat The steps per beat, which must divide PPQN, such as 1, 2, 3, 4, 6 or 8
+	 * @return False when the steps per beat doesn't divide PPQN, in which case it is unchanged
+	 */
+	public boolean setStepsPerBeat(int stepsPerBeat) {
+		if (isStepsPerBeat(stepsPerBeat)) {
+			Snapshot updated = update(current -> new Snapshot(current.patterns, current.bpm, current.patternLength, stepsPerBeat, current.repeat));
+			for (Pattern pattern: updated.patterns) {
+				if (!pattern.hasOwnLength()) {
+					pattern.setLength(updated.getLengthOf(pattern));
+				}
 			}
 			return true;
 		} else return false;
 	}
 	
 	/**
-	 * Returns the number of milliseconds between each polling of the pattern to see if it should play a sound.
-	 * @return The pollDelay value as an int representing milliseconds
+	 * Returns whether a value can be used as the steps per beat of a loop or pattern
+	 * @param stepsPerBeat The value to check
+	 * @return True if the value is greater than 0 and divides PPQN, so every step starts on a tick
 	 */
-	public int getPollDelay() {
-		return pollDelay;
+	public static boolean isStepsPerBeat(int stepsPerBeat) {
+		return stepsPerBeat > 0 && PPQN % stepsPerBeat == 0;
 	}
 	
 	/**
-	 * Sets the delay in milliseconds between polling the pattern to the specified value.
-	 * @param pollDelay The value with which to set the pollDelay to.
+	 * Resizes a pattern whose steps per beat or own length setting has changed to fill the pattern length,
+	 * which recompiles the trigger table. Patterns with their own length keep it.
+	 * @param pattern The pattern, which should be in this loop
 	 */
-	private void setPollDelay(int pollDelay) {
-		this.pollDelay = pollDelay;
+	void fitLength(Pattern pattern) {
+		if (pattern.hasOwnLength()) {
+			compileTriggers();
+		} else {
+			pattern.setLength(state.get().getLengthOf(pattern));
+		}
+	}
+	
+	/**
+	 * Returns the number of times the pattern length is played before every pattern with its own length lines up
+	 * with the start of the loop again, the least common multiple of their lengths. Rendering this many bars
+	 * plays every combination of the patterns once.
+	 * @return The number of bars in the full cycle, 1 when no pattern keeps its own length,
+	 * or Long.MAX_VALUE when the cycle is too long to count
+	 */
+	public long getCycleBars() {
+		return state.get().getCycleBars();
 	}
 	
 	/**
@@ -282,7 +461,7 @@ public class Loop {
 	 * @param repeat True if you want the loop to repeat.
 	 */
 	public void setRepeat(boolean repeat) {
-		this.repeat = repeat;
+		update(current -> new Snapshot(current.patterns, current.bpm, current.patternLength, current.stepsPerBeat, repeat));
 	}
 	
 	/**
@@ -290,15 +469,42 @@ public class Loop {
 	 * @return True if the loop repeats
 	 */
 	public boolean getRepeat() {
-		return repeat;
+		return state.get().repeat;
+	}
+	
+	/**
+	 * Turns the recording of beat timing during playback on or off. Turning it on starts with empty stats.
+	 * @param record True to record timing
+	 */
+	public void setRecordTiming(boolean record) {
+		this.timingStats = record ? new TimingStats() : null;
+	}
+	
+	/**
+	 * Returns the timing recorded during playback
+	 * @return The TimingStats, or null if timing isn't being recorded
+	 */
+	public TimingStats getTimingStats() {
+		return timingStats;
+	}
+	
+	/**
+	 * Formats a bpm for display and saving, whole numbers are written without a decimal point so files stay readable by older versions
+	 * @param bpm The bpm value
+	 * @return The bpm as a string, such as "120" or "128.5"
+	 */
+	public static String formatBpm(double bpm) {
+		if (bpm == Math.rint(bpm)) {
+			return String.valueOf((long) bpm);
+		} else return String.valueOf(bpm);
 	}
 	
 	/**
 	 * Returns the loop in a string format used for saving to file
 	 * lines:
-	 * 1: (pattern length)
+	 * 1: (pattern length) (steps per beat)
 	 * 2: (bpm)
-	 * 3..n: (pattern string) (pattern file path)
+	 * 3..n: (pattern string) (pattern steps per beat) (pattern length) (step settings) (pattern file path)
 	 * 
 	 * Replacing any bracketed section with the real value
 	 * 
@@ -307,16 +513,515 @@ public class Loop {
 	 * 2: 160
 	 * 3: x-x-x-x- samples/acoustic1/kick1 
 	 * 4: -x-x-x-x samples/acoustic1/snareclosed1
+	 * 
+	 * The steps per beat are only written when they aren't 1, the pattern's as "@res=3" when it has its own.
+	 * A pattern's length is only written when it keeps its own, as "@len=5".
+	 * Step settings are only written for steps that aren't at full velocity, always played and on the beat,
+	 * such as "@3:v=64,p=50,n=-12", so loops without them are saved exactly as before
 	 */
 	@Override
 	public String toString() {
-		String output = "";
-		output += patternLength + "\n";
-		output += bpm + "\n";
-		for (Pattern pattern: patterns) {
-			output += pattern.getPattern() + " " + pattern.getSound().getFilePath()  + "\n";
+		Snapshot current = state.get();
+		StringBuilder output = new StringBuilder(32 + current.patterns.length * (current.patternLength + 64));
+		output.append(current.patternLength);
+		if (current.stepsPerBeat != DEFAULT_STEPS_PER_BEAT) {
+			output.append(' ').append(current.stepsPerBeat);
 		}
-		return output;
+		output.append('\n');
+		output.append(formatBpm(current.bpm)).append('\n');
+		for (Pattern pattern: current.patterns) {
+			output.append(pattern.getPattern());
+			if (pattern.getStepsPerBeat() != Pattern.LOOP_STEPS_PER_BEAT) {
+				output.append(" @res=").append(pattern.getStepsPerBeat());
+			}
+			if (pattern.hasOwnLength()) {
+				output.append(" @len=").append(pattern.getLength());
+			}
+			pattern.appendStepDetails(output);
+			output.append(' ').append(pattern.getSound().getFilePath()).append('\n');
+		}
+		return output.toString();
 	}
 	
+	/**
+	 * The state of a loop at one moment, never modified once made. Edits build a new one, recompiling the trigger table.
+	 */
+	static final class Snapshot {
+		
+		/**
+		 * The patterns in the loop, never modified
+		 */
+		private final Pattern[] patterns;
+		/**
+		 * Value of the beats per minute at which the loop will play
+		 */
+		private final double bpm;
+		/**
+		 * Length of the loop in steps of stepsPerBeat
+		 */
+		private final int patternLength;
+		/**
+		 * The number of steps in each beat
+		 */
+		private final int stepsPerBeat;
+		/**
+		 * True if at the end of the pattern, it plays the pattern again immediatly after
+		 */
+		private final boolean repeat;
+		/**
+		 * The patterns with a beat during each step of the loop, indexed by step, so playing a step needs no per-pattern checks
+		 */
+		private final Pattern[][] triggers;
+		/**
+		 * The index of each trigger's step within its own pattern, which differs from the loop's step when the pattern
+		 * has its own steps per beat
+		 */
+		private final int[][] triggerSteps;
+		/**
+		 * The number of ticks after the start of the loop's step each trigger's step starts
+		 */
+		private final int[][] triggerTicks;
+		/**
+		 * The patterns that keep their own length, whose step is worked out from the position in the loop rather than
+		 * read from the trigger table, as they don't line up with the loop's steps from one cycle to the next
+		 */
+		private final Pattern[] polymetric;
+		/**
+		 * The step mask of each pattern with its own length
+		 */
+		private final long[][] polymetricSteps;
+		/**
+		 * The number of steps of each pattern with its own length
+		 */
+		private final int[] polymetricLengths;
+		/**
+		 * The number of ticks in one step of each pattern with its own length
+		 */
+		private final int[] polymetricTicks;
+		
+		/**
+		 * Creates a snapshot, compiling the trigger table from the patterns' current steps
+		 * @param patterns The patterns in the loop, which must not be modified afterwards
+		 * @param bpm The beats per minute
+		 * @param patternLength The length of the loop in steps
+		 * @param stepsPerBeat The number of steps in each beat
+		 * @param repeat True if the loop repeats
+		 */
+		private Snapshot(Pattern[] patterns, double bpm, int patternLength, int stepsPerBeat, boolean repeat) {
+			this.patterns = patterns;
+			this.bpm = bpm;
+			this.patternLength = patternLength;
+			this.stepsPerBeat = stepsPerBeat;
+			this.repeat = repeat;
+			this.triggers = new Pattern[patternLength][];
+			this.triggerSteps = new int[patternLength][];
+			this.triggerTicks = new int[patternLength][];
+			boolean[] ownLength = new boolean[patterns.length];
+			int count = 0;
+			for (int i = 0; i < patterns.length; i++) {
+				ownLength[i] = patterns[i].hasOwnLength();
+				count += ownLength[i] ? 1 : 0;
+			}
+			this.polymetric = new Pattern[count];
+			this.polymetricSteps = new long[count][];
+			this.polymetricLengths = new int[count];
+			this.polymetricTicks = new int[count];
+			compile(ownLength);
+		}
+		
+		/**
+		 * Builds the table of patterns with a beat during each step, visiting only the set bits of each pattern's step mask.
+		 * A pattern with its own steps per beat has each of its steps put in the loop step it starts in, with the ticks
+		 * from the start of that step, so every resolution is played from the same table without extra scheduling.
+		 * Patterns with their own length are kept out of the table, with their steps and lengths as they were when compiled.
+		 * @param ownLength Whether each pattern keeps its own length, read once so the table and the counts agree
+		 */
+		private void compile(boolean[] ownLength) {
+			long[][] masks = new long[patterns.length][];
+			int[] ticksPerStep = new int[patterns.length];
+			int[] lengths = new int[patterns.length];
+			int loopTicks = PPQN / stepsPerBeat;
+			int[] counts = new int[patternLength];
+			int p = 0;
+			for (int i = 0; i < patterns.length; i++) {
+				int patternTicks = PPQN / getStepsPerBeat(patterns[i]);
+				masks[i] = patterns[i].getSteps();
+				ticksPerStep[i] = patternTicks;
+				if (ownLength[i]) {
+					polymetric[p] = patterns[i];
+					polymetricSteps[p] = masks[i];
+					polymetricLengths[p] = Math.max(1, Math.min(patterns[i].getLength(), masks[i].length << 6));
+					polymetricTicks[p++] = patternTicks;
+					continue;
+				}
+				lengths[i] = getLengthOf(patterns[i]);
+				forEachStep(masks[i], lengths[i], step -> counts[(int) ((long) step * patternTicks / loopTicks)]++);
+			}
+			for (int step = 0; step < patternLength; step++) {
+				triggers[step] = counts[step] == 0 ? NO_TRIGGERS : new Pattern[counts[step]];
+				triggerSteps[step] = counts[step] == 0 ? NO_TICKS : new int[counts[step]];
+				triggerTicks[step] = counts[step] == 0 ? NO_TICKS : new int[counts[step]];
+				counts[step] = 0;
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				if (ownLength[i]) {
+					continue;
+				}
+				Pattern pattern = patterns[i];
+				int patternTicks = ticksPerStep[i];
+				forEachStep(masks[i], lengths[i], step -> {
+					long tick = (long) step * patternTicks;
+					int row = (int) (tick / loopTicks);
+					triggers[row][counts[row]] = pattern;
+					triggerSteps[row][counts[row]] = step;
+					triggerTicks[row][counts[row]++] = (int) (tick % loopTicks);
+				});
+			}
+			if (loopTicks > 1) {
+				for (int step = 0; step < patternLength; step++) {
+					sortByTick(step);
+				}
+			}
+		}
+		
+		/**
+		 * Sorts the triggers of a step by the tick they start at, keeping the order of the patterns for equal ticks.
+		 * Steps hold few triggers, so an insertion sort is used.
+		 * @param step The index of the loop's step
+		 */
+		private void sortByTick(int step) {
+			Pattern[] patterns = triggers[step];
+			int[] steps = triggerSteps[step];
+			int[] ticks = triggerTicks[step];
+			for (int i = 1; i < ticks.length; i++) {
+				Pattern pattern = patterns[i];
+				int patternStep = steps[i];
+				int tick = ticks[i];
+				int j = i - 1;
+				for (; j >= 0 && ticks[j] > tick; j--) {
+					patterns[j + 1] = patterns[j];
+					steps[j + 1] = steps[j];
+					ticks[j + 1] = ticks[j];
+				}
+				patterns[j + 1] = pattern;
+				steps[j + 1] = patternStep;
+				ticks[j + 1] = tick;
+			}
+		}
+		
+		/**
+		 * Returns the number of a pattern's own steps that fill the loop's pattern length, the last one cut short
+		 * if the pattern's steps don't fit exactly
+		 * @param pattern The pattern
+		 * @return The number of steps the pattern should have in this loop
+		 */
+		int getLengthOf(Pattern pattern) {
+			return getLengthAt(pattern.getStepsPerBeat());
+		}
+		
+		/**
+		 * Returns the number of steps at the given steps per beat that fill the loop's pattern length
+		 * @param patternStepsPerBeat The steps per beat, or Pattern.LOOP_STEPS_PER_BEAT for the loop's
+		 * @return The number of steps, the last one cut short if they don't fit exactly
+		 */
+		int getLengthAt(int patternStepsPerBeat) {
+			long ticks = (long) patternLength * (PPQN / stepsPerBeat);
+			int patternTicks = PPQN / (patternStepsPerBeat == Pattern.LOOP_STEPS_PER_BEAT ? stepsPerBeat : patternStepsPerBeat);
+			return (int) Math.min(Integer.MAX_VALUE, (ticks + patternTicks - 1) / patternTicks);
+		}
+		
+		/**
+		 * Returns the steps per beat a pattern is played at
+		 * @param pattern The pattern
+		 * @return The pattern's own steps per beat, or the loop's if it follows the loop
+		 */
+		private int getStepsPerBeat(Pattern pattern) {
+			int own = pattern.getStepsPerBeat();
+			return own == Pattern.LOOP_STEPS_PER_BEAT ? stepsPerBeat : own;
+		}
+		
+		/**
+		 * Calls the action with the index of each set bit of the step mask below the given length
+		 * @param mask The step mask
+		 * @param patternLength The number of steps to visit
+		 * @param action Called with each step index
+		 */
+		private static void forEachStep(long[] mask, int patternLength, IntConsumer action) {
+			int words = Math.min(mask.length, (patternLength + 63) >>> 6);
+			for (int word = 0; word < words; word++) {
+				long bits = mask[word];
+				while (bits != 0) {
+					int step = (word << 6) + Long.numberOfTrailingZeros(bits);
+					if (step >= patternLength) {
+						break;
+					}
+					action.accept(step);
+					bits &= bits - 1;
+				}
+			}
+		}
+		
+		/**
+		 * Starts the sounds of each pattern that has a beat at the given position in the given mixer
+		 * @param beat The index of the beat to play
+		 * @param mixer The mixer to start the sounds in
+		 * @return False when the beat was out the range 0 <= beat < patternLength
+		 */
+		boolean playBeat(int beat, Mixer mixer) {
+			if (beat < triggers.length && beat >= 0) {
+				for (Pattern pattern: triggers[beat]) {
+					mixer.start(pattern.getSound(), pattern);
+				}
+				return true;
+			} else return false;
+		}
+		
+		/**
+		 * Starts the hits of the given loop step that are due at the given tick of it, each at its step's velocity,
+		 * probability and nudge. The sequencer stops at the start of every step and at each tick within it where
+		 * a pattern with finer steps has a hit, so every resolution plays from this one table.
+		 * Hits nudged before the start of their loop step have to be started ahead of it, so they're played by playEarly.
+		 * Other hits nudged early are started at the start of their step, and hits nudged late at their own tick,
+		 * each delayed to its exact frame.
+		 * Patterns with their own length play the step found by dividing the ticks since the loop started by the ticks
+		 * in one of their steps, modulo their length, so they need no table and nothing is allocated.
+		 * @param step The index of the loop's step to play
+		 * @param position The number of the loop's steps played before this one since the loop started
+		 * @param tick The tick within the step being played, 0 at its start
+		 * @param mixer The mixer to start the sounds in
+		 * @param random Rolls each hit against its step's probability
+		 * @param stepDelay The number of frames from the current frame to the tick being played
+		 */
+		void playStep(int step, long position, int tick, Mixer mixer, SplittableRandom random, long stepDelay) {
+			play(step, position, tick, mixer, random, stepDelay, 0, 0);
+		}
+		
+		/**
+		 * Starts the hits of the given loop step that are nudged to start before it, between the given numbers of ticks
+		 * before its start. A hit can be nudged up to Pattern.MAX_NUDGE early, which is several steps at finer resolutions,
+		 * so the sequencer plays each step's early hits in bands, starting the ones that fall within the step being played.
+		 * @param step The index of the loop's step the hits belong to
+		 * @param position The number of the loop's steps played before this one since the loop started
+		 * @param mixer The mixer to start the sounds in
+		 * @param random Rolls each hit against its step's probability
+		 * @param stepDelay The number of frames from the current frame to the start of the step, the hits are delayed
+		 * to their exact frame before it, or started at once if that has passed
+		 * @param from Hits starting more than this many ticks before the step are started
+		 * @param to Hits starting at most this many ticks before the step are started, must be more than from
+		 */
+		void playEarly(int step, long position, Mixer mixer, SplittableRandom random, long stepDelay, int from, int to) {
+			play(step, position, 0, mixer, random, stepDelay, from, to);
+		}
+		
+		/**
+		 * Starts the hits of the given loop step that are due, for playStep and playEarly
+		 * @param step The index of the loop's step to play
+		 * @param position The number of the loop's steps played before this one since the loop started
+		 * @param tick The tick within the step being played, 0 at its start
+		 * @param mixer The mixer to start the sounds in
+		 * @param random Rolls each hit against its step's probability
+		 * @param stepDelay The number of frames from the current frame to the tick being played
+		 * @param from Early hits starting more than this many ticks before the step are started
+		 * @param to Early hits starting at most this many ticks before the step are started, 0 to start the hits due at the tick
+		 */
+		private void play(int step, long position, int tick, Mixer mixer, SplittableRandom random, long stepDelay,
+				int from, int to) {
+			double framesPerTick = getFramesPerBeat() / PPQN;
+			if (step < triggers.length && step >= 0) {
+				Pattern[] patterns = triggers[step];
+				int[] ticks = triggerTicks[step];
+				for (int i = 0; i < patterns.length; i++) {
+					playHit(patterns[i], triggerSteps[step][i], ticks[i], tick, mixer, random, stepDelay, from, to, framesPerTick);
+				}
+			}
+			int loopTicks = PPQN / stepsPerBeat;
+			long start = position * loopTicks;
+			for (int p = 0; p < polymetric.length; p++) {
+				int patternTicks = polymetricTicks[p];
+				for (long k = (start + patternTicks - 1) / patternTicks; k * patternTicks < start + loopTicks; k++) {
+					int patternStep = (int) (k % polymetricLengths[p]);
+					if (isStep(polymetricSteps[p], patternStep)) {
+						playHit(polymetric[p], patternStep, (int) (k * patternTicks - start), tick, mixer, random,
+								stepDelay, from, to, framesPerTick);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Starts one hit of a step if it's due at the given tick, at its step's velocity, probability and nudge
+		 * @param pattern The pattern of the hit
+		 * @param patternStep The index of the step within the pattern
+		 * @param offset The number of ticks after the start of the loop's step the pattern's step starts
+		 * @param tick The tick within the loop's step being played
+		 * @param mixer The mixer to start the sound in
+		 * @param random Rolls the hit against its step's probability
+		 * @param stepDelay The number of frames from the current frame to the tick being played
+		 * @param from Early hits starting more than this many ticks before the loop's step are due
+		 * @param to Early hits starting at most this many ticks before the loop's step are due, 0 when no early hits are
+		 * @param framesPerTick The exact length of a tick in frames
+		 */
+		private static void playHit(Pattern pattern, int patternStep, int offset, int tick, Mixer mixer, SplittableRandom random,
+				long stepDelay, int from, int to, double framesPerTick) {
+			int nudge = pattern.getNudge(patternStep);
+			boolean due;
+			if (to > 0) {
+				due = -(offset + nudge) > from && -(offset + nudge) <= to;
+			} else if (tick == 0) {
+				due = offset + nudge >= 0 && (nudge < 0 || offset == 0);
+			} else {
+				due = offset == tick && nudge >= 0;
+			}
+			if (!due) {
+				return;
+			}
+			int velocity = pattern.getVelocity(patternStep);
+			int probability = pattern.getProbability(patternStep);
+			if (velocity == 0 || (probability < Pattern.MAX_PROBABILITY && random.nextInt(Pattern.MAX_PROBABILITY) >= probability)) {
+				return;
+			}
+			long delay = Math.max(0, stepDelay + Math.round((offset + nudge - tick) * framesPerTick));
+			mixer.start(pattern.getSound(), pattern, (int) delay, velocity / (float) Pattern.MAX_VELOCITY);
+		}
+		
+		/**
+		 * Returns whether a step is set in a step mask
+		 * @param mask The step mask
+		 * @param step The index of the step
+		 * @return True if the step's bit is set
+		 */
+		private static boolean isStep(long[] mask, int step) {
+			return (step >>> 6) < mask.length && (mask[step >>> 6] & (1L << step)) != 0;
+		}
+		
+		/**
+		 * Returns the next tick within the given step at which a pattern with finer steps has a hit
+		 * @param step The index of the loop's step
+		 * @param position The number of the loop's steps played before this one since the loop started
+		 * @param tick The tick within the step just played
+		 * @return The next tick with a hit, or the number of ticks in a step when there are none left in it
+		 */
+		int nextTick(int step, long position, int tick) {
+			int loopTicks = PPQN / stepsPerBeat;
+			int next = loopTicks;
+			if (step < triggerTicks.length && step >= 0) {
+				for (int ticks: triggerTicks[step]) {
+					if (ticks > tick) {
+						next = ticks;
+						break;
+					}
+				}
+			}
+			long start = position * loopTicks;
+			for (int p = 0; p < polymetric.length; p++) {
+				int patternTicks = polymetricTicks[p];
+				for (long k = (start + tick) / patternTicks + 1; k * patternTicks < start + next; k++) {
+					if (isStep(polymetricSteps[p], (int) (k % polymetricLengths[p]))) {
+						next = (int) (k * patternTicks - start);
+						break;
+					}
+				}
+			}
+			return next;
+		}
+		
+		/**
+		 * Returns the number of times the pattern length is played before every pattern with its own length lines up
+		 * with the start of the loop again
+		 * @return The number of bars in the full cycle, or Long.MAX_VALUE when it's too long to count
+		 */
+		long getCycleBars() {
+			long barTicks = (long) patternLength * (PPQN / stepsPerBeat);
+			long cycleTicks = barTicks;
+			try {
+				for (int p = 0; p < polymetric.length; p++) {
+					long patternTicks = (long) polymetricLengths[p] * polymetricTicks[p];
+					cycleTicks = Math.multiplyExact(cycleTicks / gcd(cycleTicks, patternTicks), patternTicks);
+				}
+			} catch (ArithmeticException e) {
+				return Long.MAX_VALUE;
+			}
+			return cycleTicks / barTicks;
+		}
+		
+		/**
+		 * Returns the greatest common divisor of two numbers
+		 * @param a A number greater than 0
+		 * @param b A number greater than 0
+		 * @return The largest number dividing both
+		 */
+		private static long gcd(long a, long b) {
+			while (b != 0) {
+				long remainder = a % b;
+				a = b;
+				b = remainder;
+			}
+			return a;
+		}
+		
+		/**
+		 * Returns the exact length of one beat in sample frames at this snapshot's bpm
+		 * @return The number of frames between beats, usually fractional
+		 */
+		double getFramesPerBeat() {
+			return AudioEngine.SAMPLE_RATE * 60.0 / bpm;
+		}
+		
+		/**
+		 * Returns the exact length of one of the loop's steps in sample frames
+		 * @return The number of frames between steps, usually fractional
+		 */
+		double getFramesPerStep() {
+			return getFramesPerBeat() / stepsPerBeat;
+		}
+		
+		/**
+		 * Returns the number of steps in each beat
+		 * @return The steps per beat
+		 */
+		int getStepsPerBeat() {
+			return stepsPerBeat;
+		}
+		
+		/**
+		 * Returns how many of the loop's steps ahead a hit can start when nudged the furthest early
+		 * @return The number of steps Pattern.MAX_NUDGE covers, rounded up
+		 */
+		int getEarlySteps() {
+			int ticksPerStep = PPQN / stepsPerBeat;
+			return (Pattern.MAX_NUDGE + ticksPerStep - 1) / ticksPerStep;
+		}
+		
+		/**
+		 * Returns the patterns in the loop, which must not be modified
+		 * @return The patterns, in the order they were added
+		 */
+		Pattern[] getPatterns() {
+			return patterns;
+		}
+		
+		/**
+		 * Returns the beats per minute
+		 * @return The bpm value
+		 */
+		double getBpm() {
+			return bpm;
+		}
+		
+		/**
+		 * Returns the length of the patterns
+		 * @return The number of steps
+		 */
+		int getPatternLength() {
+			return patternLength;
+		}
+		
+		/**
+		 * Returns whether the loop repeats
+		 * @return True if the loop repeats
+		 */
+		boolean getRepeat() {
+			return repeat;
+		}
+	}
 }
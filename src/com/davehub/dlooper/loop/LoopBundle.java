@@ -0,0 +1,392 @@
+package com.davehub.dlooper.loop;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads and writes .dlpack bundles, a loop together with the audio of every sound it uses, so it can be moved between machines.
+ * Each sample is stored once however many sounds use it, deduplicated by a SHA-256 hash of its decoded audio.
+ * Samples are stored already decoded, so opening a bundle maps it and hands slices of the mapping straight to the
+ * SampleCache once the whole bundle has been read, without decoding or extracting anything to disk.
+ *
+ * Values are big endian, apart from the sample data:
+ * Header: int magic "DLPK", short version, short reserved, int numSamples, int numSounds, int loopBytes
+ * Samples: numSamples times 32 bytes SHA-256, long offset, long byteLength
+ * Sounds: numSounds times int sampleIndex, int byteLength then that many bytes of UTF-8, the path the sound was loaded from
+ * Loop: loopBytes of the loop in the .dlb format @see BinaryLoopFile
+ * Sample data: interleaved little endian float PCM in the engine format, each sample starting on an 8 byte boundary
+ */
+public class LoopBundle {
+	
+	/**
+	 * The extension of loop bundles
+	 */
+	public static final String EXTENSION = ".dlpack";
+	/**
+	 * The first four bytes of every bundle, "DLPK"
+	 */
+	private static final int MAGIC = 0x444C504B;
+	/**
+	 * The version of the format written
+	 */
+	private static final short VERSION = 1;
+	/**
+	 * The size of the header in bytes
+	 */
+	private static final int HEADER_BYTES = 20;
+	/**
+	 * The size of a SHA-256 hash in bytes
+	 */
+	private static final int HASH_BYTES = 32;
+	/**
+	 * The size of the chunks sample data is hashed and written in
+	 */
+	private static final int CHUNK = 64 * 1024;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Only static methods
+	 */
+	private LoopBundle() {
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Returns whether the given path names a loop bundle
+	 * @param filePath The path to check
+	 * @return True if the path ends with .dlpack
+	 */
+	public static boolean isBundle(String filePath) {
+		return filePath.toLowerCase().endsWith(EXTENSION);
+	}
+	
+	/**
+	 * Opens the loop in the given bundle. Its samples stay mapped from the file for as long as they're used.
+	 * @param filePath The path of the bundle
+	 * @return The loop in the bundle, with every sound ready to play
+	 * @throws FileNotFoundException When the file doesn't exist
+	 * @throws IOException When the file can't be read
+	 * @throws Exception When the bundle is damaged, with the byte offset of the problem
+	 */
+	public static Loop read(String filePath) throws IOException, Exception {
+		try {
+			return readAsync(filePath).get();
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+	
+	/**
+	 * Opens the loop in the given bundle. Nothing is decoded so this finishes on the calling thread,
+	 * it returns a future to match LoopReader and BinaryLoopFile.
+	 * @param filePath The path of the bundle
+	 * @return A future completed with the loop, or completed exceptionally with the same exceptions as read
+	 */
+	public static CompletableFuture<Loop> readAsync(String filePath) {
+		MappedByteBuffer in;
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return CompletableFuture.failedFuture(new Exception("The bundle is too large to open, " + filePath + " is over 2 GB"));
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return CompletableFuture.failedFuture(new FileNotFoundException(filePath));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		HashMap<String, Integer> sounds = new HashMap<String, Integer>();
+		String[] keys;
+		Sample[] samples;
+		ByteBuffer loop;
+		try {
+			if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC) {
+				throw error(0, "Not a DLooper bundle");
+			}
+			short version = in.getShort();
+			if (version != VERSION) {
+				throw error(4, "Unsupported version " + version + ", expected " + VERSION);
+			}
+			in.getShort();
+			int numSamples = in.getInt();
+			int numSounds = in.getInt();
+			int loopBytes = in.getInt();
+			if (numSamples < 0 || numSounds < 0 || loopBytes < 0
+					|| (long) numSamples * (HASH_BYTES + 2 * Long.BYTES) + (long) numSounds * 2 * Integer.BYTES + loopBytes > in.remaining()) {
+				throw error(8, "The number of samples or sounds doesn't fit in the file");
+			}
+			keys = new String[numSamples];
+			samples = new Sample[numSamples];
+			for (int i = 0; i < numSamples; i++) {
+				int entry = in.position();
+				byte[] hash = new byte[HASH_BYTES];
+				in.get(hash);
+				long offset = in.getLong();
+				long length = in.getLong();
+				if (offset < 0 || length < 0 || offset + length > in.capacity() || (offset & 7) != 0
+						|| length % ((long) Float.BYTES * AudioEngine.CHANNELS) != 0) {
+					throw error(entry, "Sample " + i + " doesn't fit in the file");
+				}
+				keys[i] = "sha256:" + hex(hash);
+				samples[i] = map(in, (int) offset, (int) length);
+			}
+			for (int i = 0; i < numSounds; i++) {
+				int entry = in.position();
+				int sample = in.getInt();
+				int length = in.getInt();
+				if (sample < 0 || sample >= numSamples || length <= 0 || length > in.remaining()) {
+					throw error(entry, "Sound " + i + " doesn't fit in the file");
+				}
+				byte[] path = new byte[length];
+				in.get(path);
+				sounds.put(new String(path, StandardCharsets.UTF_8), sample);
+			}
+			if (loopBytes > in.remaining()) {
+				throw error(in.position(), "The file ends early");
+			}
+			loop = in.duplicate();
+			loop.limit(in.position() + loopBytes);
+		} catch (BufferUnderflowException e) {
+			return CompletableFuture.failedFuture(error(in.position(), "The file ends early"));
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		//the samples are only shared once the loop has been read and every sound it uses is in the bundle,
+		//so a damaged bundle leaves nothing in the SampleCache
+		CompletableFuture<Void> parsed = new CompletableFuture<Void>();
+		ArrayList<String> missing = new ArrayList<String>();
+		CompletableFuture<Loop> read = BinaryLoopFile.readAsync(loop, path -> {
+			Integer sample = sounds.get(path);
+			if (sample != null) {
+				return parsed.thenApply(done -> SampleCache.getInstance().share(keys[sample], samples[sample]));
+			}
+			missing.add(path);
+			return CompletableFuture.failedFuture(new Exception("Sound " + path + " isn't in the bundle"));
+		});
+		if (!read.isDone()) {
+			if (missing.isEmpty()) {
+				parsed.complete(null);
+			} else parsed.completeExceptionally(new Exception("Sound " + missing.get(0) + " isn't in the bundle"));
+		}
+		return read;
+	}
+	
+	/**
+	 * Wraps part of the mapped bundle as a sample, without copying it
+	 * @param in The mapped bundle
+	 * @param offset The position of the sample data
+	 * @param length The length of the sample data in bytes
+	 * @return The sample reading the mapped data
+	 */
+	private static Sample map(ByteBuffer in, int offset, int length) {
+		ByteBuffer data = in.duplicate();
+		data.position(offset).limit(offset + length);
+		return new Sample(data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+	}
+	
+	/**
+	 * Writes the given loop and the audio of every sound it uses to a bundle, creating or replacing it.
+	 * The audio is taken from the sounds themselves, so a loop opened from a bundle can be bundled again
+	 * without its original files.
+	 * The bundle is written to a temporary file beside it which then replaces it, so a bundle that's open keeps
+	 * reading its old contents from its mapping, which is how a bundle can be saved over the file it was opened from.
+	 * @param loop The loop to write
+	 * @param filePath The path of the bundle to write
+	 * @throws IOException When the file can't be written
+	 */
+	public static void write(Loop loop, String filePath) throws IOException {
+		Loop.Snapshot current = loop.getSnapshot();
+		ByteBuffer encoded = BinaryLoopFile.encode(current);
+		
+		//one entry per distinct audio, found by hash, and the entry each sound path uses
+		LinkedHashMap<String, Integer> soundSamples = new LinkedHashMap<String, Integer>();
+		IdentityHashMap<Sample, Integer> known = new IdentityHashMap<Sample, Integer>();
+		HashMap<String, Integer> hashes = new HashMap<String, Integer>();
+		ArrayList<Sample> samples = new ArrayList<Sample>();
+		ArrayList<byte[]> sampleHashes = new ArrayList<byte[]>();
+		for (Pattern pattern: current.getPatterns()) {
+			DrumSound sound = pattern.getSound();
+			if (soundSamples.containsKey(sound.getFilePath())) {
+				continue;
+			}
+			Sample sample = sound.getSample();
+			Integer index = known.get(sample);
+			if (index == null) {
+				byte[] hash = hash(sample);
+				index = hashes.get(hex(hash));
+				if (index == null) {
+					index = samples.size();
+					hashes.put(hex(hash), index);
+					samples.add(sample);
+					sampleHashes.add(hash);
+				}
+				known.put(sample, index);
+			}
+			soundSamples.put(sound.getFilePath(), index);
+		}
+		
+		long tableBytes = HEADER_BYTES + (long) samples.size() * (HASH_BYTES + 2 * Long.BYTES);
+		ArrayList<byte[]> paths = new ArrayList<byte[]>();
+		for (String path: soundSamples.keySet()) {
+			byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+			paths.add(bytes);
+			tableBytes += 2 * Integer.BYTES + bytes.length;
+		}
+		long offset = align(tableBytes + encoded.remaining());
+		long end = offset;
+		for (Sample sample: samples) {
+			end = align(end + sample.getSizeInBytes());
+		}
+		if (end > Integer.MAX_VALUE) {
+			throw new IOException("Loop and samples are too large to save as " + EXTENSION);
+		}
+		ByteBuffer tables = ByteBuffer.allocate((int) tableBytes);
+		tables.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+		tables.putInt(samples.size()).putInt(paths.size()).putInt(encoded.remaining());
+		for (int i = 0; i < samples.size(); i++) {
+			tables.put(sampleHashes.get(i)).putLong(offset).putLong(samples.get(i).getSizeInBytes());
+			offset = align(offset + samples.get(i).getSizeInBytes());
+		}
+		int i = 0;
+		for (Map.Entry<String, Integer> sound: soundSamples.entrySet()) {
+			tables.putInt(sound.getValue()).putInt(paths.get(i).length).put(paths.get(i));
+			i++;
+		}
+		tables.flip();
+		
+		Path target = Paths.get(filePath).toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				writeFully(channel, tables);
+				writeFully(channel, encoded);
+				ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+				for (Sample sample: samples) {
+					writeFully(channel, ByteBuffer.allocate((int) (align(channel.position()) - channel.position())));
+					FloatBuffer data = sample.getData();
+					for (int f = 0; f < data.limit(); ) {
+						f = fill(chunk, data, f);
+						writeFully(channel, chunk);
+					}
+				}
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * Hashes the decoded audio of a sample as it's stored in a bundle
+	 * @param sample The sample to hash
+	 * @return The SHA-256 hash of the sample's little endian float PCM
+	 */
+	private static byte[] hash(Sample sample) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer data = sample.getData();
+		for (int f = 0; f < data.limit(); ) {
+			f = fill(chunk, data, f);
+			digest.update(chunk);
+		}
+		return digest.digest();
+	}
+	
+	/**
+	 * Fills a chunk with the little endian bytes of as many of a sample's floats as fit
+	 * @param chunk The little endian buffer to fill, which is flipped ready to read
+	 * @param data The sample's PCM
+	 * @param from The index of the first float to copy
+	 * @return The index of the next float to copy
+	 */
+	private static int fill(ByteBuffer chunk, FloatBuffer data, int from) {
+		chunk.clear();
+		int to = Math.min(data.limit(), from + chunk.capacity() / Float.BYTES);
+		for (int f = from; f < to; f++) {
+			chunk.putFloat(data.get(f));
+		}
+		chunk.flip();
+		return to;
+	}
+	
+	/**
+	 * Writes the whole of a buffer to a channel
+	 * @param channel The channel to write to
+	 * @param buffer The buffer to write from its position to its limit
+	 * @throws IOException When the channel can't be written
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Rounds an offset up to the next 8 byte boundary
+	 * @param offset The offset
+	 * @return The aligned offset
+	 */
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+	
+	/**
+	 * Formats a hash as hexadecimal
+	 * @param hash The hash
+	 * @return The lowercase hex digits
+	 */
+	private static String hex(byte[] hash) {
+		StringBuilder out = new StringBuilder(hash.length * 2);
+		for (byte b: hash) {
+			out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Creates an error at the given position in the bundle
+	 * @param offset The byte offset of the problem
+	 * @param message What is wrong
+	 * @return The exception to throw
+	 */
+	private static Exception error(int offset, String message) {
+		return new Exception("Byte " + offset + ": " + message);
+	}
+}
@@ -0,0 +1,501 @@
+package com.davehub.dlooper.loop;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads .dlf loop files, the format written by Loop.toString, one line at a time.
+ * Each line is validated as soon as it's read, errors give the line and column of the problem,
+ * and each pattern's sound starts decoding in the background as soon as its line is parsed.
+ */
+public class LoopReader {
+	
+	/**
+	 * The symbol for an audible beat in a saved pattern
+	 */
+	private static final char BEAT_SYMBOL = 'x';
+	/**
+	 * The symbol for a pause in a saved pattern
+	 */
+	private static final char PAUSE_SYMBOL = '-';
+	/**
+	 * The symbol starting the settings of one step, written between a pattern and its sound's path
+	 */
+	private static final char STEP_SYMBOL = '@';
+	/**
+	 * Starts the steps per beat of a pattern with its own, written between a pattern and its sound's path
+	 */
+	private static final String RESOLUTION_PREFIX = "@res=";
+	/**
+	 * Starts the length of a pattern that keeps its own, written between a pattern and its sound's path
+	 */
+	private static final String LENGTH_PREFIX = "@len=";
+	/**
+	 * The path of the file being read
+	 */
+	private final String filePath;
+	/**
+	 * The number of the line last read, starting from 1
+	 */
+	private int lineNumber;
+	/**
+	 * The loop with the settings read, patterns are added once their sounds are decoded
+	 */
+	private Loop loop;
+	/**
+	 * The pattern lines parsed, in file order
+	 */
+	private final ArrayList<PendingPattern> pending;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a reader for the given file
+	 * @param filePath The path of the .dlf file
+	 */
+	private LoopReader(String filePath) {
+		this.filePath = filePath;
+		this.lineNumber = 0;
+		this.pending = new ArrayList<PendingPattern>();
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Reads the loop in the given .dlf file
+	 * @param filePath The path of the file to read
+	 * @return The loop described by the file
+	 * @throws FileNotFoundException When the file doesn't exist
+	 * @throws IOException When the file can't be read
+	 * @throws Exception When the file contains errors or a sound can't be loaded, with the line and column of the problem
+	 */
+	public static Loop read(String filePath) throws IOException, Exception {
+		try {
+			return readAsync(filePath).get();
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+	
+	/**
+	 * Reads the patterns in the given .dlf file on the calling thread, leaving their sounds decoding in the background
+	 * @param filePath The path of the file to read
+	 * @return A future completed with the loop once every sound is decoded, or completed exceptionally with
+	 * the same exceptions as read
+	 */
+	public static CompletableFuture<Loop> readAsync(String filePath) {
+		LoopReader reader = new LoopReader(filePath);
+		try {
+			reader.parse();
+		} catch (NoSuchFileException e) {
+			return CompletableFuture.failedFuture(new FileNotFoundException(filePath));
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<?>[] samples = new CompletableFuture<?>[reader.pending.size()];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = reader.pending.get(i).sample;
+		}
+		return CompletableFuture.allOf(samples).handle((loaded, failure) -> {
+			try {
+				return reader.build();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the settings lines, then each pattern line, starting its sound decoding before reading the next
+	 * @throws IOException When the file can't be read
+	 * @throws Exception When the file contains errors
+	 */
+	private void parse() throws IOException, Exception {
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(filePath), StandardCharsets.UTF_8)) {
+			String lengthLine = nextLine(in, "Pattern Length");
+			int patternLength = parsePatternLength(lengthLine);
+			int stepsPerBeat = parseStepsPerBeat(lengthLine);
+			double bpm = parseBpm(nextLine(in, "Beats Per Minute"));
+			loop = new Loop(bpm, patternLength);
+			loop.setStepsPerBeat(stepsPerBeat);
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (!line.trim().isEmpty()) {
+					pending.add(parsePattern(line));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the parsed patterns to the loop once their sounds are decoded, in the order they're in the file
+	 * @return The loop described by the file
+	 * @throws Exception When a sound can't be loaded, giving the line and column of its path
+	 */
+	private Loop build() throws Exception {
+		ArrayList<Pattern> patterns = new ArrayList<Pattern>(pending.size());
+		for (PendingPattern pattern: pending) {
+			patterns.add(pattern.join());
+		}
+		loop.addPatterns(patterns);
+		return loop;
+	}
+	
+	/**
+	 * Reads the next line, which must be present
+	 * @param in The reader of the file
+	 * @param name What the line holds, for the error message
+	 * @return The line
+	 * @throws Exception When the file has ended
+	 */
+	private String nextLine(BufferedReader in, String name) throws IOException, Exception {
+		String line = in.readLine();
+		lineNumber++;
+		if (line == null) {
+			throw error(1, name + " is missing");
+		}
+		return line;
+	}
+	
+	/**
+	 * Parses the pattern length from the pattern length line, the number before any steps per beat
+	 * @param line The line
+	 * @return The pattern length
+	 * @throws Exception When the line doesn't start with a whole number from 1 to Loop.MAX_PATTERN_LENGTH
+	 */
+	private int parsePatternLength(String line) throws Exception {
+		String value = line.trim();
+		int column = line.indexOf(value) + 1;
+		if (value.indexOf(' ') >= 0) {
+			value = value.substring(0, value.indexOf(' '));
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				throw error(column + i, "Pattern Length should be only numeric");
+			}
+		}
+		if (value.isEmpty() || value.length() > 9 || Integer.parseInt(value) <= 0 || Integer.parseInt(value) > Loop.MAX_PATTERN_LENGTH) {
+			throw error(column, "Pattern Length should be a whole number from 1 to " + Loop.MAX_PATTERN_LENGTH);
+		}
+		return Integer.parseInt(value);
+	}
+	
+	/**
+	 * Parses the steps per beat from the pattern length line, the number after the pattern length if there is one
+	 * @param line The line
+	 * @return The steps per beat, Loop.DEFAULT_STEPS_PER_BEAT when the line only has the pattern length
+	 * @throws Exception When the steps per beat isn't a whole number that divides Loop.PPQN
+	 */
+	private int parseStepsPerBeat(String line) throws Exception {
+		String value = line.trim();
+		int space = value.indexOf(' ');
+		if (space < 0) {
+			return Loop.DEFAULT_STEPS_PER_BEAT;
+		}
+		int offset = line.indexOf(value);
+		int from = offset + space;
+		while (line.charAt(from) == ' ') {
+			from++;
+		}
+		return parseResolution(line, from, offset + value.length());
+	}
+	
+	/**
+	 * Parses a number of steps per beat
+	 * @param line The line
+	 * @param from The index of the first digit
+	 * @param to The index after the last digit
+	 * @return The steps per beat
+	 * @throws Exception When the characters aren't a whole number that divides Loop.PPQN
+	 */
+	private int parseResolution(String line, int from, int to) throws Exception {
+		int stepsPerBeat = parseNumber(line, from, to, "the number of steps per beat");
+		if (!Loop.isStepsPerBeat(stepsPerBeat)) {
+			throw error(from + 1, "Steps Per Beat should divide " + Loop.PPQN + ", such as 1, 2, 3, 4, 6 or 8");
+		}
+		return stepsPerBeat;
+	}
+	
+	/**
+	 * Parses the bpm line
+	 * @param line The line
+	 * @return The bpm
+	 * @throws Exception When the line isn't a number > 0
+	 */
+	private double parseBpm(String line) throws Exception {
+		String value = line.trim();
+		int column = line.indexOf(value) + 1;
+		boolean point = false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '.' && !point && i > 0 && i < value.length() - 1) {
+				point = true;
+			} else if (!Character.isDigit(c)) {
+				throw error(column + i, "Beats Per Minute should be a number, such as 120 or 128.5");
+			}
+		}
+		if (value.isEmpty() || Double.parseDouble(value) <= 0) {
+			throw error(column, "Beats Per Minute should be a number greater than 0");
+		}
+		return Double.parseDouble(value);
+	}
+	
+	/**
+	 * Parses a pattern line, the pattern then a space then the path of its sound, and starts decoding the sound.
+	 * Between the pattern and the path there can be "@res=3" when the pattern has its own steps per beat,
+	 * and the settings of any steps that aren't at full velocity, always played or on the beat, each a space then
+	 * such as "@2:v=64,p=50,n=-12" for step 2 at velocity 64, played half the time, 12 ticks early.
+	 * Lines without them are read exactly as before they existed.
+	 * @param line The line
+	 * @return The pattern waiting for its sound
+	 * @throws Exception When the pattern contains a character other than 'x' or '-', is longer than its steps in
+	 * the pattern length, has a setting that can't be read or is out of range, or has no sound
+	 */
+	private PendingPattern parsePattern(String line) throws Exception {
+		int space = line.indexOf(' ');
+		int end = space < 0 ? line.length() : space;
+		for (int i = 0; i < end; i++) {
+			char c = line.charAt(i);
+			if (c != BEAT_SYMBOL && c != PAUSE_SYMBOL) {
+				throw error(i + 1, "Unexpected '" + c + "', patterns may only contain '" + BEAT_SYMBOL + "' and '" + PAUSE_SYMBOL + "'");
+			}
+		}
+		if (space < 0 || space == line.length() - 1) {
+			throw error(end + 1, "Expected a space then the path of the pattern's sound file");
+		}
+		byte[][] details = new byte[3][];
+		int stepsPerBeat = Pattern.LOOP_STEPS_PER_BEAT;
+		int ownLength = Pattern.LOOP_LENGTH;
+		int start = space + 1;
+		while (line.charAt(start) == STEP_SYMBOL) {
+			int next = line.indexOf(' ', start);
+			if (next < 0 || next == line.length() - 1) {
+				throw error(next < 0 ? line.length() + 1 : next + 1, "Expected a space then the path of the pattern's sound file");
+			}
+			if (line.startsWith(RESOLUTION_PREFIX, start)) {
+				stepsPerBeat = parseResolution(line, start + RESOLUTION_PREFIX.length(), next);
+			} else if (line.startsWith(LENGTH_PREFIX, start)) {
+				ownLength = parseNumber(line, start + LENGTH_PREFIX.length(), next, "the pattern's length");
+				if (ownLength <= 0 || ownLength > Loop.MAX_PATTERN_LENGTH) {
+					throw error(start + LENGTH_PREFIX.length() + 1, "Pattern's length should be a whole number from 1 to "
+							+ Loop.MAX_PATTERN_LENGTH);
+				}
+			} else {
+				parseStep(line, start, next, end, details);
+			}
+			start = next + 1;
+		}
+		if (ownLength != Pattern.LOOP_LENGTH) {
+			if (end > ownLength) {
+				throw error(ownLength + 1, "Pattern is longer than its own length of " + ownLength);
+			}
+		} else {
+			int length = loop.getSnapshot().getLengthAt(stepsPerBeat);
+			if (end > length) {
+				throw error(length + 1, "Pattern is longer than the Pattern Length of " + length
+							+ (stepsPerBeat == Pattern.LOOP_STEPS_PER_BEAT ? "" : " at " + stepsPerBeat + " steps per beat"));
+			}
+		}
+		String soundPath = line.substring(start);
+		return new PendingPattern(line.substring(0, end), stepsPerBeat, ownLength, details, soundPath,
+				SampleCache.getInstance().getAsync(soundPath), lineNumber, start + 1);
+	}
+	
+	/**
+	 * Parses the settings of one step, such as "@2:v=64,p=50,n=-12", into the pattern's per step arrays
+	 * @param line The line
+	 * @param from The index of the STEP_SYMBOL
+	 * @param to The index after the last character of the settings
+	 * @param steps The number of steps in the pattern
+	 * @param details The velocities, probabilities and nudges read so far, each created when first set
+	 * @throws Exception When the step or a setting can't be read or is out of range
+	 */
+	private void parseStep(String line, int from, int to, int steps, byte[][] details) throws Exception {
+		int colon = line.indexOf(':', from);
+		if (colon < 0 || colon > to) {
+			colon = to;
+		}
+		int step = parseNumber(line, from + 1, colon, "a step number after '" + STEP_SYMBOL + "'");
+		if (step < 0 || step >= steps) {
+			throw error(from + 2, "Step " + step + " is outside the pattern, which has " + steps + " steps");
+		}
+		if (colon == to) {
+			throw error(to + 1, "Expected ':' then the step's settings, such as v=64,p=50,n=-12");
+		}
+		int field = colon + 1;
+		while (field <= to) {
+			int comma = line.indexOf(',', field);
+			if (comma < 0 || comma > to) {
+				comma = to;
+			}
+			if (comma - field < 3 || line.charAt(field + 1) != '=') {
+				throw error(field + 1, "Expected a setting such as v=64, p=50 or n=-12");
+			}
+			char setting = line.charAt(field);
+			int value = parseNumber(line, field + 2, comma, "a whole number after '" + setting + "='");
+			if (setting == 'v' && value >= 0 && value <= Pattern.MAX_VELOCITY) {
+				setDetail(details, 0, steps, Pattern.MAX_VELOCITY)[step] = (byte) value;
+			} else if (setting == 'p' && value >= 0 && value <= Pattern.MAX_PROBABILITY) {
+				setDetail(details, 1, steps, Pattern.MAX_PROBABILITY)[step] = (byte) value;
+			} else if (setting == 'n' && value >= -Pattern.MAX_NUDGE && value <= Pattern.MAX_NUDGE) {
+				setDetail(details, 2, steps, 0)[step] = (byte) value;
+			} else if (setting == 'v') {
+				throw error(field + 3, "Velocity should be from 0 to " + Pattern.MAX_VELOCITY);
+			} else if (setting == 'p') {
+				throw error(field + 3, "Probability should be a percentage from 0 to " + Pattern.MAX_PROBABILITY);
+			} else if (setting == 'n') {
+				throw error(field + 3, "Nudge should be from -" + Pattern.MAX_NUDGE + " to " + Pattern.MAX_NUDGE + " ticks");
+			} else {
+				throw error(field + 1, "Unknown setting '" + setting + "', expected v for velocity, p for probability or n for nudge");
+			}
+			field = comma + 1;
+		}
+	}
+	
+	/**
+	 * Returns one of a pattern's per step arrays, creating it filled with the default value the first time
+	 * @param details The velocities, probabilities and nudges
+	 * @param index Which of the arrays to return
+	 * @param steps The number of steps in the pattern
+	 * @param defaultValue The value of steps without the setting
+	 * @return The array
+	 */
+	private static byte[] setDetail(byte[][] details, int index, int steps, int defaultValue) {
+		if (details[index] == null) {
+			details[index] = new byte[steps];
+			Arrays.fill(details[index], (byte) defaultValue);
+		}
+		return details[index];
+	}
+	
+	/**
+	 * Parses a whole number, which may be negative, from part of a line
+	 * @param line The line
+	 * @param from The index of the first character
+	 * @param to The index after the last character
+	 * @param expected What the number is, for the error message
+	 * @return The number
+	 * @throws Exception When the characters aren't a whole number
+	 */
+	private int parseNumber(String line, int from, int to, String expected) throws Exception {
+		int digits = from < to && line.charAt(from) == '-' ? from + 1 : from;
+		if (digits == to || to - digits > 9) {
+			throw error(from + 1, "Expected " + expected);
+		}
+		for (int i = digits; i < to; i++) {
+			if (!Character.isDigit(line.charAt(i))) {
+				throw error(i + 1, "Expected " + expected);
+			}
+		}
+		return Integer.parseInt(line.substring(from, to));
+	}
+	
+	/**
+	 * Creates an error for the current line
+	 * @param column The column of the problem, starting from 1
+	 * @param message What is wrong
+	 * @return The exception to throw
+	 */
+	private Exception error(int column, String message) {
+		return new Exception("Line " + lineNumber + ", column " + column + ": " + message);
+	}
+	
+	/**
+	 * A parsed pattern line whose sound is still being decoded
+	 */
+	private static class PendingPattern {
+		
+		/**
+		 * The pattern string
+		 */
+		private final String steps;
+		/**
+		 * The pattern's own steps per beat, or Pattern.LOOP_STEPS_PER_BEAT
+		 */
+		private final int stepsPerBeat;
+		/**
+		 * The pattern's own length, or Pattern.LOOP_LENGTH
+		 */
+		private final int ownLength;
+		/**
+		 * The velocities, probabilities and nudges of the steps, each null when every step has the default
+		 */
+		private final byte[][] details;
+		/**
+		 * The path of the sound file
+		 */
+		private final String soundPath;
+		/**
+		 * The sound being decoded
+		 */
+		private final CompletableFuture<Sample> sample;
+		/**
+		 * The line the pattern was on
+		 */
+		private final int line;
+		/**
+		 * The column the sound path starts at
+		 */
+		private final int column;
+		
+		/**
+		 * Creates a pending pattern
+		 * @param steps The pattern string
+		 * @param stepsPerBeat The pattern's own steps per beat, or Pattern.LOOP_STEPS_PER_BEAT
+		 * @param ownLength The pattern's own length, or Pattern.LOOP_LENGTH
+		 * @param details The velocities, probabilities and nudges of the steps, each null when every step has the default
+		 * @param soundPath The path of the sound file
+		 * @param sample The sound being decoded
+		 * @param line The line the pattern was on
+		 * @param column The column the sound path starts at
+		 */
+		private PendingPattern(String steps, int stepsPerBeat, int ownLength, byte[][] details, String soundPath,
+				CompletableFuture<Sample> sample, int line, int column) {
+			this.steps = steps;
+			this.stepsPerBeat = stepsPerBeat;
+			this.ownLength = ownLength;
+			this.details = details;
+			this.soundPath = soundPath;
+			this.sample = sample;
+			this.line = line;
+			this.column = column;
+		}
+		
+		/**
+		 * Waits for the sound to be decoded and creates the pattern
+		 * @return The pattern
+		 * @throws Exception When the sound can't be loaded, giving the line and column of its path
+		 */
+		private Pattern join() throws Exception {
+			try {
+				Pattern pattern = new Pattern(new DrumSound(soundPath, sample.get()));
+				pattern.setPattern(steps);
+				pattern.setStepsPerBeat(stepsPerBeat);
+				pattern.setOwnLength(ownLength);
+				pattern.setStepDetails(details[0], details[1], details[2]);
+				return pattern;
+			} catch (ExecutionException e) {
+				throw new Exception("Line " + line + ", column " + column + ": " + e.getCause().getMessage());
+			}
+		}
+	}
+}
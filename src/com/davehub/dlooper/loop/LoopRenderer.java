@@ -0,0 +1,173 @@
+package com.davehub.dlooper.loop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Renders a Loop or an Arrangement straight to a WAV file as fast as the CPU allows, using the same Sequencer and Mixer
+ * as playback but without an audio device. The loop is copied first, so it can keep playing or be edited while rendering.
+ */
+public class LoopRenderer {
+	
+	/**
+	 * The loop being rendered, a copy of the one given
+	 */
+	private final Loop loop;
+	/**
+	 * The number of times the loop's pattern is played
+	 */
+	private final int bars;
+	/**
+	 * The arrangement being rendered once through, a copy of the one given, or null when rendering a loop
+	 */
+	private final Arrangement arrangement;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a renderer for the given loop
+	 * @param loop The loop to render
+	 * @param bars The number of times to play through the pattern, must be > 0
+	 */
+	public LoopRenderer(Loop loop, int bars) {
+		this.loop = loop.copy();
+		this.bars = bars;
+		this.arrangement = null;
+	}
+	
+	/**
+	 * Creates a renderer that plays the given arrangement through once, ignoring its repeat setting
+	 * @param arrangement The arrangement to render, which must have at least one section
+	 */
+	public LoopRenderer(Arrangement arrangement) {
+		this.arrangement = arrangement.copy();
+		this.arrangement.setRepeat(false);
+		this.loop = this.arrangement.getSectionAt(0).getLoop();
+		this.bars = 0;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Returns the number of frames that will be rendered, every beat of every bar at the loop's bpm,
+	 * or of every section at its own bpm for an arrangement
+	 * @return The length of the render in frames
+	 */
+	public long getFrames() {
+		if (arrangement != null) {
+			return Math.round(arrangement.getFrames());
+		} else return Math.round((long) bars * loop.getPatternLength() * loop.getFramesPerStep());
+	}
+	
+	/**
+	 * Renders the loop to a 16 bit stereo WAV file at the given path, replacing any existing file
+	 * @param filePath The path of the WAV file to write
+	 * @return The number of frames written
+	 * @throws IOException When the file can't be written
+	 */
+	public long renderToFile(String filePath) throws IOException {
+		long frames = getFrames();
+		Sequencer sequencer = arrangement != null ? new Sequencer(arrangement, new Mixer(AudioEngine.BLOCK_FRAMES))
+				: new Sequencer(loop, new Mixer(AudioEngine.BLOCK_FRAMES), (long) bars * loop.getPatternLength());
+		try (AudioInputStream in = new AudioInputStream(new RenderStream(sequencer, frames), AudioEngine.OUTPUT_FORMAT, frames)) {
+			AudioSystem.write(in, AudioFileFormat.Type.WAVE, new File(filePath));
+		}
+		return frames;
+	}
+	
+	/**
+	 * Renders a sequencer's output block by block as it is read, so the whole render never has to be held in memory
+	 */
+	private static class RenderStream extends InputStream {
+		
+		/**
+		 * The sequencer starting sounds in the mixer
+		 */
+		private final Sequencer sequencer;
+		/**
+		 * The mixer being rendered
+		 */
+		private final Mixer mixer;
+		/**
+		 * The current block as 16 bit PCM
+		 */
+		private final byte[] block;
+		/**
+		 * The number of bytes of the block that hold rendered audio
+		 */
+		private int blockLength;
+		/**
+		 * The next byte of the block to be read
+		 */
+		private int blockPosition;
+		/**
+		 * The number of frames still to be rendered
+		 */
+		private long framesLeft;
+		
+		/**
+		 * Creates a stream of the given number of frames from the sequencer
+		 * @param sequencer The sequencer to render
+		 * @param frames The number of frames to render
+		 */
+		private RenderStream(Sequencer sequencer, long frames) {
+			this.sequencer = sequencer;
+			this.mixer = sequencer.getMixer();
+			this.block = new byte[AudioEngine.BLOCK_FRAMES * AudioEngine.OUTPUT_FORMAT.getFrameSize()];
+			this.blockLength = 0;
+			this.blockPosition = 0;
+			this.framesLeft = frames;
+		}
+		
+		/**
+		 * Renders the next block into the byte buffer, keeping only the frames still needed
+		 */
+		private void renderBlock() {
+			mixer.clear();
+			int rendered = 0;
+			while (rendered < AudioEngine.BLOCK_FRAMES) {
+				int frames = sequencer.advance(AudioEngine.BLOCK_FRAMES - rendered);
+				mixer.render(rendered, frames);
+				rendered += frames;
+			}
+			mixer.writePcm16(block);
+			int frames = (int) Math.min(AudioEngine.BLOCK_FRAMES, framesLeft);
+			framesLeft -= frames;
+			blockLength = frames * AudioEngine.OUTPUT_FORMAT.getFrameSize();
+			blockPosition = 0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (blockPosition == blockLength) {
+				if (framesLeft == 0) {
+					return -1;
+				}
+				renderBlock();
+			}
+			int count = Math.min(len, blockLength - blockPosition);
+			System.arraycopy(block, blockPosition, b, off, count);
+			blockPosition += count;
+			return count;
+		}
+	}
+}
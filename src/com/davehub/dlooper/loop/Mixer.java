@@ -0,0 +1,142 @@
+package com.davehub.dlooper.loop;
+
+import java.util.Arrays;
+
+/**
+ * Sums every sounding VoicePool into one interleaved float buffer, applying each pattern's volume and mute.
+ * Only touched by the AudioEngine render thread, pattern settings are read from volatile fields so they never lock.
+ */
+class Mixer {
+	
+	/**
+	 * The number of pools the mixer has room for before it has to grow
+	 */
+	private static final int INITIAL_POOLS = 64;
+	/**
+	 * The buffer each block is mixed into
+	 */
+	private final float[] buffer;
+	/**
+	 * The pools with at least one sounding voice, the first poolCount entries are used
+	 */
+	private VoicePool[] pools;
+	/**
+	 * The number of pools being mixed
+	 */
+	private int poolCount;
+	/**
+	 * The number of voices started, used to order voices by age
+	 */
+	private long started;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a mixer that renders blocks of the given size
+	 * @param blockFrames The number of frames in each block
+	 */
+	Mixer(int blockFrames) {
+		this.buffer = new float[blockFrames * AudioEngine.CHANNELS];
+		this.pools = new VoicePool[INITIAL_POOLS];
+		this.poolCount = 0;
+		this.started = 0;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Starts a voice of the given sound from the current frame, overlapping any hits already sounding
+	 * @param sound The sound to start
+	 * @param channel The pattern whose volume and mute apply, or null for full volume
+	 */
+	void start(DrumSound sound, Pattern channel) {
+		start(sound, channel, 0, 1.0f);
+	}
+	
+	/**
+	 * Starts a voice of the given sound a number of frames from the current frame, at the given velocity.
+	 * Used for hits nudged off the beat, so they sound on their exact frame even when it falls inside a block.
+	 * @param sound The sound to start
+	 * @param channel The pattern whose volume and mute apply, or null for full volume
+	 * @param delay The number of frames from the current frame before the hit sounds
+	 * @param velocity The gain of the hit, from 0.0 to 1.0
+	 */
+	void start(DrumSound sound, Pattern channel, int delay, float velocity) {
+		VoicePool pool = sound.getVoicePool();
+		pool.start(sound.getSample(), channel, started++, delay, velocity);
+		if (!pool.isMixing()) {
+			if (poolCount == pools.length) {
+				pools = Arrays.copyOf(pools, pools.length * 2);
+			}
+			pools[poolCount++] = pool;
+			pool.setMixing(true);
+		}
+	}
+	
+	/**
+	 * Silences every voice of the given sound
+	 * @param sound The sound to stop
+	 */
+	void stop(DrumSound sound) {
+		sound.getVoicePool().stopAll();
+	}
+	
+	/**
+	 * Clears the buffer ready for a new block
+	 */
+	void clear() {
+		Arrays.fill(buffer, 0.0f);
+	}
+	
+	/**
+	 * Adds every sounding voice into the buffer, dropping pools that have fallen silent
+	 * @param offset The first frame of the block to render
+	 * @param frames The number of frames to render
+	 */
+	void render(int offset, int frames) {
+		for (int i = poolCount - 1; i >= 0; i--) {
+			if (!pools[i].render(buffer, offset, frames)) {
+				pools[i].setMixing(false);
+				pools[i] = pools[--poolCount];
+				pools[poolCount] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether nothing is sounding
+	 * @return True if there are no sounding voices
+	 */
+	boolean isIdle() {
+		return poolCount == 0;
+	}
+	
+	/**
+	 * Converts the mixed block to clipped signed 16 bit little endian PCM
+	 * @param out The byte array to write to, at least 2 bytes per value in the buffer
+	 */
+	void writePcm16(byte[] out) {
+		for (int i = 0, b = 0; i < buffer.length; i++) {
+			float value = Math.max(-1.0f, Math.min(1.0f, buffer[i]));
+			int pcm = (int) (value * Short.MAX_VALUE);
+			out[b++] = (byte) pcm;
+			out[b++] = (byte) (pcm >> 8);
+		}
+	}
+	
+	/**
+	 * Returns the mixed block
+	 * @return The interleaved float buffer
+	 */
+	float[] getBuffer() {
+		return buffer;
+	}
+}
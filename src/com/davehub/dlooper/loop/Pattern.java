@@ -1,5 +1,8 @@
 package com.davehub.dlooper.loop;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
 public class Pattern {
 	
 	/**
@@ -11,17 +14,76 @@ public class Pattern {
 	 */
 	private static final char PAUSE_SYMBOL = '-';
 	/**
-	 * The string representing the pattern, consisting of the symbol attribute and
+	 * The velocity of a step at full volume, and of every step unless changed
+	 */
+	public static final int MAX_VELOCITY = 127;
+	/**
+	 * The chance in percent of a step playing when it's certain, and of every step unless changed
+	 */
+	public static final int MAX_PROBABILITY = 100;
+	/**
+	 * The furthest a step can be nudged early or late, half a beat in ticks of Loop.PPQN per beat
+	 */
+	public static final int MAX_NUDGE = Loop.PPQN / 2;
+	/**
+	 * The steps per beat of a pattern that follows its loop's steps per beat
+	 */
+	public static final int LOOP_STEPS_PER_BEAT = 0;
+	/**
+	 * The own length of a pattern that is resized with its loop's pattern length
+	 */
+	public static final int LOOP_LENGTH = 0;
+	/**
+	 * The steps of the pattern as a bit mask, bit (i % 64) of word (i / 64) is set when step i is an audible beat.
+	 * Bits past the length are always clear. The array is never modified once set, edits replace it,
+	 * so it can be read without locking.
+	 */
+	private volatile long[] steps;
+	/**
+	 * The number of steps in the pattern
 	 */
-	private String pattern;
+	private volatile int length;
+	/**
+	 * The velocity of each step from 0 to MAX_VELOCITY, or null while every step is at MAX_VELOCITY.
+	 * Like steps, the per step arrays are never modified once set, edits replace them.
+	 */
+	private volatile byte[] velocities;
+	/**
+	 * The chance in percent of each step playing, or null while every step always plays
+	 */
+	private volatile byte[] probabilities;
+	/**
+	 * How many ticks each step is played early (negative) or late (positive), or null while no step is nudged
+	 */
+	private volatile byte[] nudges;
+	/**
+	 * The number of the pattern's steps in each beat, or LOOP_STEPS_PER_BEAT to follow the loop
+	 */
+	private volatile int stepsPerBeat;
+	/**
+	 * True when the pattern keeps its own length rather than being resized with its loop's pattern length
+	 */
+	private volatile boolean ownLength;
 	/**
 	 * The sound which this pattern plays
 	 */
-	private DrumSound sound;
+	private volatile DrumSound sound;
+	/**
+	 * The loop this pattern belongs to, told when the steps change so it can recompile its trigger table. Null if not in a loop.
+	 */
+	private volatile Loop loop;
 	/**
 	 * The symbol representing an audible beat within the pattern
 	 */
 	private char symbol;
+	/**
+	 * The volume the pattern's sound is mixed at, from 0.0 to 1.0. Read by the AudioEngine render thread without locking.
+	 */
+	private volatile double volume;
+	/**
+	 * True when the pattern's sound is muted. Read by the AudioEngine render thread without locking.
+	 */
+	private volatile boolean muted;
 	
 	
 	// ------------
@@ -36,9 +98,14 @@ public class Pattern {
 	 * @param symbol The symbol used to represent an audible beat within the pattern string
 	 */
 	private Pattern(String pattern, DrumSound sound, char symbol) {
-		this.pattern = pattern;
+		this.steps = parseSteps(pattern, symbol);
+		this.length = pattern.length();
 		this.sound = sound;
 		this.symbol = symbol;
+		this.stepsPerBeat = LOOP_STEPS_PER_BEAT;
+		this.ownLength = false;
+		this.volume = 1.0;
+		this.muted = false;
 	}
 	
 	/**
@@ -49,6 +116,25 @@ public class Pattern {
 		this("", sound, DEFAULT_SYMBOL);
 	}
 	
+	/**
+	 * Copy constructor, the copy gets its own DrumSound sharing the same decoded audio
+	 * @param other The pattern to copy
+	 */
+	public Pattern(Pattern other) {
+		this("", new DrumSound(other.sound), other.symbol);
+		synchronized (other) {
+			this.steps = other.steps;
+			this.length = other.length;
+			this.velocities = other.velocities;
+			this.probabilities = other.probabilities;
+			this.nudges = other.nudges;
+		}
+		this.stepsPerBeat = other.stepsPerBeat;
+		this.ownLength = other.ownLength;
+		this.volume = other.volume;
+		this.muted = other.muted;
+	}
+	
 	
 	// -------
 	// Methods
@@ -60,20 +146,270 @@ public class Pattern {
 	 * @param patternPosition The position at which  there should be a sound played
 	 * @return True if a sound is played
 	 */
-	public synchronized boolean playPosition(int patternPosition) {
-		if (patternPosition < pattern.length() && pattern.charAt(patternPosition) == symbol) {
-			sound.play();
+	public boolean playPosition(int patternPosition) {
+		if (isStep(patternPosition)) {
+			sound.play(this);
 			return true;
 		} else return false;
 	}
 	
+	/**
+	 * Returns whether there is an audible beat at the given position, without locking or allocating
+	 * @param position The index of the step
+	 * @return True if the step is a beat, false for a pause or a position outside the pattern
+	 */
+	public boolean isStep(int position) {
+		long[] current = steps;
+		int word = position >>> 6;
+		return word < current.length && ((current[word] >>> position) & 1L) != 0;
+	}
+	
+	/**
+	 * Returns the velocity of the given step
+	 * @param position The index of the step
+	 * @return The velocity, from 0 to MAX_VELOCITY
+	 */
+	public int getVelocity(int position) {
+		return get(velocities, position, MAX_VELOCITY);
+	}
+	
+	/**
+	 * Sets the velocity of the given step, how loud it plays relative to the pattern's volume
+	 * @param position The index of the step
+	 * @param velocity The velocity, from 0 to MAX_VELOCITY
+	 * @return False when the step or velocity is out of range, in which case nothing is changed
+	 */
+	public synchronized boolean setVelocity(int position, int velocity) {
+		if (position < 0 || position >= length || velocity < 0 || velocity > MAX_VELOCITY) {
+			return false;
+		}
+		this.velocities = set(velocities, position, velocity, MAX_VELOCITY);
+		return true;
+	}
+	
+	/**
+	 * Returns the chance of the given step playing
+	 * @param position The index of the step
+	 * @return The probability in percent, from 0 to MAX_PROBABILITY
+	 */
+	public int getProbability(int position) {
+		return get(probabilities, position, MAX_PROBABILITY);
+	}
+	
+	/**
+	 * Sets the chance of the given step playing each time it's reached
+	 * @param position The index of the step
+	 * @param probability The probability in percent, from 0 to MAX_PROBABILITY
+	 * @return False when the step or probability is out of range, in which case nothing is changed
+	 */
+	public synchronized boolean setProbability(int position, int probability) {
+		if (position < 0 || position >= length || probability < 0 || probability > MAX_PROBABILITY) {
+			return false;
+		}
+		this.probabilities = set(probabilities, position, probability, MAX_PROBABILITY);
+		return true;
+	}
+	
+	/**
+	 * Returns how far the given step is played from its place on the grid
+	 * @param position The index of the step
+	 * @return The nudge in ticks of Loop.PPQN per beat, negative for early
+	 */
+	public int getNudge(int position) {
+		return get(nudges, position, 0);
+	}
+	
+	/**
+	 * Sets how far the given step is played early or late, in ticks of Loop.PPQN per beat
+	 * @param position The index of the step
+	 * @param nudge The nudge, from -MAX_NUDGE to MAX_NUDGE, negative for early
+	 * @return False when the step or nudge is out of range, in which case nothing is changed
+	 */
+	public synchronized boolean setNudge(int position, int nudge) {
+		if (position < 0 || position >= length || nudge < -MAX_NUDGE || nudge > MAX_NUDGE) {
+			return false;
+		}
+		this.nudges = set(nudges, position, nudge, 0);
+		return true;
+	}
+	
+	/**
+	 * Returns the per step velocities, probabilities and nudges, for saving. Never modified once returned.
+	 * @return The three arrays, each null while all of its steps are at the default
+	 */
+	byte[][] getStepDetails() {
+		return new byte[][] {velocities, probabilities, nudges};
+	}
+	
+	/**
+	 * Describes the settings of each step that isn't at full velocity, always played and on the beat
+	 * @return The settings as saved in loop files, such as "@2:v=64 @5:p=50,n=-12", or "" when every step has the defaults
+	 */
+	public String getStepSettings() {
+		StringBuilder output = new StringBuilder();
+		appendStepDetails(output);
+		return output.toString().trim();
+	}
+	
+	/**
+	 * Writes the settings of each step that isn't at full velocity, always played and on the beat, in the form read
+	 * by LoopReader, such as " @2:v=64 @5:p=50,n=-12". Writes nothing when every step has the defaults.
+	 * @param output The builder to append to
+	 */
+	synchronized void appendStepDetails(StringBuilder output) {
+		byte[] velocities = this.velocities;
+		byte[] probabilities = this.probabilities;
+		byte[] nudges = this.nudges;
+		for (int i = 0; i < length; i++) {
+			int velocity = get(velocities, i, MAX_VELOCITY);
+			int probability = get(probabilities, i, MAX_PROBABILITY);
+			int nudge = get(nudges, i, 0);
+			if (velocity == MAX_VELOCITY && probability == MAX_PROBABILITY && nudge == 0) {
+				continue;
+			}
+			output.append(" @").append(i).append(':');
+			int start = output.length();
+			if (velocity != MAX_VELOCITY) {
+				output.append("v=").append(velocity);
+			}
+			if (probability != MAX_PROBABILITY) {
+				output.append(output.length() == start ? "" : ",").append("p=").append(probability);
+			}
+			if (nudge != 0) {
+				output.append(output.length() == start ? "" : ",").append("n=").append(nudge);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the per step velocities, probabilities and nudges, as read from a file, without checking their values
+	 * @param velocities The velocities, or null for all at MAX_VELOCITY
+	 * @param probabilities The probabilities, or null for all at MAX_PROBABILITY
+	 * @param nudges The nudges, or null for none
+	 */
+	synchronized void setStepDetails(byte[] velocities, byte[] probabilities, byte[] nudges) {
+		this.velocities = velocities;
+		this.probabilities = probabilities;
+		this.nudges = nudges;
+	}
+	
+	/**
+	 * Reads one step's value from a per step array
+	 * @param values The array, or null when every step has the default
+	 * @param position The index of the step
+	 * @param defaultValue The value of steps not in the array
+	 * @return The step's value
+	 */
+	private static int get(byte[] values, int position, int defaultValue) {
+		return values == null || position < 0 || position >= values.length ? defaultValue : values[position];
+	}
+	
+	/**
+	 * Copies a per step array with one step changed, creating it filled with the default if needed
+	 * @param values The array, or null when every step has the default
+	 * @param position The index of the step to change
+	 * @param value The new value of the step
+	 * @param defaultValue The value of steps not set
+	 * @return The new array
+	 */
+	private byte[] set(byte[] values, int position, int value, int defaultValue) {
+		byte[] changed = resize(values, length, defaultValue);
+		if (changed == null) {
+			changed = new byte[length];
+			Arrays.fill(changed, (byte) defaultValue);
+		}
+		changed[position] = (byte) value;
+		return changed;
+	}
+	
+	/**
+	 * Copies a per step array to the given length, filling any new steps with the default
+	 * @param values The array, or null when every step has the default
+	 * @param length The new number of steps
+	 * @param defaultValue The value of new steps
+	 * @return The resized array, or null if values was null
+	 */
+	private static byte[] resize(byte[] values, int length, int defaultValue) {
+		if (values == null) {
+			return null;
+		}
+		byte[] resized = Arrays.copyOf(values, length);
+		if (length > values.length) {
+			Arrays.fill(resized, values.length, length, (byte) defaultValue);
+		}
+		return resized;
+	}
+	
+	/**
+	 * Resizes the per step arrays to the given number of steps. Must hold the pattern's lock.
+	 * @param length The new number of steps
+	 */
+	private void resizeStepDetails(int length) {
+		this.velocities = resize(velocities, length, MAX_VELOCITY);
+		this.probabilities = resize(probabilities, length, MAX_PROBABILITY);
+		this.nudges = resize(nudges, length, 0);
+	}
+	
+	/**
+	 * Returns the step mask, bit (i % 64) of word (i / 64) set for each audible beat. Never modified once returned.
+	 * @return The step mask
+	 */
+	long[] getSteps() {
+		return steps;
+	}
+	
+	/**
+	 * Replaces the step mask directly, as read from a .dlb file, clearing any bits past the given length
+	 * @param steps The step mask, words(length) long, which is kept rather than copied so must not be modified after
+	 * @param length The number of steps, must be > 0
+	 */
+	void setSteps(long[] steps, int length) {
+		synchronized (this) {
+			if ((length & 63) != 0) {
+				steps[steps.length - 1] &= (1L << length) - 1;
+			}
+			this.steps = steps;
+			this.length = length;
+			resizeStepDetails(length);
+		}
+		stepsChanged();
+	}
+	
 	/**
 	 * Returns the character at the given position within the pattern
 	 * @param position The index of the symbol pattern you want to retrieve
 	 * @return The character at the given index position in the pattern
 	 */
 	public char getSymbolAt(int position) {
-		return pattern.charAt(position);
+		if (position < 0 || position >= length) {
+			throw new StringIndexOutOfBoundsException(position);
+		}
+		return isStep(position) ? symbol : PAUSE_SYMBOL;
+	}
+	
+	/**
+	 * Converts a validated pattern string into a step mask
+	 * @param pattern The pattern string
+	 * @param symbol The symbol representing an audible beat
+	 * @return The step mask, one bit per character
+	 */
+	private static long[] parseSteps(String pattern, char symbol) {
+		long[] mask = new long[words(pattern.length())];
+		for (int i = 0; i < pattern.length(); i++) {
+			if (pattern.charAt(i) == symbol) {
+				mask[i >>> 6] |= 1L << i;
+			}
+		}
+		return mask;
+	}
+	
+	/**
+	 * Returns the number of 64 bit words needed to hold the given number of steps
+	 * @param length The number of steps
+	 * @return The number of words
+	 */
+	static int words(int length) {
+		return (length + 63) >>> 6;
 	}
 	
 	/**
@@ -99,6 +435,15 @@ public class Pattern {
 		sound.setFilePath(filePath);
 	}
 	
+	/**
+	 * Starts changing the sound to the given audio file without blocking, the old sound plays until the new one is decoded
+	 * @param filePath The path to the audio file to change the sound to
+	 * @return A future completed with this pattern once it plays the new sound, or completed exceptionally when the file can't be read
+	 */
+	public CompletableFuture<Pattern> setSoundFilePathAsync(String filePath) {
+		return sound.setFilePathAsync(filePath).thenApply(changed -> this);
+	}
+	
 	
 	// -------------------
 	// Getters and Setters
@@ -122,11 +467,15 @@ public class Pattern {
 	}
 
 	/**
-	 * Returns the string that represents the pattern
+	 * Returns the string that represents the pattern, built from the step mask
 	 * @return The pattern string
 	 */
-	public String getPattern() {
-		return pattern;
+	public synchronized String getPattern() {
+		char[] chars = new char[length];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = isStep(i) ? symbol : PAUSE_SYMBOL;
+		}
+		return new String(chars);
 	}
 	
 	/**
@@ -134,11 +483,17 @@ public class Pattern {
 	 * @param pattern The string which represents the pattern
 	 * @return Returns false when the given pattern is not the same length as the length attribute, ensuring patterns are all the same length
 	 */
-	public synchronized boolean setPattern(String pattern) {
-		if (validatePattern(pattern)) {
-			this.pattern = pattern;
-			return true;
-		} else return false;
+	public boolean setPattern(String pattern) {
+		synchronized (this) {
+			if (!validatePattern(pattern)) {
+				return false;
+			}
+			this.steps = parseSteps(pattern, symbol);
+			this.length = pattern.length();
+			resizeStepDetails(length);
+		}
+		stepsChanged();
+		return true;
 	}
 
 	/**
@@ -146,21 +501,142 @@ public class Pattern {
 	 * @return The length of the pattern
 	 */
 	public int getLength() {
-		return pattern.length();
+		return length;
 	}
 	
 	/**
-	 * Sets the length of the pattern string, and resizes the current pattern either by add PAUSE_SYMBOL's ('-') or cutting the end of the string off.
+	 * Sets the length of the pattern, either adding pauses to the end or cutting the end off.
+	 * Costs one copy of the step mask, a word per 64 steps.
 	 * @param length The value to set the length to
 	 */
-	public synchronized boolean setLength(int length) {
-		if (length > 0) {
-			while (pattern.length() < length) {
-				pattern += PAUSE_SYMBOL;
+	public boolean setLength(int length) {
+		if (length <= 0) {
+			return false;
+		}
+		synchronized (this) {
+			long[] resized = Arrays.copyOf(steps, words(length));
+			if ((length & 63) != 0 && length < this.length) {
+				resized[resized.length - 1] &= (1L << length) - 1;
 			}
-			this.pattern = pattern.substring(0, length);
-			return true;
-		} else return false;
+			this.steps = resized;
+			this.length = length;
+			resizeStepDetails(length);
+		}
+		stepsChanged();
+		return true;
+	}
+	
+	/**
+	 * Tells the owning loop the steps have changed. Called outside this pattern's lock,
+	 * so recompiling never holds a pattern lock.
+	 */
+	private void stepsChanged() {
+		Loop owner = loop;
+		if (owner != null) {
+			owner.compileTriggers();
+		}
+	}
+	
+	/**
+	 * Returns the number of the pattern's steps in each beat
+	 * @return The steps per beat, or LOOP_STEPS_PER_BEAT when the pattern follows its loop
+	 */
+	public int getStepsPerBeat() {
+		return stepsPerBeat;
+	}
+	
+	/**
+	 * Sets the number of the pattern's steps in each beat, so a pattern of triplets can play over a loop of semiquavers.
+	 * The pattern is resized to the number of its steps that fill its loop's pattern length.
+	 * @param stepsPerBeat The steps per beat, which must divide Loop.PPQN, or LOOP_STEPS_PER_BEAT to follow the loop
+	 * @return False when the steps per beat doesn't divide Loop.PPQN, in which case it is unchanged
+	 */
+	public boolean setStepsPerBeat(int stepsPerBeat) {
+		if (stepsPerBeat != LOOP_STEPS_PER_BEAT && !Loop.isStepsPerBeat(stepsPerBeat)) {
+			return false;
+		}
+		this.stepsPerBeat = stepsPerBeat;
+		Loop owner = loop;
+		if (owner != null) {
+			owner.fitLength(this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns whether the pattern keeps its own length, playing against its loop's pattern length
+	 * @return True if the pattern isn't resized with its loop
+	 */
+	public boolean hasOwnLength() {
+		return ownLength;
+	}
+	
+	/**
+	 * Sets the pattern to keep its own number of steps, so it plays against its loop's pattern length
+	 * such as 3 steps against 4, and only lines up with it again after their least common multiple.
+	 * @param length The number of steps to keep, up to Loop.MAX_PATTERN_LENGTH, or LOOP_LENGTH to be resized with the loop again
+	 * @return False when length < 0 or length > Loop.MAX_PATTERN_LENGTH, in which case nothing changes
+	 */
+	public boolean setOwnLength(int length) {
+		if (length < 0 || length > Loop.MAX_PATTERN_LENGTH) {
+			return false;
+		}
+		this.ownLength = length != LOOP_LENGTH;
+		Loop owner = loop;
+		if (ownLength) {
+			setLength(length);
+		} else if (owner != null) {
+			owner.fitLength(this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the loop this pattern belongs to, which is told whenever the steps change
+	 * @param loop The owning Loop, or null when removed from a loop
+	 */
+	void setLoop(Loop loop) {
+		this.loop = loop;
+	}
+	
+	/**
+	 * Returns the volume the pattern's sound is mixed at
+	 * @return The volume from 0.0 to 1.0
+	 */
+	public double getVolume() {
+		return volume;
+	}
+	
+	/**
+	 * Sets the volume the pattern's sound is mixed at, taking effect on the next rendered block
+	 * @param volume The volume from 0.0 to 1.0
+	 */
+	public void setVolume(double volume) {
+		this.volume = volume;
+	}
+	
+	/**
+	 * Returns whether the pattern's sound is muted
+	 * @return True if muted
+	 */
+	public boolean isMuted() {
+		return muted;
+	}
+	
+	/**
+	 * Mutes or unmutes the pattern's sound, taking effect on the next rendered block
+	 * @param muted True to mute
+	 */
+	public void setMute(boolean muted) {
+		this.muted = muted;
+	}
+	
+	/**
+	 * Returns the gain the Mixer applies to this pattern's sound, combining volume and mute
+	 * @return The gain, 0.0 when muted
+	 */
+	float getGain() {
+		return muted ? 0.0f : (float) volume;
 	}
 	
 	/**
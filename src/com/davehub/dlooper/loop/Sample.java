@@ -0,0 +1,189 @@
+package com.davehub.dlooper.loop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Audio decoded into interleaved float PCM at the engine's sample rate and channel count, ready for mixing.
+ * The PCM is held off the Java heap in a direct buffer, so loading many kits doesn't grow the heap or GC pauses,
+ * and voices read frames straight out of it without copying.
+ */
+public class Sample {
+	
+	/**
+	 * The size of the chunks the decoded stream is copied off-heap in
+	 */
+	private static final int READ_CHUNK = 64 * 1024;
+	/**
+	 * The decoded PCM, interleaved by channel, in the range -1.0 to 1.0
+	 */
+	private final FloatBuffer data;
+	/**
+	 * The number of frames in the sample
+	 */
+	private final int frames;
+	
+	
+	// ------------
+	// Constructors
+	// ------------
+	
+	
+	/**
+	 * Wraps already decoded PCM in the engine format
+	 * @param data Interleaved float PCM, AudioEngine.CHANNELS values per frame, read from index 0 to its limit
+	 */
+	public Sample(FloatBuffer data) {
+		this.data = data;
+		this.frames = data.limit() / AudioEngine.CHANNELS;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Decodes the audio file at the given path into the engine format, converting the channel count and sample rate where needed
+	 * @param filePath The path to the audio file
+	 * @return The decoded Sample
+	 * @throws Exception When the file can't be read or decoded
+	 */
+	public static Sample load(String filePath) throws Exception {
+		try (AudioInputStream in = AudioSystem.getAudioInputStream(new File(filePath))) {
+			AudioFormat source = in.getFormat();
+			int channels = source.getChannels();
+			AudioFormat floatFormat = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, source.getSampleRate(), 32,
+					channels, channels * Float.BYTES, source.getSampleRate(), false);
+			FloatBuffer decoded;
+			try (AudioInputStream floats = AudioSystem.getAudioInputStream(floatFormat, in)) {
+				decoded = readDirect(floats, in.getFrameLength() * floatFormat.getFrameSize());
+			}
+			return new Sample(resample(toEngineChannels(decoded, channels), source.getSampleRate()));
+		} catch (Exception e) {
+			throw new Exception("Unable to read file: " + filePath);
+		}
+	}
+	
+	/**
+	 * Copies a little endian float PCM stream into a direct buffer in fixed size chunks
+	 * @param in The stream of little endian 32 bit floats
+	 * @param length The length of the stream in bytes, or a negative value if unknown
+	 * @return The floats read, in a direct buffer
+	 * @throws IOException When the stream can't be read
+	 */
+	private static FloatBuffer readDirect(InputStream in, long length) throws IOException {
+		if (length < 0) {
+			byte[] bytes = in.readAllBytes();
+			FloatBuffer floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			FloatBuffer direct = allocate(floats.limit());
+			direct.put(floats).flip();
+			return direct;
+		}
+		ByteBuffer direct = ByteBuffer.allocateDirect((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] chunk = new byte[READ_CHUNK];
+		int read;
+		while (direct.hasRemaining() && (read = in.read(chunk, 0, Math.min(chunk.length, direct.remaining()))) > 0) {
+			direct.put(chunk, 0, read);
+		}
+		direct.flip();
+		return direct.asFloatBuffer();
+	}
+	
+	/**
+	 * Allocates a direct float buffer of the given length outside the Java heap
+	 * @param length The number of floats
+	 * @return The empty buffer
+	 */
+	private static FloatBuffer allocate(int length) {
+		return ByteBuffer.allocateDirect(length * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+	
+	/**
+	 * Converts interleaved PCM with the given channel count to AudioEngine.CHANNELS, duplicating mono and dropping extra channels
+	 * @param pcm The interleaved PCM
+	 * @param channels The number of channels in pcm
+	 * @return PCM with AudioEngine.CHANNELS channels
+	 */
+	private static FloatBuffer toEngineChannels(FloatBuffer pcm, int channels) {
+		if (channels == AudioEngine.CHANNELS) {
+			return pcm;
+		}
+		int frames = pcm.limit() / channels;
+		FloatBuffer out = allocate(frames * AudioEngine.CHANNELS);
+		for (int f = 0; f < frames; f++) {
+			for (int c = 0; c < AudioEngine.CHANNELS; c++) {
+				out.put(f * AudioEngine.CHANNELS + c, pcm.get(f * channels + Math.min(c, channels - 1)));
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Linearly resamples engine-channel PCM from the given rate to AudioEngine.SAMPLE_RATE
+	 * @param pcm The interleaved PCM
+	 * @param rate The sample rate of pcm
+	 * @return PCM at the engine sample rate
+	 */
+	private static FloatBuffer resample(FloatBuffer pcm, float rate) {
+		if (rate == AudioEngine.SAMPLE_RATE) {
+			return pcm;
+		}
+		int channels = AudioEngine.CHANNELS;
+		int inFrames = pcm.limit() / channels;
+		int outFrames = (int) ((long) inFrames * AudioEngine.SAMPLE_RATE / rate);
+		FloatBuffer out = allocate(outFrames * channels);
+		double step = rate / AudioEngine.SAMPLE_RATE;
+		for (int f = 0; f < outFrames; f++) {
+			double pos = f * step;
+			int i = (int) pos;
+			float frac = (float) (pos - i);
+			int next = Math.min(i + 1, inFrames - 1);
+			for (int c = 0; c < channels; c++) {
+				float a = pcm.get(i * channels + c);
+				out.put(f * channels + c, a + (pcm.get(next * channels + c) - a) * frac);
+			}
+		}
+		return out;
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the interleaved PCM of this sample, which must not be modified.
+	 * Read it with absolute gets so the one buffer is shared safely between voices.
+	 * @return The PCM buffer
+	 */
+	public FloatBuffer getData() {
+		return data;
+	}
+	
+	/**
+	 * Returns the length of the sample in frames
+	 * @return The number of frames
+	 */
+	public int getFrames() {
+		return frames;
+	}
+	
+	/**
+	 * Returns the memory used by the decoded PCM, which is held outside the Java heap
+	 * @return The size in bytes
+	 */
+	public long getSizeInBytes() {
+		return (long) data.limit() * Float.BYTES;
+	}
+}
@@ -0,0 +1,359 @@
+package com.davehub.dlooper.loop;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of decoded Samples, so every DrumSound using the same file shares one buffer.
+ * Entries are keyed by canonical path and checked against the file's modification time,
+ * and the least recently used entries are evicted once the decoded size exceeds the memory budget.
+ * Samples shared by key, such as those mapped from a LoopBundle, are kept apart from the decoded ones. They aren't in
+ * direct memory so don't count towards the budget, and are kept only for as long as something else uses them.
+ */
+public class SampleCache {
+	
+	/**
+	 * The memory budget used unless changed with setBudget, in bytes of decoded PCM.
+	 * Samples are held in direct memory, so this should stay below the JVM's -XX:MaxDirectMemorySize.
+	 */
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+	/**
+	 * The number of files decoded at once by getAsync
+	 */
+	private static final int LOADER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/**
+	 * The cache shared by the whole process
+	 */
+	private static SampleCache instance;
+	/**
+	 * The cached entries by canonical path, iterated from least to most recently used
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+	/**
+	 * The decodes in progress by canonical path, so a file requested again while decoding is only decoded once
+	 */
+	private final HashMap<String, CompletableFuture<Sample>> loading;
+	/**
+	 * The samples shared by key that don't come from a file of their own, held weakly outside the budget
+	 */
+	private final HashMap<String, WeakReference<Sample>> shared;
+	/**
+	 * The daemon threads files are decoded on for getAsync
+	 */
+	private final ExecutorService loader;
+	/**
+	 * The most bytes of decoded PCM to keep cached
+	 */
+	private long budget;
+	/**
+	 * The bytes of decoded PCM currently cached
+	 */
+	private long size;
+	/**
+	 * The number of lookups answered from the cache or by a decode already in progress
+	 */
+	private long hits;
+	/**
+	 * The number of lookups that had to decode the file
+	 */
+	private long misses;
+	/**
+	 * The number of entries dropped to stay within the budget
+	 */
+	private long evictions;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates an empty cache with the given budget
+	 * @param budget The most bytes of decoded PCM to keep cached
+	 */
+	public SampleCache(long budget) {
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.loading = new HashMap<String, CompletableFuture<Sample>>();
+		this.shared = new HashMap<String, WeakReference<Sample>>();
+		this.budget = budget;
+		this.size = 0;
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+		this.loader = Executors.newFixedThreadPool(LOADER_THREADS, task -> {
+			Thread thread = new Thread(task, "DLooper sample loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Returns the cache shared by the whole process
+	 * @return The SampleCache instance
+	 */
+	public static synchronized SampleCache getInstance() {
+		if (instance == null) {
+			instance = new SampleCache(DEFAULT_BUDGET);
+		}
+		return instance;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Returns the decoded audio of the given file, decoding it only if it isn't cached or has been modified since.
+	 * If another thread is already decoding the file this waits for it rather than decoding it again.
+	 * @param filePath The path to the audio file
+	 * @return The decoded Sample, shared with every other user of the file
+	 * @throws Exception When the file can't be read or decoded
+	 */
+	public Sample get(String filePath) throws Exception {
+		CompletableFuture<Sample> future = request(filePath, false);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			} else throw new Exception("Unable to read file: " + filePath);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Exception("Unable to read file: " + filePath);
+		}
+	}
+	
+	/**
+	 * Starts getting the decoded audio of the given file on a loader thread, so the caller can carry on while it decodes.
+	 * Requests for a file already being decoded share the one decode.
+	 * @param filePath The path to the audio file
+	 * @return A future completed with the decoded Sample, or completed exceptionally when the file can't be read or decoded
+	 */
+	public CompletableFuture<Sample> getAsync(String filePath) {
+		return request(filePath, true);
+	}
+	
+	/**
+	 * Looks the file up in the cache and in the decodes in progress, starting a decode if it's in neither
+	 * @param filePath The path to the audio file
+	 * @param async True to decode on a loader thread, false to decode on the calling thread
+	 * @return A future for the decoded Sample, already completed if it was cached
+	 */
+	private CompletableFuture<Sample> request(String filePath, boolean async) {
+		File file = new File(filePath);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(new Exception("Unable to read file: " + filePath));
+		}
+		long modified = file.lastModified();
+		CompletableFuture<Sample> future;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.modified == modified) {
+				hits++;
+				return CompletableFuture.completedFuture(entry.sample);
+			}
+			future = loading.get(key);
+			if (future != null) {
+				hits++;
+				return future;
+			}
+			misses++;
+			future = new CompletableFuture<Sample>();
+			loading.put(key, future);
+		}
+		CompletableFuture<Sample> decoding = future;
+		if (async) {
+			loader.execute(() -> decode(filePath, key, modified, decoding));
+		} else {
+			decode(filePath, key, modified, decoding);
+		}
+		return future;
+	}
+	
+	/**
+	 * Decodes a file, caches it and completes the future everyone waiting for it shares
+	 * @param filePath The path to the audio file
+	 * @param key The canonical path of the file
+	 * @param modified The modification time of the file
+	 * @param future The future to complete
+	 */
+	private void decode(String filePath, String key, long modified, CompletableFuture<Sample> future) {
+		try {
+			Sample sample = Sample.load(filePath);
+			put(key, modified, sample);
+			future.complete(sample);
+		} catch (Exception e) {
+			synchronized (this) {
+				loading.remove(key);
+			}
+			future.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Returns the sample shared under the given key, or shares the given sample under it.
+	 * Used for audio that doesn't come from a file of its own, such as samples mapped from a LoopBundle,
+	 * so every bundle holding the same audio shares one sample. Shared samples aren't counted in the budget or evicted,
+	 * they're dropped once nothing uses them.
+	 * @param key The key for the audio, which must not be a file path, such as a content hash
+	 * @param sample The sample to share if none is shared under the key
+	 * @return The sample to use, shared with every other user of the key
+	 */
+	public synchronized Sample share(String key, Sample sample) {
+		WeakReference<Sample> reference = shared.get(key);
+		Sample existing = reference == null ? null : reference.get();
+		if (existing != null) {
+			hits++;
+			return existing;
+		}
+		misses++;
+		shared.values().removeIf(unused -> unused.get() == null);
+		shared.put(key, new WeakReference<Sample>(sample));
+		return sample;
+	}
+	
+	/**
+	 * Adds a decoded sample to the cache, replacing any older entry, and evicts entries to stay within budget.
+	 * The file is no longer counted as being decoded.
+	 * @param key The canonical path of the file
+	 * @param modified The modification time of the file when it was decoded
+	 * @param sample The decoded sample
+	 */
+	private synchronized void put(String key, long modified, Sample sample) {
+		loading.remove(key);
+		Entry old = entries.put(key, new Entry(modified, sample));
+		if (old != null) {
+			size -= old.sample.getSizeInBytes();
+		}
+		size += sample.getSizeInBytes();
+		evict();
+	}
+	
+	/**
+	 * Drops the least recently used entries until the cache is within budget, always keeping the newest entry
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > budget && entries.size() > 1) {
+			size -= it.next().getValue().sample.getSizeInBytes();
+			it.remove();
+			evictions++;
+		}
+	}
+	
+	/**
+	 * Drops every entry. Sounds already using a sample keep it.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		shared.clear();
+		size = 0;
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the most bytes of decoded PCM the cache keeps
+	 * @return The budget in bytes
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Sets the most bytes of decoded PCM the cache keeps, evicting entries if it's now over budget
+	 * @param budget The budget in bytes, must be > 0
+	 * @return False when budget <= 0, in which case it is unchanged
+	 */
+	public synchronized boolean setBudget(long budget) {
+		if (budget > 0) {
+			this.budget = budget;
+			evict();
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Returns the bytes of decoded PCM currently cached
+	 * @return The size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Returns the number of decoded samples currently cached, not counting shared ones
+	 * @return The number of entries
+	 */
+	public synchronized int getNumSamples() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of lookups answered from the cache or by a decode already in progress
+	 * @return The hit count
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of lookups that had to decode the file
+	 * @return The miss count
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of entries dropped to stay within the budget
+	 * @return The eviction count
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * A decoded sample and the modification time of the file it was decoded from
+	 */
+	private static class Entry {
+		
+		/**
+		 * The modification time of the file when it was decoded
+		 */
+		private final long modified;
+		/**
+		 * The decoded sample
+		 */
+		private final Sample sample;
+		
+		/**
+		 * Creates a cache entry
+		 * @param modified The modification time of the file when it was decoded
+		 * @param sample The decoded sample
+		 */
+		private Entry(long modified, Sample sample) {
+			this.modified = modified;
+			this.sample = sample;
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package com.davehub.dlooper.loop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the audio files in the sample directories, so they can be searched and browsed without opening them.
+ * Directories are scanned in parallel in the background, and only files whose modification time or size has changed
+ * since the last scan are decoded again. The index is kept in memory and saved to a local file between runs.
+ */
+public class SampleIndex {
+	
+	/**
+	 * The directory of samples that comes with DLooper, indexed unless other directories have been added
+	 */
+	public static final String DEFAULT_DIRECTORY = "samples";
+	/**
+	 * The extensions of the audio files indexed
+	 */
+	private static final String[] EXTENSIONS = {".wav", ".aif", ".aiff", ".au"};
+	/**
+	 * The first four bytes of an index file, "DLSI"
+	 */
+	private static final int MAGIC = 0x444C5349;
+	/**
+	 * The version of the index file written
+	 */
+	private static final short VERSION = 1;
+	/**
+	 * The number of files analysed at once
+	 */
+	private static final int SCAN_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/**
+	 * The index shared by the whole process
+	 */
+	private static SampleIndex instance;
+	/**
+	 * The file the index is saved to
+	 */
+	private final Path indexFile;
+	/**
+	 * The daemon threads directories are scanned and files analysed on
+	 */
+	private final ExecutorService scanner;
+	/**
+	 * The directories indexed
+	 */
+	private final LinkedHashSet<String> directories;
+	/**
+	 * The indexed files by path, in path order. Replaced as a whole after each scan so searches never lock.
+	 */
+	private volatile List<SampleInfo> samples;
+	/**
+	 * The scan in progress, or null
+	 */
+	private CompletableFuture<Integer> scanning;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates an empty index saved to the given file
+	 * @param indexFile The file the index is loaded from and saved to
+	 */
+	public SampleIndex(Path indexFile) {
+		this.indexFile = indexFile;
+		this.directories = new LinkedHashSet<String>();
+		this.samples = Collections.emptyList();
+		this.scanning = null;
+		this.scanner = Executors.newFixedThreadPool(SCAN_THREADS, task -> {
+			Thread thread = new Thread(task, "DLooper sample indexer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Returns the index shared by the whole process, loading it from the user's index file the first time.
+	 * When no directories have been added the default samples directory is indexed, if it exists.
+	 * @return The SampleIndex instance
+	 */
+	public static synchronized SampleIndex getInstance() {
+		if (instance == null) {
+			instance = new SampleIndex(Paths.get(System.getProperty("user.home"), ".dlooper", "sample-index.dat"));
+			try {
+				instance.load();
+			} catch (IOException e) {
+				System.err.println("Unable to read the sample index, it will be rebuilt: " + e.getMessage());
+			}
+			if (instance.getDirectories().isEmpty() && Files.isDirectory(Paths.get(DEFAULT_DIRECTORY))) {
+				instance.addDirectory(DEFAULT_DIRECTORY);
+			}
+		}
+		return instance;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Adds a directory to be indexed, including its subdirectories, from the next scan
+	 * @param directory The path of the directory
+	 * @return False when the path isn't a directory, in which case it isn't added
+	 */
+	public synchronized boolean addDirectory(String directory) {
+		Path path = Paths.get(directory).toAbsolutePath().normalize();
+		if (Files.isDirectory(path)) {
+			directories.add(path.toString());
+			return true;
+		} else return false;
+	}
+	
+	/**
+	 * Stops indexing a directory from the next scan
+	 * @param directory The path of the directory
+	 * @return True if the directory was indexed
+	 */
+	public synchronized boolean removeDirectory(String directory) {
+		return directories.remove(Paths.get(directory).toAbsolutePath().normalize().toString());
+	}
+	
+	/**
+	 * Starts scanning every indexed directory in the background, analysing new and changed files and dropping
+	 * files that have gone, then saves the index. If a scan is already running its future is returned instead.
+	 * @return A future completed with the number of files analysed once the scan has finished
+	 */
+	public synchronized CompletableFuture<Integer> scanAsync() {
+		if (scanning != null) {
+			return scanning;
+		}
+		List<String> roots = new ArrayList<String>(directories);
+		//the scan is published before it starts, a scan that finishes at once could otherwise clear it first
+		CompletableFuture<Integer> scan = new CompletableFuture<Integer>();
+		scanning = scan;
+		CompletableFuture.supplyAsync(() -> findFiles(roots), scanner).thenCompose(this::analyse)
+				.whenComplete((analysed, failure) -> {
+					synchronized (this) {
+						if (scanning == scan) {
+							scanning = null;
+						}
+					}
+					if (failure != null) {
+						scan.completeExceptionally(failure);
+					} else scan.complete(analysed);
+				});
+		return scan;
+	}
+	
+	/**
+	 * Lists every audio file under the given directories
+	 * @param roots The directories to search
+	 * @return The audio files found, with their attributes
+	 */
+	private List<Found> findFiles(List<String> roots) {
+		ArrayList<Found> found = new ArrayList<Found>();
+		for (String root: roots) {
+			try (Stream<Path> walk = Files.walk(Paths.get(root))) {
+				for (Path file: walk.filter(SampleIndex::isAudioFile).collect(Collectors.toList())) {
+					try {
+						BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+						if (attributes.isRegularFile()) {
+							found.add(new Found(file, attributes.lastModifiedTime().toMillis(), attributes.size()));
+						}
+					} catch (IOException e) {
+						//the file went while scanning
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Unable to scan sample directory: " + root);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Analyses the files that are new or have changed in parallel, then replaces the index and saves it
+	 * @param found Every audio file in the indexed directories
+	 * @return A future completed with the number of files analysed
+	 */
+	private CompletableFuture<Integer> analyse(List<Found> found) {
+		TreeMap<String, SampleInfo> known = new TreeMap<String, SampleInfo>();
+		for (SampleInfo info: samples) {
+			known.put(info.getFilePath(), info);
+		}
+		TreeMap<String, SampleInfo> kept = new TreeMap<String, SampleInfo>();
+		ArrayList<CompletableFuture<SampleInfo>> changed = new ArrayList<CompletableFuture<SampleInfo>>();
+		for (Found file: found) {
+			SampleInfo info = known.get(file.path.toString());
+			if (info != null && info.getModified() == file.modified && info.getSize() == file.size) {
+				kept.put(info.getFilePath(), info);
+			} else {
+				changed.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return SampleInfo.analyse(file.path, file.modified, file.size);
+					} catch (Exception e) {
+						return null;
+					}
+				}, scanner));
+			}
+		}
+		return CompletableFuture.allOf(changed.toArray(new CompletableFuture<?>[changed.size()])).thenApply(done -> {
+			for (CompletableFuture<SampleInfo> analysed: changed) {
+				SampleInfo info = analysed.join();
+				if (info != null) {
+					kept.put(info.getFilePath(), info);
+				}
+			}
+			samples = Collections.unmodifiableList(new ArrayList<SampleInfo>(kept.values()));
+			try {
+				save();
+			} catch (IOException e) {
+				System.err.println("Unable to save the sample index: " + e.getMessage());
+			}
+			return changed.size();
+		});
+	}
+	
+	/**
+	 * Finds the indexed files whose path contains every word of the query, ignoring case. Never blocks on a scan.
+	 * @param query Words separated by spaces, an empty query matches every file
+	 * @return The matching files, in path order
+	 */
+	public List<SampleInfo> search(String query) {
+		String trimmed = query.trim().toLowerCase(Locale.ROOT);
+		String[] terms = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+		ArrayList<SampleInfo> matches = new ArrayList<SampleInfo>();
+		for (SampleInfo info: samples) {
+			if (info.matches(terms)) {
+				matches.add(info);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * Reads the index file, replacing the directories and files in memory. Does nothing if there's no index file yet.
+	 * @throws IOException When the index file can't be read or is damaged
+	 */
+	public void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new IOException("Not a sample index: " + indexFile);
+			}
+			int numDirectories = in.readInt();
+			ArrayList<String> readDirectories = new ArrayList<String>();
+			for (int i = 0; i < numDirectories; i++) {
+				readDirectories.add(in.readUTF());
+			}
+			int numSamples = in.readInt();
+			ArrayList<SampleInfo> read = new ArrayList<SampleInfo>();
+			for (int i = 0; i < numSamples; i++) {
+				read.add(SampleInfo.read(in));
+			}
+			synchronized (this) {
+				directories.clear();
+				directories.addAll(readDirectories);
+			}
+			samples = Collections.unmodifiableList(read);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+	}
+	
+	/**
+	 * Writes the index file, replacing it only once the new one is complete
+	 * @throws IOException When the index file can't be written
+	 */
+	public void save() throws IOException {
+		List<String> savedDirectories = getDirectories();
+		List<SampleInfo> saved = samples;
+		if (indexFile.getParent() != null) {
+			Files.createDirectories(indexFile.getParent());
+		}
+		Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(savedDirectories.size());
+			for (String directory: savedDirectories) {
+				out.writeUTF(directory);
+			}
+			out.writeInt(saved.size());
+			for (SampleInfo info: saved) {
+				info.write(out);
+			}
+		}
+		Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Returns whether a path has the extension of an indexed audio file
+	 * @param file The path to check
+	 * @return True for .wav, .aif, .aiff and .au files
+	 */
+	private static boolean isAudioFile(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String extension: EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the directories indexed
+	 * @return A copy of the directory paths
+	 */
+	public synchronized List<String> getDirectories() {
+		return new ArrayList<String>(directories);
+	}
+	
+	/**
+	 * Returns every indexed file
+	 * @return The files, in path order, which can't be modified
+	 */
+	public List<SampleInfo> getSamples() {
+		return samples;
+	}
+	
+	/**
+	 * Returns whether a scan is running
+	 * @return True while scanning
+	 */
+	public synchronized boolean isScanning() {
+		return scanning != null;
+	}
+	
+	/**
+	 * Returns the file the index is saved to
+	 * @return The path of the index file
+	 */
+	public Path getIndexFile() {
+		return indexFile;
+	}
+	
+	/**
+	 * An audio file found while scanning, with the attributes used to tell whether it has changed
+	 */
+	private static class Found {
+		
+		/**
+		 * The path of the file
+		 */
+		private final Path path;
+		/**
+		 * The modification time of the file
+		 */
+		private final long modified;
+		/**
+		 * The size of the file in bytes
+		 */
+		private final long size;
+		
+		/**
+		 * Creates a found file
+		 * @param path The path of the file
+		 * @param modified The modification time of the file
+		 * @param size The size of the file in bytes
+		 */
+		private Found(Path path, long modified, long size) {
+			this.path = path;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+}
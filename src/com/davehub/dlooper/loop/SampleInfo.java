@@ -0,0 +1,340 @@
+package com.davehub.dlooper.loop;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * What the SampleIndex knows about one audio file: its format, levels and a waveform thumbnail.
+ * Never modified once made, so it can be shared between the indexer threads and the user interfaces.
+ */
+public class SampleInfo {
+	
+	/**
+	 * The number of points in a waveform thumbnail
+	 */
+	public static final int THUMBNAIL_POINTS = 64;
+	/**
+	 * The size of the chunks a file is read in while it's analysed
+	 */
+	private static final int READ_CHUNK = 64 * 1024;
+	/**
+	 * The number of frames measured together when a file doesn't say how long it is,
+	 * the measurements are combined into the thumbnail once the whole file has been read
+	 */
+	private static final int UNKNOWN_LENGTH_BLOCK = 256;
+	/**
+	 * The path of the audio file
+	 */
+	private final String filePath;
+	/**
+	 * The path in lower case, matched against search terms
+	 */
+	private final String searchText;
+	/**
+	 * The modification time of the file when it was analysed
+	 */
+	private final long modified;
+	/**
+	 * The size of the file in bytes when it was analysed
+	 */
+	private final long size;
+	/**
+	 * The length of the audio in seconds
+	 */
+	private final double duration;
+	/**
+	 * The sample rate of the file
+	 */
+	private final float sampleRate;
+	/**
+	 * The number of channels in the file
+	 */
+	private final int channels;
+	/**
+	 * The highest absolute level, from 0.0 to 1.0
+	 */
+	private final float peak;
+	/**
+	 * The root mean square level, from 0.0 to 1.0
+	 */
+	private final float rms;
+	/**
+	 * The peak level of each equal slice of the audio, from 0 to 255
+	 */
+	private final byte[] thumbnail;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates the information for a file
+	 * @param filePath The path of the audio file
+	 * @param modified The modification time of the file when it was analysed
+	 * @param size The size of the file in bytes when it was analysed
+	 * @param duration The length of the audio in seconds
+	 * @param sampleRate The sample rate of the file
+	 * @param channels The number of channels in the file
+	 * @param peak The highest absolute level, from 0.0 to 1.0
+	 * @param rms The root mean square level, from 0.0 to 1.0
+	 * @param thumbnail The peak level of each equal slice of the audio, from 0 to 255
+	 */
+	SampleInfo(String filePath, long modified, long size, double duration, float sampleRate, int channels,
+			float peak, float rms, byte[] thumbnail) {
+		this.filePath = filePath;
+		this.searchText = filePath.toLowerCase(Locale.ROOT);
+		this.modified = modified;
+		this.size = size;
+		this.duration = duration;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.peak = peak;
+		this.rms = rms;
+		this.thumbnail = thumbnail;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Measures an audio file, reading it once in fixed size chunks rather than decoding it into memory
+	 * @param file The audio file
+	 * @param modified The modification time of the file
+	 * @param size The size of the file in bytes
+	 * @return The information for the file
+	 * @throws Exception When the file can't be read or decoded
+	 */
+	static SampleInfo analyse(Path file, long modified, long size) throws Exception {
+		try (AudioInputStream in = AudioSystem.getAudioInputStream(file.toFile())) {
+			AudioFormat source = in.getFormat();
+			int channels = source.getChannels();
+			AudioFormat floatFormat = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, source.getSampleRate(), 32,
+					channels, channels * Float.BYTES, source.getSampleRate(), false);
+			long frames = in.getFrameLength();
+			boolean knownLength = frames != AudioSystem.NOT_SPECIFIED;
+			
+			//the peak of each thumbnail point, or of each block of frames when the length isn't known
+			float[] peaks = new float[THUMBNAIL_POINTS];
+			int numPeaks = 0;
+			float peak = 0.0f;
+			double squares = 0.0;
+			long values = 0;
+			try (AudioInputStream floats = AudioSystem.getAudioInputStream(floatFormat, in)) {
+				byte[] chunk = new byte[READ_CHUNK];
+				ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+				int filled = 0;
+				int read;
+				while ((read = floats.read(chunk, filled, chunk.length - filled)) > 0) {
+					filled += read;
+					int whole = filled - filled % Float.BYTES;
+					for (int i = 0; i < whole; i += Float.BYTES) {
+						float value = buffer.getFloat(i);
+						long frame = values++ / channels;
+						int point = knownLength
+								? (int) Math.min(THUMBNAIL_POINTS - 1, frame * THUMBNAIL_POINTS / Math.max(1, frames))
+								: (int) (frame / UNKNOWN_LENGTH_BLOCK);
+						if (point >= peaks.length) {
+							peaks = Arrays.copyOf(peaks, peaks.length * 2);
+						}
+						numPeaks = Math.max(numPeaks, point + 1);
+						peaks[point] = Math.max(peaks[point], Math.abs(value));
+						squares += (double) value * value;
+					}
+					System.arraycopy(chunk, whole, chunk, 0, filled - whole);
+					filled -= whole;
+				}
+			}
+			
+			byte[] thumbnail = new byte[THUMBNAIL_POINTS];
+			for (int point = 0; point < THUMBNAIL_POINTS && numPeaks > 0; point++) {
+				int from = (int) ((long) numPeaks * point / THUMBNAIL_POINTS);
+				int to = Math.max(from + 1, (int) ((long) numPeaks * (point + 1) / THUMBNAIL_POINTS));
+				float pointPeak = 0.0f;
+				for (int i = from; i < to; i++) {
+					pointPeak = Math.max(pointPeak, peaks[i]);
+				}
+				thumbnail[point] = (byte) Math.round(Math.min(1.0f, pointPeak) * 255);
+				peak = Math.max(peak, pointPeak);
+			}
+			float rms = values == 0 ? 0.0f : (float) Math.sqrt(squares / values);
+			return new SampleInfo(file.toString(), modified, size, values / channels / (double) source.getSampleRate(),
+					source.getSampleRate(), channels, Math.min(1.0f, peak), Math.min(1.0f, rms), thumbnail);
+		} catch (Exception e) {
+			throw new Exception("Unable to read file: " + file);
+		}
+	}
+	
+	/**
+	 * Returns whether the path contains every one of the given terms
+	 * @param terms The lower case terms to look for
+	 * @return True if every term is in the path, ignoring case
+	 */
+	boolean matches(String[] terms) {
+		for (String term: terms) {
+			if (!searchText.contains(term)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes this information to an index file
+	 * @param out The stream to write to
+	 * @throws IOException When the stream can't be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeUTF(filePath);
+		out.writeLong(modified);
+		out.writeLong(size);
+		out.writeDouble(duration);
+		out.writeFloat(sampleRate);
+		out.writeInt(channels);
+		out.writeFloat(peak);
+		out.writeFloat(rms);
+		out.writeShort(thumbnail.length);
+		out.write(thumbnail);
+	}
+	
+	/**
+	 * Reads information written by write
+	 * @param in The stream to read from
+	 * @return The information read
+	 * @throws IOException When the stream can't be read
+	 */
+	static SampleInfo read(DataInputStream in) throws IOException {
+		String filePath = in.readUTF();
+		long modified = in.readLong();
+		long size = in.readLong();
+		double duration = in.readDouble();
+		float sampleRate = in.readFloat();
+		int channels = in.readInt();
+		float peak = in.readFloat();
+		float rms = in.readFloat();
+		byte[] thumbnail = new byte[in.readUnsignedShort()];
+		in.readFully(thumbnail);
+		return new SampleInfo(filePath, modified, size, duration, sampleRate, channels, peak, rms, thumbnail);
+	}
+	
+	/**
+	 * Converts a level to decibels relative to full scale
+	 * @param level The level, from 0.0 to 1.0
+	 * @return The level in dBFS, negative infinity for silence
+	 */
+	public static double toDecibels(float level) {
+		return 20 * Math.log10(level);
+	}
+	
+	/**
+	 * Describes the sample on one line, such as "kick.wav  0.35s  44.1kHz stereo  peak -1.2dB  rms -14.8dB"
+	 * @return The description
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s  %.2fs  %.1fkHz %s  peak %.1fdB  rms %.1fdB", getName(), duration, sampleRate / 1000,
+				channels == 1 ? "mono" : channels == 2 ? "stereo" : channels + "ch", toDecibels(peak), toDecibels(rms));
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the path of the audio file
+	 * @return The file path
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+	
+	/**
+	 * Returns the name of the audio file without its directory
+	 * @return The file name
+	 */
+	public String getName() {
+		return new File(filePath).getName();
+	}
+	
+	/**
+	 * Returns the modification time of the file when it was analysed
+	 * @return The time in milliseconds since the epoch
+	 */
+	public long getModified() {
+		return modified;
+	}
+	
+	/**
+	 * Returns the size of the file when it was analysed
+	 * @return The size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Returns the length of the audio
+	 * @return The duration in seconds
+	 */
+	public double getDuration() {
+		return duration;
+	}
+	
+	/**
+	 * Returns the sample rate the file was recorded at
+	 * @return The sample rate in Hz
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+	
+	/**
+	 * Returns the number of channels in the file
+	 * @return 1 for mono, 2 for stereo
+	 */
+	public int getChannels() {
+		return channels;
+	}
+	
+	/**
+	 * Returns the highest absolute level in the audio
+	 * @return The peak, from 0.0 to 1.0
+	 */
+	public float getPeak() {
+		return peak;
+	}
+	
+	/**
+	 * Returns the root mean square level of the audio
+	 * @return The RMS level, from 0.0 to 1.0
+	 */
+	public float getRms() {
+		return rms;
+	}
+	
+	/**
+	 * Returns the waveform thumbnail, the peak level of each of THUMBNAIL_POINTS equal slices of the audio.
+	 * Must not be modified.
+	 * @return The peaks, from 0 to 255 when read as unsigned bytes
+	 */
+	public byte[] getThumbnail() {
+		return thumbnail;
+	}
+}
@@ -0,0 +1,361 @@
+package com.davehub.dlooper.loop;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Schedules the beats of a Loop, or of the loops of an Arrangement one after another, by sample frame, starting sounds in a Mixer.
+ * Driven by the AudioEngine render thread for playback, or by the LoopRenderer for rendering to file.
+ * Beats are counted in frames of rendered audio rather than wall clock time, so a beat always starts
+ * exactly on its frame no matter how late the block containing it is rendered.
+ */
+class Sequencer {
+	
+	/**
+	 * Beat limit meaning the loop plays once, or forever if it repeats
+	 */
+	static final long PLAY_TO_END = -1;
+	/**
+	 * The loop being played, which changes at the end of a bar when playing an arrangement
+	 */
+	private Loop loop;
+	/**
+	 * A loop to take over from the current one at the end of its cycle, queued from other threads, or null
+	 */
+	private final AtomicReference<Loop> queued;
+	/**
+	 * The arrangement being played, or null when playing a single loop
+	 */
+	private final Arrangement arrangement;
+	/**
+	 * The index of the arrangement section being played
+	 */
+	private int section;
+	/**
+	 * The number of bars of the current section played so far
+	 */
+	private int sectionBars;
+	/**
+	 * The mixer sounds are started in
+	 */
+	private final Mixer mixer;
+	/**
+	 * The number of beats to play, or PLAY_TO_END to follow the loop's repeat setting
+	 */
+	private final long beats;
+	/**
+	 * The number of frames rendered since the sequencer was started
+	 */
+	private long frame;
+	/**
+	 * The exact, usually fractional, frame the next beat falls on. Beats are played on the nearest whole frame,
+	 * but the fraction is kept, so rounding never accumulates into drift.
+	 */
+	private double nextBeatFrame;
+	/**
+	 * The exact frame the step being played started on
+	 */
+	private double stepFrame;
+	/**
+	 * The number of frames left to render before the next beat or hit between beats is played, 0 when one is due
+	 */
+	private long framesUntilBeat;
+	/**
+	 * The step of the loop to play next
+	 */
+	private int step;
+	/**
+	 * The step of the loop being played
+	 */
+	private int playing;
+	/**
+	 * The tick within the step being played that is due next, 0 when the next step is due
+	 */
+	private int tick;
+	/**
+	 * The number of beats played since the sequencer was started
+	 */
+	private long beatsPlayed;
+	/**
+	 * The number of beats played since the current loop started, which patterns with their own length count from
+	 */
+	private long loopBeats;
+	/**
+	 * The length of the last beat played on the ideal 60000/bpm grid, in nanoseconds
+	 */
+	private double beatNanos;
+	/**
+	 * Rolls each hit against its step's probability. Only used by the render thread.
+	 */
+	private final SplittableRandom random;
+	/**
+	 * True once a non-repeating loop has played every beat and the last beat has elapsed
+	 */
+	private boolean finished;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a sequencer that plays the given loop from its first beat, once or forever depending on its repeat setting
+	 * @param loop The loop to play
+	 * @param mixer The mixer to start sounds in
+	 */
+	Sequencer(Loop loop, Mixer mixer) {
+		this(loop, mixer, PLAY_TO_END);
+	}
+	
+	/**
+	 * Creates a sequencer that plays the given number of beats of the loop from its first beat, wrapping around as needed
+	 * @param loop The loop to play
+	 * @param mixer The mixer to start sounds in
+	 * @param beats The number of beats to play, or PLAY_TO_END to follow the loop's repeat setting
+	 */
+	Sequencer(Loop loop, Mixer mixer, long beats) {
+		this(loop, null, mixer, beats);
+	}
+	
+	/**
+	 * Creates a sequencer that plays an arrangement from its first section, once or forever depending on its repeat setting
+	 * @param arrangement The arrangement to play, which must have at least one section
+	 * @param mixer The mixer to start sounds in
+	 */
+	Sequencer(Arrangement arrangement, Mixer mixer) {
+		this(arrangement.getSectionAt(0).getLoop(), arrangement, mixer, PLAY_TO_END);
+	}
+	
+	/**
+	 * Creates a sequencer
+	 * @param loop The loop to play first
+	 * @param arrangement The arrangement the loop is the first section of, or null
+	 * @param mixer The mixer to start sounds in
+	 * @param beats The number of beats to play, or PLAY_TO_END
+	 */
+	private Sequencer(Loop loop, Arrangement arrangement, Mixer mixer, long beats) {
+		this.loop = loop;
+		this.queued = new AtomicReference<Loop>();
+		this.arrangement = arrangement;
+		this.section = 0;
+		this.sectionBars = 0;
+		this.mixer = mixer;
+		this.beats = beats;
+		this.frame = 0;
+		this.nextBeatFrame = 0;
+		this.stepFrame = 0;
+		this.framesUntilBeat = 0;
+		this.step = 0;
+		this.playing = 0;
+		this.tick = 0;
+		this.beatsPlayed = 0;
+		this.loopBeats = 0;
+		this.random = new SplittableRandom();
+		this.finished = false;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Plays the beat due at the current frame, if any, and returns how many frames can be rendered before the next one.
+	 * Each beat reads one snapshot of the loop, so edits made during playback apply from the next beat without locking.
+	 * When playing an arrangement the next section starts on the beat after the last bar, and a queued loop takes over
+	 * on the beat after the current cycle, both keeping the exact frame grid.
+	 * Hits nudged off the beat are started with a delay in frames, so they also sound on their exact frame.
+	 * Hits nudged early are started while the beat they fall in is played, looking as many beats ahead as a nudge can reach,
+	 * unless those beats belong to another loop, in which case they're played as that loop starts. The beats counted are the loop's steps, and when a pattern has
+	 * finer steps than the loop the sequencer also stops on the ticks between them where it has a hit.
+	 * Patterns with their own length follow the number of beats played since the loop started, so they carry on across bars.
+	 * @param maxFrames The most frames the caller wants to render
+	 * @return The number of frames to render before calling advance again, between 1 and maxFrames
+	 */
+	int advance(int maxFrames) {
+		if (finished) {
+			return maxFrames;
+		}
+		if (framesUntilBeat == 0 && tick != 0) {
+			Loop.Snapshot current = loop.getSnapshot();
+			current.playStep(playing, loopBeats - 1, tick, mixer, random, 0);
+			scheduleNext(current);
+		} else if (framesUntilBeat == 0) {
+			Loop.Snapshot current = loop.getSnapshot();
+			if (step >= current.getPatternLength()) {
+				step = 0;
+				if (arrangement != null) {
+					current = nextBar();
+				} else {
+					Loop next = queued.getAndSet(null);
+					if (next != null) {
+						loop = next;
+						loopBeats = 0;
+						current = loop.getSnapshot();
+					}
+				}
+			}
+			if (current == null || (beats == PLAY_TO_END
+					? arrangement == null && !current.getRepeat() && loopBeats >= current.getPatternLength()
+					: beatsPlayed >= beats)) {
+				finished = true;
+				return maxFrames;
+			}
+			if (loopBeats == 0) {
+				//nothing was played ahead of the loop starting, so hits nudged to start before it are played now
+				for (int ahead = 0; ahead < current.getEarlySteps() && continuesInLoop(current, ahead); ahead++) {
+					current.playEarly((step + ahead) % current.getPatternLength(), loopBeats + ahead, mixer, random, 0,
+							ahead * (Loop.PPQN / current.getStepsPerBeat()), Integer.MAX_VALUE);
+				}
+			}
+			playing = step;
+			current.playStep(step++, loopBeats, 0, mixer, random, 0);
+			beatsPlayed++;
+			loopBeats++;
+			beatNanos = current.getFramesPerStep() * 1e9 / AudioEngine.SAMPLE_RATE;
+			stepFrame = nextBeatFrame;
+			nextBeatFrame += current.getFramesPerStep();
+			playEarly(current);
+			scheduleNext(current);
+		}
+		int frames = (int) Math.min(maxFrames, framesUntilBeat);
+		framesUntilBeat -= frames;
+		frame += frames;
+		return frames;
+	}
+	
+	/**
+	 * Works out how many frames to render until the next tick of the step being played with a hit, or the next step
+	 * @param current The state of the loop being played
+	 */
+	private void scheduleNext(Loop.Snapshot current) {
+		tick = current.nextTick(playing, loopBeats - 1, tick);
+		double tickFrame = stepFrame + tick * current.getFramesPerBeat() / Loop.PPQN;
+		if (tick >= Loop.PPQN / current.getStepsPerBeat() || tickFrame >= nextBeatFrame) {
+			tick = 0;
+			tickFrame = nextBeatFrame;
+		}
+		framesUntilBeat = Math.max(1, Math.round(tickFrame) - frame);
+	}
+	
+	/**
+	 * Starts the hits of the beats ahead that are nudged early enough to start during the beat just played,
+	 * each delayed to its exact frame. A hit can be nudged early by more than one beat at finer resolutions,
+	 * so every beat a nudge can reach is looked at, up to the first one that will be played from another loop.
+	 * @param current The state of the loop the beat was played from
+	 */
+	private void playEarly(Loop.Snapshot current) {
+		int ticksPerStep = Loop.PPQN / current.getStepsPerBeat();
+		for (int ahead = 0; ahead < current.getEarlySteps() && continuesInLoop(current, ahead); ahead++) {
+			current.playEarly((step + ahead) % current.getPatternLength(), loopBeats + ahead, mixer, random,
+					Math.max(1, Math.round(nextBeatFrame + ahead * current.getFramesPerStep()) - frame),
+					ahead * ticksPerStep, (ahead + 1) * ticksPerStep);
+		}
+	}
+	
+	/**
+	 * Returns whether a beat ahead will be played from the same loop, so its early hits can be started before it
+	 * @param current The state of the loop being played
+	 * @param ahead The number of beats after the next one to play, 0 for the next one
+	 * @return False when the beat is past the end, or will be played from another loop or section
+	 */
+	private boolean continuesInLoop(Loop.Snapshot current, int ahead) {
+		if (beats != PLAY_TO_END && beatsPlayed + ahead >= beats) {
+			return false;
+		} else if (step + ahead < current.getPatternLength()) {
+			return true;
+		} else if (arrangement != null) {
+			Arrangement.Section[] sections = arrangement.getSectionArray();
+			return section < sections.length
+					&& sectionBars + (step + ahead) / current.getPatternLength() < sections[section].getRepeats();
+		} else return queued.get() == null && (beats != PLAY_TO_END || current.getRepeat());
+	}
+	
+	/**
+	 * Queues a loop to take over from the one playing once its current cycle ends, replacing any loop already queued.
+	 * Safe to call from any thread.
+	 * @param next The loop to play next
+	 */
+	void queue(Loop next) {
+		queued.set(next);
+	}
+	
+	/**
+	 * Returns the loop queued to take over at the end of the current cycle
+	 * @return The queued Loop, or null
+	 */
+	Loop getQueued() {
+		return queued.get();
+	}
+	
+	/**
+	 * Counts a bar of the arrangement section played, moving to the next section once it has been played its number of times
+	 * @return The state of the loop to play next, or null when the arrangement has ended
+	 */
+	private Loop.Snapshot nextBar() {
+		Arrangement.Section[] sections = arrangement.getSectionArray();
+		if (section >= sections.length || ++sectionBars >= sections[section].getRepeats()) {
+			sectionBars = 0;
+			section++;
+			if (section >= sections.length) {
+				if (!arrangement.getRepeat() || sections.length == 0) {
+					return null;
+				}
+				section = 0;
+			}
+			loop = sections[section].getLoop();
+			loopBeats = 0;
+		}
+		return loop.getSnapshot();
+	}
+	
+	/**
+	 * Returns the number of beats played since the sequencer was started
+	 * @return The beat count
+	 */
+	long getBeatsPlayed() {
+		return beatsPlayed;
+	}
+	
+	/**
+	 * Returns the length of the last beat played on the ideal grid, one step of the loop at its bpm and steps per beat
+	 * @return The beat length in nanoseconds
+	 */
+	double getBeatNanos() {
+		return beatNanos;
+	}
+	
+	/**
+	 * Returns the loop this sequencer is playing
+	 * @return The Loop instance, the current section's loop when playing an arrangement
+	 */
+	Loop getLoop() {
+		return loop;
+	}
+	
+	/**
+	 * Returns the arrangement this sequencer plays
+	 * @return The Arrangement instance, or null when playing a single loop
+	 */
+	Arrangement getArrangement() {
+		return arrangement;
+	}
+	
+	/**
+	 * Returns the mixer this sequencer starts sounds in
+	 * @return The Mixer instance
+	 */
+	Mixer getMixer() {
+		return mixer;
+	}
+	
+	/**
+	 * Returns whether every beat has been played, once for a non-repeating loop or the number of beats asked for
+	 * @return True once every beat has been played and has elapsed
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+}
@@ -0,0 +1,171 @@
+package com.davehub.dlooper.loop;
+
+import java.util.Arrays;
+
+/**
+ * Records when each beat of a playing loop reaches the audio device compared with the ideal 60000/bpm grid,
+ * measured from the loop's first beat. The render thread records into a fixed size ring so recording never allocates,
+ * and the percentiles are worked out from the most recent beats when asked for.
+ */
+public class TimingStats {
+	
+	/**
+	 * The number of recent beats kept for working out percentiles
+	 */
+	private static final int CAPACITY = 1 << 16;
+	/**
+	 * How far each recent beat was from the ideal grid in nanoseconds, positive when late. Used as a ring.
+	 */
+	private final long[] deviations;
+	/**
+	 * The number of beats recorded since the stats were reset
+	 */
+	private long beats;
+	/**
+	 * The number of beats rendered after the audio device had run out of audio, so they were heard late
+	 */
+	private long missed;
+	/**
+	 * The estimated time the first beat was heard, the start of the ideal grid
+	 */
+	private long firstNanos;
+	/**
+	 * The time the next beat should be heard, relative to the first, on the ideal grid
+	 */
+	private double idealNanos;
+	/**
+	 * The time the most recent beat should have been heard, relative to the first, on the ideal grid
+	 */
+	private double lastIdealNanos;
+	/**
+	 * The deviation of the most recent beat, how far playback has drifted from the grid
+	 */
+	private long lastDeviation;
+	/**
+	 * The largest deviation from the grid, either side, since the stats were reset
+	 */
+	private long maxDeviation;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates empty stats
+	 */
+	public TimingStats() {
+		this.deviations = new long[CAPACITY];
+		reset();
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Records a beat. Called by the render thread.
+	 * @param actualNanos The estimated System.nanoTime() at which the beat is heard
+	 * @param beatNanos The length of this beat on the ideal grid, 60000/bpm milliseconds in nanoseconds
+	 * @param late True if the beat was rendered after the audio device ran out of audio
+	 */
+	synchronized void record(long actualNanos, double beatNanos, boolean late) {
+		if (beats == 0) {
+			firstNanos = actualNanos;
+			idealNanos = 0;
+		}
+		long deviation = actualNanos - firstNanos - Math.round(idealNanos);
+		deviations[(int) (beats % CAPACITY)] = deviation;
+		lastDeviation = deviation;
+		lastIdealNanos = idealNanos;
+		maxDeviation = Math.max(maxDeviation, Math.abs(deviation));
+		idealNanos += beatNanos;
+		beats++;
+		if (late) {
+			missed++;
+		}
+	}
+	
+	/**
+	 * Clears every recorded beat, the next beat starts a new grid
+	 */
+	public synchronized void reset() {
+		beats = 0;
+		missed = 0;
+		firstNanos = 0;
+		idealNanos = 0;
+		lastIdealNanos = 0;
+		lastDeviation = 0;
+		maxDeviation = 0;
+	}
+	
+	/**
+	 * Returns the given percentile of how far recent beats were from the ideal grid, either side
+	 * @param percentile The percentile, from 0.0 to 100.0
+	 * @return The deviation in nanoseconds, 0 if no beats have been recorded
+	 */
+	public long getJitterPercentile(double percentile) {
+		long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(deviations, (int) Math.min(beats, CAPACITY));
+		}
+		if (sorted.length == 0) {
+			return 0;
+		}
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = Math.abs(sorted[i]);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the number of beats recorded
+	 * @return The beat count
+	 */
+	public synchronized long getBeats() {
+		return beats;
+	}
+	
+	/**
+	 * Returns the number of beats heard late because the audio device ran out of audio before they were rendered
+	 * @return The missed beat count
+	 */
+	public synchronized long getMissed() {
+		return missed;
+	}
+	
+	/**
+	 * Returns the largest deviation from the ideal grid, either side
+	 * @return The deviation in nanoseconds
+	 */
+	public synchronized long getMaxJitter() {
+		return maxDeviation;
+	}
+	
+	/**
+	 * Returns how far the most recent beat was from the ideal grid, the drift accumulated since the first beat
+	 * @return The drift in nanoseconds, positive when playback is behind the grid
+	 */
+	public synchronized long getDrift() {
+		return lastDeviation;
+	}
+	
+	/**
+	 * Returns the drift averaged over the time recorded, so runs of different lengths can be compared
+	 * @return The drift in nanoseconds per minute of playback, 0 until two beats have been recorded
+	 */
+	public synchronized double getDriftPerMinute() {
+		return beats > 1 ? lastDeviation / (lastIdealNanos / 60e9) : 0;
+	}
+}
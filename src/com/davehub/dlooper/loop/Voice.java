@@ -0,0 +1,150 @@
+package com.davehub.dlooper.loop;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A single sounding hit of a DrumSound, owned by the sound's VoicePool. Only touched by the AudioEngine render thread.
+ */
+class Voice {
+	
+	/**
+	 * The sample being played, captured when the voice starts so changing the sound's file doesn't affect it
+	 */
+	private Sample sample;
+	/**
+	 * The pattern whose volume and mute the voice is played with, null to play at full volume
+	 */
+	private Pattern channel;
+	/**
+	 * The next frame of the sample to render, or -1 when the voice is free
+	 */
+	private int position;
+	/**
+	 * The number of frames to wait before the sample starts sounding, for hits started ahead of their frame
+	 */
+	private int delay;
+	/**
+	 * The gain of this hit from its step's velocity, applied on top of the pattern's volume
+	 */
+	private float velocity;
+	/**
+	 * Increases with every voice started, so a lower value is an older voice
+	 */
+	private long order;
+	/**
+	 * The peak level of the last rendered block after gain, used to find the quietest voice
+	 */
+	private float level;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a free voice
+	 */
+	Voice() {
+		this.position = -1;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Starts the voice playing the given sample from its first frame
+	 * @param sample The sample to play
+	 * @param channel The pattern whose volume and mute apply, or null for full volume
+	 * @param order A number that increases with every voice started
+	 * @param delay The number of frames from the current frame before the sample starts sounding
+	 * @param velocity The gain of this hit, from 0.0 to 1.0
+	 */
+	void start(Sample sample, Pattern channel, long order, int delay, float velocity) {
+		this.sample = sample;
+		this.channel = channel;
+		this.position = 0;
+		this.order = order;
+		this.delay = delay;
+		this.velocity = velocity;
+		this.level = Float.MAX_VALUE;
+	}
+	
+	/**
+	 * Silences the voice and frees it for reuse
+	 */
+	void stop() {
+		this.sample = null;
+		this.channel = null;
+		this.position = -1;
+	}
+	
+	/**
+	 * Adds the given number of frames of this voice into the buffer, advancing its position
+	 * @param buffer The interleaved mix buffer
+	 * @param offset The first frame of the buffer to write to
+	 * @param frames The number of frames to write
+	 * @return False once the voice has finished playing and has been freed
+	 */
+	boolean render(float[] buffer, int offset, int frames) {
+		if (position < 0) {
+			return false;
+		}
+		if (delay > 0) {
+			int wait = Math.min(delay, frames);
+			delay -= wait;
+			offset += wait;
+			frames -= wait;
+			if (frames == 0) {
+				return true;
+			}
+		}
+		int count = Math.min(frames, sample.getFrames() - position);
+		float gain = (channel == null ? 1.0f : channel.getGain()) * velocity;
+		float peak = 0.0f;
+		if (gain != 0.0f) {
+			FloatBuffer data = sample.getData();
+			int in = position * AudioEngine.CHANNELS;
+			int out = offset * AudioEngine.CHANNELS;
+			int end = out + count * AudioEngine.CHANNELS;
+			while (out < end) {
+				float value = data.get(in++) * gain;
+				buffer[out++] += value;
+				peak = Math.max(peak, Math.abs(value));
+			}
+		}
+		level = peak;
+		position += count;
+		if (position >= sample.getFrames()) {
+			stop();
+			return false;
+		} else return true;
+	}
+	
+	/**
+	 * Returns whether the voice is sounding
+	 * @return True if the voice is in use
+	 */
+	boolean isActive() {
+		return position >= 0;
+	}
+	
+	/**
+	 * Returns the start order of the voice, lower is older
+	 * @return The order value given when the voice was started
+	 */
+	long getOrder() {
+		return order;
+	}
+	
+	/**
+	 * Returns the peak level of the last rendered block, or Float.MAX_VALUE if it hasn't been rendered yet
+	 * @return The level after gain
+	 */
+	float getLevel() {
+		return level;
+	}
+}
@@ -0,0 +1,178 @@
+package com.davehub.dlooper.loop;
+
+/**
+ * A fixed set of preallocated voices for one DrumSound, letting retriggers overlap the tail of earlier hits.
+ * When every voice is busy one is stolen according to the StealPolicy, so starting a voice never allocates or blocks.
+ * Voices are only touched by the AudioEngine render thread.
+ */
+public class VoicePool {
+	
+	/**
+	 * How a busy voice is chosen to be reused when every voice in the pool is sounding
+	 */
+	public enum StealPolicy {
+		/**
+		 * Reuse the voice that was started first
+		 */
+		OLDEST,
+		/**
+		 * Reuse the voice whose last rendered block was the quietest
+		 */
+		QUIETEST
+	};
+	
+	/**
+	 * The preallocated voices
+	 */
+	private final Voice[] voices;
+	/**
+	 * The policy used to pick a voice to reuse when all are busy
+	 */
+	private volatile StealPolicy stealPolicy;
+	/**
+	 * True while the Mixer is rendering this pool. Only touched by the render thread.
+	 */
+	private boolean mixing;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a pool of free voices
+	 * @param polyphony The number of voices, the most hits of the sound that can sound at once
+	 * @param stealPolicy The policy used to pick a voice to reuse when all are busy
+	 */
+	public VoicePool(int polyphony, StealPolicy stealPolicy) {
+		this.voices = new Voice[polyphony];
+		for (int i = 0; i < polyphony; i++) {
+			voices[i] = new Voice();
+		}
+		this.stealPolicy = stealPolicy;
+		this.mixing = false;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Starts a free voice playing the given sample, stealing a busy one if none are free
+	 * @param sample The sample to play
+	 * @param channel The pattern whose volume and mute apply, or null for full volume
+	 * @param order A number that increases with every voice started, used to find the oldest voice
+	 * @param delay The number of frames from the current frame before the sample starts sounding
+	 * @param velocity The gain of this hit, from 0.0 to 1.0
+	 */
+	void start(Sample sample, Pattern channel, long order, int delay, float velocity) {
+		Voice chosen = null;
+		for (Voice voice: voices) {
+			if (!voice.isActive()) {
+				chosen = voice;
+				break;
+			}
+		}
+		if (chosen == null) {
+			chosen = steal();
+		}
+		chosen.start(sample, channel, order, delay, velocity);
+	}
+	
+	/**
+	 * Picks the busy voice to reuse according to the steal policy
+	 * @return The voice to restart
+	 */
+	private Voice steal() {
+		Voice chosen = voices[0];
+		if (stealPolicy == StealPolicy.QUIETEST) {
+			for (Voice voice: voices) {
+				if (voice.getLevel() < chosen.getLevel()) {
+					chosen = voice;
+				}
+			}
+		} else {
+			for (Voice voice: voices) {
+				if (voice.getOrder() < chosen.getOrder()) {
+					chosen = voice;
+				}
+			}
+		}
+		return chosen;
+	}
+	
+	/**
+	 * Silences every voice in the pool
+	 */
+	void stopAll() {
+		for (Voice voice: voices) {
+			voice.stop();
+		}
+	}
+	
+	/**
+	 * Adds every sounding voice into the buffer
+	 * @param buffer The interleaved mix buffer
+	 * @param offset The first frame of the buffer to write to
+	 * @param frames The number of frames to write
+	 * @return False once no voice in the pool is sounding
+	 */
+	boolean render(float[] buffer, int offset, int frames) {
+		boolean active = false;
+		for (Voice voice: voices) {
+			if (voice.render(buffer, offset, frames)) {
+				active = true;
+			}
+		}
+		return active;
+	}
+	
+	
+	// -------------------
+	// Getters and Setters
+	// -------------------
+	
+	
+	/**
+	 * Returns the number of voices in the pool
+	 * @return The polyphony of the pool
+	 */
+	public int getPolyphony() {
+		return voices.length;
+	}
+	
+	/**
+	 * Returns the policy used to pick a voice to reuse when all are busy
+	 * @return The StealPolicy
+	 */
+	public StealPolicy getStealPolicy() {
+		return stealPolicy;
+	}
+	
+	/**
+	 * Sets the policy used to pick a voice to reuse when all are busy, taking effect on the next trigger
+	 * @param stealPolicy The StealPolicy to use
+	 */
+	public void setStealPolicy(StealPolicy stealPolicy) {
+		this.stealPolicy = stealPolicy;
+	}
+	
+	/**
+	 * Returns whether the Mixer is currently rendering this pool. Render thread only.
+	 * @return True if the pool is in the Mixer
+	 */
+	boolean isMixing() {
+		return mixing;
+	}
+	
+	/**
+	 * Marks whether the Mixer is rendering this pool. Render thread only.
+	 * @param mixing True when added to the Mixer, false when removed
+	 */
+	void setMixing(boolean mixing) {
+		this.mixing = mixing;
+	}
+}
@@ -0,0 +1,215 @@
+package com.davehub.dlooper.ui;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.davehub.dlooper.DLooper;
+import com.davehub.dlooper.loop.AudioEngine;
+import com.davehub.dlooper.loop.BinaryLoopFile;
+import com.davehub.dlooper.loop.Loop;
+import com.davehub.dlooper.loop.LoopBundle;
+import com.davehub.dlooper.loop.LoopRenderer;
+import com.davehub.dlooper.loop.SampleCache;
+
+/**
+ * Headless entry point that renders every .dlf, .dlb and .dlpack file under a directory to WAV in parallel.
+ * Files are rendered on a fork-join pool and share the process-wide SampleCache, so a sample used by many loops is decoded once.
+ * Each WAV is written next to its loop, or in the same subdirectory of the output directory as the loop is of the input one.
+ * @author dave
+ *
+ */
+public class DLooperBatch {
+	
+	/**
+	 * The directory searched for .dlf files
+	 */
+	private Path inputDir;
+	/**
+	 * The directory WAV files are written to, keeping the subdirectories of the input directory,
+	 * or null to write each next to its .dlf file
+	 */
+	private Path outputDir;
+	/**
+	 * The number of times each loop's pattern is rendered
+	 */
+	private int bars;
+	/**
+	 * The pool the renders run on
+	 */
+	private ForkJoinPool pool;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a batch renderer
+	 * @param inputDir The directory searched for .dlf files, including subdirectories
+	 * @param outputDir The directory to write WAV files to, or null to write each next to its .dlf file
+	 * @param bars The number of times each loop's pattern is rendered
+	 * @param parallelism The number of files rendered at once
+	 */
+	public DLooperBatch(Path inputDir, Path outputDir, int bars, int parallelism) {
+		this.inputDir = inputDir;
+		this.outputDir = outputDir;
+		this.bars = bars;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Renders every loop file found, printing the timing of each and the total throughput
+	 * @return The number of files that failed to render
+	 * @throws IOException When the input directory can't be walked
+	 */
+	public int run() throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(inputDir)) {
+			files = walk.filter(p -> (p.toString().endsWith(".dlf") || BinaryLoopFile.isBinary(p.toString()) || LoopBundle.isBundle(p.toString())) && Files.isRegularFile(p)).sorted().collect(Collectors.toList());
+		}
+		System.out.println("Rendering " + files.size() + " files on " + pool.getParallelism() + " threads...");
+		
+		//loops that would render to the same WAV, such as loop.dlf and loop.dlb, would overwrite each other
+		//as they're rendered at once, so none of them are rendered
+		Map<Path, List<Path>> outputs = new HashMap<Path, List<Path>>();
+		for (Path file: files) {
+			outputs.computeIfAbsent(getOutput(file), out -> new ArrayList<Path>()).add(file);
+		}
+		
+		long start = System.nanoTime();
+		List<ForkJoinTask<Result>> tasks = new ArrayList<ForkJoinTask<Result>>();
+		for (Path file: files) {
+			Path out = getOutput(file);
+			List<Path> sharing = outputs.get(out);
+			if (sharing.size() > 1) {
+				tasks.add(pool.submit(() -> new Result(file, 0, 0, "Renders to the same WAV as "
+						+ sharing.stream().filter(other -> other != file).collect(Collectors.toList()) + ", so none of them were rendered")));
+			} else tasks.add(pool.submit(() -> render(file, out)));
+		}
+		int failed = 0;
+		long frames = 0;
+		for (ForkJoinTask<Result> task: tasks) {
+			Result result = task.join();
+			if (result.error != null) {
+				failed++;
+				System.err.println("ERROR: " + result.file + ": " + result.error);
+			} else {
+				frames += result.frames;
+				System.out.printf("%s: %.1fs audio in %.3fs%n", result.file, result.frames / AudioEngine.SAMPLE_RATE, result.nanos / 1e9);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double audio = frames / AudioEngine.SAMPLE_RATE;
+		SampleCache cache = SampleCache.getInstance();
+		System.out.printf("Done. %d files (%d failed) in %.3fs: %.1f files/s, %.1fs audio (%.0fx realtime)%n",
+				files.size(), failed, seconds, files.size() / seconds, audio, audio / seconds);
+		System.out.println("Sample cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getNumSamples() + " samples");
+		pool.shutdown();
+		return failed;
+	}
+	
+	/**
+	 * Returns the WAV file a loop file is rendered to, its name with the extension replaced by .wav
+	 * @param file The .dlf, .dlb or .dlpack file
+	 * @return The path next to the file, or under the output directory at the file's path within the input directory
+	 */
+	private Path getOutput(Path file) {
+		String name = file.getFileName().toString();
+		name = name.substring(0, name.lastIndexOf('.')) + ".wav";
+		return outputDir == null ? file.resolveSibling(name) : outputDir.resolve(inputDir.relativize(file)).resolveSibling(name);
+	}
+	
+	/**
+	 * Parses and renders a single loop file, run on the pool
+	 * @param file The .dlf, .dlb or .dlpack file
+	 * @param out The WAV file to write, its directory is created if needed
+	 * @return The timing of the render, or the error that stopped it
+	 */
+	private Result render(Path file, Path out) {
+		long start = System.nanoTime();
+		try {
+			Loop loop = DLooper.readFromFile(file.toString());
+			Files.createDirectories(out.toAbsolutePath().getParent());
+			long frames = new LoopRenderer(loop, bars).renderToFile(out.toString());
+			return new Result(file, frames, System.nanoTime() - start, null);
+		} catch (Exception e) {
+			return new Result(file, 0, System.nanoTime() - start, e.getMessage());
+		}
+	}
+	
+	/**
+	 * The outcome of rendering one file
+	 */
+	private static class Result {
+		
+		/**
+		 * The .dlf file rendered
+		 */
+		private final Path file;
+		/**
+		 * The number of frames written
+		 */
+		private final long frames;
+		/**
+		 * The time taken to parse and render the file
+		 */
+		private final long nanos;
+		/**
+		 * The error message if the file failed, otherwise null
+		 */
+		private final String error;
+		
+		/**
+		 * Creates a result
+		 * @param file The .dlf file rendered
+		 * @param frames The number of frames written
+		 * @param nanos The time taken in nanoseconds
+		 * @param error The error message if the file failed, otherwise null
+		 */
+		private Result(Path file, long frames, long nanos, String error) {
+			this.file = file;
+			this.frames = frames;
+			this.nanos = nanos;
+			this.error = error;
+		}
+	}
+	
+	
+	// ------------
+	// Main Methods
+	// ------------
+	
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: DLooperBatch <dir> [outdir] [bars] [threads]");
+			System.out.println("Renders every .dlf, .dlb and .dlpack file under <dir> to a WAV file, next to it or in the same place under [outdir]");
+			System.exit(1);
+		}
+		Path outputDir = args.length >= 2 ? Paths.get(args[1]) : null;
+		int bars = args.length >= 3 && DLooper.isNumeric(args[2]) ? Integer.parseInt(args[2]) : 1;
+		int threads = args.length >= 4 && DLooper.isNumeric(args[3]) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		if (outputDir != null) {
+			Files.createDirectories(outputDir);
+		}
+		int failed = new DLooperBatch(Paths.get(args[0]), outputDir, Math.max(1, bars), Math.max(1, threads)).run();
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
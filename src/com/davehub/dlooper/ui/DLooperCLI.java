@@ -2,11 +2,20 @@ package com.davehub.dlooper.ui;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import com.davehub.dlooper.Controller;
 import com.davehub.dlooper.DLooper;
+import com.davehub.dlooper.loop.AudioEngine;
+import com.davehub.dlooper.loop.Loop;
 import com.davehub.dlooper.loop.Pattern;
+import com.davehub.dlooper.loop.SampleIndex;
+import com.davehub.dlooper.loop.SampleInfo;
+import com.davehub.dlooper.loop.TimingStats;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -23,7 +32,8 @@ public class DLooperCLI extends Application {
 	 * Enum of runnable commands
 	 */
 	private enum Command {
-		help, quit, play, stop, addpattern, rmpattern, setpl, pl, setbpm, bpm, setrepeat, view, setpattern, save, load, unknown
+		help, quit, play, stop, addpattern, rmpattern, setpl, pl, setbpm, bpm, setspb, spb, setrepeat, view, setpattern, setstep, setpatternspb, setpatternpl, save, load, convert, render, stats, search, index,
+		section, rmsection, song, playsong, setsongrepeat, rendersong, unknown
 	};
 		
 	/**
@@ -31,6 +41,11 @@ public class DLooperCLI extends Application {
 	 */
 	private Controller controller;
 	
+	/**
+	 * The most samples printed by a search
+	 */
+	private static final int SEARCH_RESULTS = 50;
+	
 	/**
 	 * Whether the program is still taking inputs and executing. Used when quit() is called.
 	 */
@@ -67,17 +82,36 @@ public class DLooperCLI extends Application {
 		System.out.println("play              - Plays the loop");
 		System.out.println("stop              - Stops playing");
 		System.out.println("view              - View the loop");
-		System.out.println("save <path>       - Save the loop to the file at the given path");
-		System.out.println("load <path>       - Load the loop from the file at the specified path");
+		System.out.println("save <path>       - Save the loop to the file at the given path, as binary if it ends in .dlb, or as a bundle with its samples if it ends in .dlpack");
+		System.out.println("load <path>       - Load the loop from the file at the specified path (.dlf, .dlb or .dlpack)");
+		System.out.println("convert <from> <to> - Convert a loop file between .dlf, .dlb and .dlpack, by the extension of <to>");
+		System.out.println("render <path> [bars|cycle] - Render the loop to a WAV file, playing the pattern [bars] times (default 1), or until every pattern lines up again");
 		System.out.println("setpl <length>	  - Sets the length of the patterns to the specified length");
 		System.out.println("pl                - Prints the current pattern length");
-		System.out.println("setbpm <bpm>      - Sets the BPM to the given int");
+		System.out.println("setbpm <bpm>      - Sets the BPM to the given number, decimals such as 128.5 are allowed");
 		System.out.println("bpm               - Prints the current BPM");
+		System.out.println("setspb <steps>    - Sets the steps in each beat, such as 4 for semiquavers, which must divide " + Loop.PPQN);
+		System.out.println("spb               - Prints the current steps per beat");
 		System.out.println("setrepeat <bool>  - Sets whether to repeat or not, true to repeat.");
+		System.out.println("stats [on|off|reset] - Prints the beat timing recorded while playing, or turns recording on/off");
+		System.out.println("\n---Song---");
+		System.out.println("section <path|current> [times] - Adds a section playing the loop in the file, or the current loop, [times] times (default 1)");
+		System.out.println("rmsection <num>            - Removes the section with the given number");
+		System.out.println("song                       - View the sections of the song");
+		System.out.println("playsong                   - Plays the sections one after another, switching on the bar with no gap");
+		System.out.println("setsongrepeat <bool>       - Sets whether the song starts again after its last section");
+		System.out.println("rendersong <path>          - Render the song once through to a WAV file");
+		System.out.println("\n---Sample Library---");
+		System.out.println("search [words]             - Lists the indexed samples whose path contains every word");
+		System.out.println("index [dir]                - Adds a directory of samples to the index, and rescans the index");
 		System.out.println("\n---Pattern Control---");
-		System.out.println("addpattern <file>          - Adds a new pattern with the specified file as the sound");
+		System.out.println("addpattern <file> [file..] - Adds a new pattern for each file given, loading the files in parallel");
 		System.out.println("rmpattern <num>            - Removes the pattern with the given number");
 		System.out.println("setpattern <num> <pattern> - Sets the pattern with the given number to the pattern given");
+		System.out.println("setstep <num> <step> <settings> - Sets how a step plays, such as v=64,p=50,n=-12 for velocity 64 (of "
+				+ Pattern.MAX_VELOCITY + "), a 50% chance and 12 ticks (of " + Loop.PPQN + " a beat) early");
+		System.out.println("setpatternspb <num> <steps|loop> - Sets the steps in each beat of one pattern, such as 3 for triplets, or loop to follow the loop");
+		System.out.println("setpatternpl <num> <length|loop> - Sets one pattern to keep its own length, such as 5 steps over 16, or loop to follow the loop");
 		System.out.println("\n----------\n");
 	}
 	
@@ -115,10 +149,19 @@ public class DLooperCLI extends Application {
 		System.out.println("\n---Pattern---\n");
 		bpm();
 		patternLength();
+		stepsPerBeat();
+		long cycle = controller.getCycleBars();
+		if (cycle > 1) {
+			System.out.println("Cycle: " + (cycle == Long.MAX_VALUE ? "too long to count" : cycle + " bars"));
+		}
 		System.out.println();
 		int i = 0;
 		for (Pattern pattern: controller.getPatterns()) {
-			System.out.println(i + ": " + pattern.getPattern() + " (" + pattern.getSound().getFilePath() + ")");
+			String settings = pattern.getStepSettings();
+			String resolution = (pattern.getStepsPerBeat() == Pattern.LOOP_STEPS_PER_BEAT ? ""
+					: " [" + pattern.getStepsPerBeat() + " per beat]") + (pattern.hasOwnLength() ? " [own length]" : "");
+			System.out.println(i + ": " + pattern.getPattern() + (settings.isEmpty() ? "" : " " + settings) + resolution
+					+ " (" + pattern.getSound().getFilePath() + ")");
 			i++;
 		}
 		System.out.println();
@@ -157,6 +200,95 @@ public class DLooperCLI extends Application {
 		}
 	}
 	
+	/**
+	 * Converts a loop file between the .dlf text, .dlb binary and .dlpack bundle formats, without changing the current loop
+	 * @param from The file to read
+	 * @param to The file to write, whose extension picks the format
+	 */
+	private void convertFile(String from, String to) {
+		try {
+			System.out.println("Converting " + from + " to " + to);
+			DLooper.writeToFile(DLooper.readFromFile(from), to);
+			System.out.println("Done.");
+		} catch (FileNotFoundException e) {
+			System.err.println("ERROR: File not found");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Render the loop to the given WAV file.
+	 * @param filePath The file to write the audio to.
+	 * @param bars The number of times to play through the pattern.
+	 */
+	private void renderToFile(String filePath, int bars) {
+		try {
+			System.out.println("Rendering to file: " + filePath);
+			long start = System.nanoTime();
+			if (controller.renderToFile(filePath, bars)) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				double length = bars * controller.getPatternLength() * 60.0 / controller.getBpm() / controller.getStepsPerBeat();
+				System.out.printf("Done. Rendered %.1fs of audio in %.3fs (%.0fx realtime)%n", length, seconds, length / seconds);
+			} else {
+				System.out.println("ERROR: Number of bars must be > 0.");
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not write to file");
+		}
+	}
+	
+	/**
+	 * Render the loop to the given WAV file for its full cycle, until every pattern with its own length lines up again.
+	 * @param filePath The file to write the audio to.
+	 */
+	private void renderCycleToFile(String filePath) {
+		long cycle = controller.getCycleBars();
+		if (cycle > Integer.MAX_VALUE) {
+			System.out.println("ERROR: The cycle is too long to render, " + (cycle == Long.MAX_VALUE ? "too many" : cycle) + " bars");
+		} else {
+			System.out.println("Cycle: " + cycle + " bars");
+			renderToFile(filePath, (int) cycle);
+		}
+	}
+	
+	/**
+	 * Prints how closely the beats played have followed the ideal 60000/bpm grid
+	 */
+	public void stats() {
+		TimingStats stats = controller.getTimingStats();
+		if (stats == null) {
+			System.out.println("Timing is not being recorded, use 'stats on' then 'play'.");
+			return;
+		}
+		System.out.println("\n---Timing---\n");
+		System.out.println("Beats played: " + stats.getBeats());
+		System.out.println("Missed beats: " + stats.getMissed());
+		System.out.printf("Jitter p50:   %.3f ms%n", stats.getJitterPercentile(50) / 1e6);
+		System.out.printf("Jitter p99:   %.3f ms%n", stats.getJitterPercentile(99) / 1e6);
+		System.out.printf("Jitter max:   %.3f ms%n", stats.getMaxJitter() / 1e6);
+		System.out.printf("Drift:        %.3f ms (%.3f ms per minute)%n%n", stats.getDrift() / 1e6, stats.getDriftPerMinute() / 1e6);
+	}
+	
+	/**
+	 * Turns timing recording on or off, or clears what has been recorded
+	 * @param setting "on", "off" or "reset", printing an error otherwise
+	 */
+	public void setStats(String setting) {
+		if (setting.equals("on")) {
+			controller.setRecordTiming(true);
+		} else if (setting.equals("off")) {
+			controller.setRecordTiming(false);
+		} else if (setting.equals("reset")) {
+			TimingStats stats = controller.getTimingStats();
+			if (stats != null) {
+				stats.reset();
+			}
+		} else {
+			System.out.println("ERROR: Argument must be \"on\", \"off\" or \"reset\"");
+		}
+	}
+	
 	/**
 	 * Displays the current pattern length
 	 */
@@ -169,10 +301,10 @@ public class DLooperCLI extends Application {
 	 * @param length The length of which you want the pattern
 	 */
 	public void setPatternLength(String length) {
-		if (length.matches("[0-9]+")) {
+		if (length.matches("[0-9]{1,9}")) {
 			int len = Integer.parseInt(length);
 			if (!controller.setPatternLength(len)) {
-				System.out.println("ERROR: Pattern length not set, length <= 0.");
+				System.out.println("ERROR: Pattern length not set, length must be 1 - " + Loop.MAX_PATTERN_LENGTH + ".");
 			}
 		} else {
 			System.out.println("ERROR: Argument must be an integer.");
@@ -183,21 +315,42 @@ public class DLooperCLI extends Application {
 	 * Displays the current bpm
 	 */
 	public void bpm() {
-		System.out.println("Beats Per Minute: " + controller.getBpm());
+		System.out.println("Beats Per Minute: " + Loop.formatBpm(controller.getBpm()));
 	}
 	
 	/**
 	 * Set the Beats Per Minute (BPM) to the given value
-	 * @param bpm
+	 * @param bpm The new BPM, which can be fractional such as 128.5
 	 */
 	public void setBpm(String bpm) {
-		if (bpm.matches("[0-9]+")) {
-			int BPM = Integer.parseInt(bpm);
+		if (DLooper.isDecimal(bpm)) {
+			double BPM = Double.parseDouble(bpm);
 			if (!controller.setBpm(BPM)) {
 				System.out.println("ERROR: BPM not set, bpm <= 0");
 			}
 		} else {
-			System.out.println("ERROR: Argument must be an integer");
+			System.out.println("ERROR: Argument must be a number");
+		}
+	}
+	
+	/**
+	 * Displays the current steps per beat
+	 */
+	public void stepsPerBeat() {
+		System.out.println("Steps Per Beat: " + controller.getStepsPerBeat());
+	}
+	
+	/**
+	 * Sets the number of steps in each beat of the loop
+	 * @param stepsPerBeat The new steps per beat, which must divide Loop.PPQN
+	 */
+	public void setStepsPerBeat(String stepsPerBeat) {
+		if (stepsPerBeat.matches("[0-9]{1,9}")) {
+			if (!controller.setStepsPerBeat(Integer.parseInt(stepsPerBeat))) {
+				System.out.println("ERROR: Steps per beat not set, it must divide " + Loop.PPQN + ", such as 1, 2, 3, 4, 6 or 8");
+			}
+		} else {
+			System.out.println("ERROR: Argument must be an integer.");
 		}
 	}
 	
@@ -216,6 +369,84 @@ public class DLooperCLI extends Application {
 	}
 	
 	
+	// ----
+	// Song
+	// ----
+	
+	
+	/**
+	 * Adds a section to the song, reading the loop from a file with every sound decoded before it's added
+	 * @param source The path of a loop file, or "current" for the loop being edited
+	 * @param repeats The number of times to play through the loop's pattern
+	 */
+	public void addSection(String source, int repeats) {
+		try {
+			Loop loop = source.equals("current") ? controller.getLoop() : DLooper.readFromFile(source);
+			if (!controller.addSection(loop, repeats)) {
+				System.out.println("ERROR: Number of times must be > 0.");
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("ERROR: File not found");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Prints the sections of the song
+	 */
+	public void song() {
+		System.out.println("\n---Song---\n");
+		System.out.println("Repeat: " + controller.getArrangement().getRepeat());
+		System.out.println();
+		System.out.print(controller.getArrangement());
+		System.out.println();
+	}
+	
+	/**
+	 * Plays the song from its first section
+	 */
+	public void playSong() {
+		if (!controller.playArrangement()) {
+			System.out.println("ERROR: The song has no sections, use 'section' to add one");
+		}
+	}
+	
+	/**
+	 * Sets whether the song starts again after its last section
+	 * @param repeat String representing "true" or "false", printing an error otherwise.
+	 */
+	public void setSongRepeat(String repeat) {
+		if (repeat.equals("true")) {
+			controller.getArrangement().setRepeat(true);
+		} else if (repeat.equals("false")) {
+			controller.getArrangement().setRepeat(false);
+		} else {
+			System.out.println("ERROR: Argument must be \"true\" or \"false\"");
+		}
+	}
+	
+	/**
+	 * Render the song once through to the given WAV file.
+	 * @param filePath The file to write the audio to.
+	 */
+	private void renderSongToFile(String filePath) {
+		try {
+			System.out.println("Rendering to file: " + filePath);
+			long start = System.nanoTime();
+			if (controller.renderArrangementToFile(filePath)) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				double length = controller.getArrangement().getFrames() / AudioEngine.SAMPLE_RATE;
+				System.out.printf("Done. Rendered %.1fs of audio in %.3fs (%.0fx realtime)%n", length, seconds, length / seconds);
+			} else {
+				System.out.println("ERROR: The song has no sections, use 'section' to add one");
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not write to file");
+		}
+	}
+	
+	
 	// ---------------
 	// Pattern Control
 	// ---------------
@@ -233,6 +464,25 @@ public class DLooperCLI extends Application {
 		}
 	}
 	
+	/**
+	 * Adds a pattern for each of the given sounds, decoding them all at once.
+	 * Waits until every one is added so the next command sees them.
+	 * @param filePaths The paths to the sound files, added in this order
+	 */
+	public void addPatterns(String[] filePaths) {
+		ArrayList<CompletableFuture<Pattern>> added = new ArrayList<CompletableFuture<Pattern>>(filePaths.length);
+		for (String filePath: filePaths) {
+			added.add(controller.addPatternAsync(filePath));
+		}
+		for (CompletableFuture<Pattern> pattern: added) {
+			try {
+				pattern.join();
+			} catch (CompletionException e) {
+				System.err.println(e.getCause().getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * Remvoes the pattern at the given index
 	 * @param index The index of the pattern to remove within the loop
@@ -250,12 +500,6 @@ public class DLooperCLI extends Application {
 	 * @param pattern The pattern string to set the Pattern at the given index to.
 	 */
 	public void setPattern(int index, String pattern) {
-		if (pattern.length() != controller.getPatternLength()) {
-			System.out.println("ERROR: Given pattern is not of correct length");
-			System.out.println("Pattern Length: " + controller.getPatternLength());
-			System.out.println("Given Pattern:  " + pattern.length());
-			return;
-		}
 		if (index >= controller.getNumPatterns()) {
 			System.out.println("ERROR: Given pattern number out of range.");
 			if (controller.getNumPatterns() > 0) {
@@ -263,9 +507,107 @@ public class DLooperCLI extends Application {
 			} else System.out.println("There are currently no patterns, use 'addpattern' to add one");
 			return;
 		}
+		int length = controller.getPattern(index).getLength();
+		if (pattern.length() != length) {
+			System.out.println("ERROR: Given pattern is not of correct length");
+			System.out.println("Pattern Length: " + length);
+			System.out.println("Given Pattern:  " + pattern.length());
+			return;
+		}
 		controller.setPattern(index, pattern);
 	}
 	
+	/**
+	 * Sets the velocity, probability and nudge of one step, keeping any setting not given
+	 * @param index The index of the pattern, the number to the left of the pattern when using 'view'
+	 * @param step The index of the step within the pattern
+	 * @param settings Comma separated settings, v=velocity, p=probability and n=nudge, such as v=64,p=50,n=-12
+	 */
+	private void setStep(int index, int step, String settings) {
+		if (index >= controller.getNumPatterns()) {
+			System.out.println("ERROR: Pattern " + index + " does not exist.");
+			return;
+		}
+		Pattern pattern = controller.getPattern(index);
+		if (step >= pattern.getLength()) {
+			System.out.println("ERROR: Step " + step + " is past the end of the pattern, steps range 0 - " + (pattern.getLength()-1));
+			return;
+		}
+		int velocity = pattern.getVelocity(step);
+		int probability = pattern.getProbability(step);
+		int nudge = pattern.getNudge(step);
+		for (String setting: settings.split(",")) {
+			String value = setting.length() > 2 && setting.charAt(1) == '=' ? setting.substring(2) : "";
+			if (!value.matches("-?[0-9]{1,9}")) {
+				System.out.println("ERROR: \"" + setting + "\" should be a setting and a whole number, such as v=64, p=50 or n=-12");
+				return;
+			}
+			switch (setting.charAt(0)) {
+				case 'v':
+					velocity = Integer.parseInt(value);
+					break;
+				case 'p':
+					probability = Integer.parseInt(value);
+					break;
+				case 'n':
+					nudge = Integer.parseInt(value);
+					break;
+				default:
+					System.out.println("ERROR: Unknown setting '" + setting.charAt(0) + "', use v for velocity, p for probability or n for nudge");
+					return;
+			}
+		}
+		if (!controller.setPatternStep(index, step, velocity, probability, nudge)) {
+			System.out.println("ERROR: Velocity must be 0 - " + Pattern.MAX_VELOCITY + ", probability 0 - " + Pattern.MAX_PROBABILITY
+					+ " and nudge -" + Pattern.MAX_NUDGE + " - " + Pattern.MAX_NUDGE);
+		}
+	}
+	
+	/**
+	 * Sets one pattern to keep its own length, or to be resized with the loop again
+	 * @param index The index of the pattern, the number to the left of the pattern when using 'view'
+	 * @param length The number of steps, or "loop" to follow the loop's pattern length
+	 */
+	private void setPatternOwnLength(int index, String length) {
+		if (index >= controller.getNumPatterns()) {
+			System.out.println("ERROR: Pattern " + index + " does not exist.");
+			return;
+		}
+		if (length.equals("loop")) {
+			controller.setPatternOwnLength(index, Pattern.LOOP_LENGTH);
+		} else if (length.matches("[0-9]{1,9}") && Integer.parseInt(length) > 0) {
+			if (!controller.setPatternOwnLength(index, Integer.parseInt(length))) {
+				System.out.println("ERROR: Pattern length not set, length must be 1 - " + Loop.MAX_PATTERN_LENGTH + ".");
+			}
+		} else {
+			System.out.println("ERROR: Second argument must be an integer > 0 or \"loop\".");
+		}
+	}
+	
+	/**
+	 * Sets the number of steps in each beat of one pattern, resizing it to fill the loop's pattern length
+	 * @param index The index of the pattern, the number to the left of the pattern when using 'view'
+	 * @param stepsPerBeat The steps per beat, or "loop" to follow the loop's
+	 */
+	private void setPatternStepsPerBeat(int index, String stepsPerBeat) {
+		if (index >= controller.getNumPatterns()) {
+			System.out.println("ERROR: Pattern " + index + " does not exist.");
+			return;
+		}
+		int spb;
+		if (stepsPerBeat.equals("loop")) {
+			spb = Pattern.LOOP_STEPS_PER_BEAT;
+		} else if (stepsPerBeat.matches("[0-9]{1,9}") && Integer.parseInt(stepsPerBeat) > 0) {
+			spb = Integer.parseInt(stepsPerBeat);
+		} else {
+			System.out.println("ERROR: Second argument must be an integer or \"loop\".");
+			return;
+		}
+		if (!controller.setPatternStepsPerBeat(index, spb)) {
+			System.out.println("ERROR: Steps per beat not set, it must divide " + Loop.PPQN + ", such as 1, 2, 3, 4, 6 or 8");
+		}
+	}
+	
 	// -------
 	// Methods
 	// -------
@@ -300,7 +642,7 @@ public class DLooperCLI extends Application {
 				break;
 			case addpattern:
 				if (args.length >= 1) {
-					addPattern(args[0]);
+					addPatterns(args);
 				} else System.out.println("ERROR: Requires one argument.");
 				break;
 			case rmpattern:
@@ -326,6 +668,14 @@ public class DLooperCLI extends Application {
 			case bpm:
 				bpm();
 				break;
+			case setspb:
+				if (args.length >= 1) {
+					setStepsPerBeat(args[0]);
+				} else System.out.println("ERROR: Requires one argument.");
+				break;
+			case spb:
+				stepsPerBeat();
+				break;
 			case setrepeat:
 				if (args.length >= 1) {
 					setRepeat(args[0]);
@@ -341,6 +691,27 @@ public class DLooperCLI extends Application {
 					} else System.out.println("ERROR: First arguemnt must be numeric.");
 				} else System.out.println("ERROR: Requires two arguments.");
 				break;
+			case setstep:
+				if (args.length >= 3) {
+					if (isNumeric(args[0]) && isNumeric(args[1])) {
+						setStep(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2]);
+					} else System.out.println("ERROR: First two arguments must be numeric.");
+				} else System.out.println("ERROR: Requires three arguments.");
+				break;
+			case setpatternpl:
+				if (args.length >= 2) {
+					if (isNumeric(args[0])) {
+						setPatternOwnLength(Integer.parseInt(args[0]), args[1]);
+					} else System.out.println("ERROR: First arguemnt must be numeric.");
+				} else System.out.println("ERROR: Requires two arguments.");
+				break;
+			case setpatternspb:
+				if (args.length >= 2) {
+					if (isNumeric(args[0])) {
+						setPatternStepsPerBeat(Integer.parseInt(args[0]), args[1]);
+					} else System.out.println("ERROR: First arguemnt must be numeric.");
+				} else System.out.println("ERROR: Requires two arguments.");
+				break;
 			case save:
 				if (args.length >= 1) {
 					saveToFile(args[0]);
@@ -351,12 +722,110 @@ public class DLooperCLI extends Application {
 					loadFromFile(args[0]);
 				} else System.out.println("ERROR: Must specify file to load from.");
 				break;
+			case convert:
+				if (args.length >= 2) {
+					convertFile(args[0], args[1]);
+				} else System.out.println("ERROR: Must specify the file to convert and the file to write.");
+				break;
+			case render:
+				if (args.length >= 2) {
+					if (isNumeric(args[1])) {
+						renderToFile(args[0], Integer.parseInt(args[1]));
+					} else if (args[1].equals("cycle")) {
+						renderCycleToFile(args[0]);
+					} else System.out.println("ERROR: Second argument must be numeric or \"cycle\".");
+				} else if (args.length == 1) {
+					renderToFile(args[0], 1);
+				} else System.out.println("ERROR: Must specify file to render to.");
+				break;
+			case stats:
+				if (args.length >= 1) {
+					setStats(args[0]);
+				} else stats();
+				break;
+			case section:
+				if (args.length >= 2) {
+					if (isNumeric(args[1])) {
+						addSection(args[0], Integer.parseInt(args[1]));
+					} else System.out.println("ERROR: Second argument must be numeric.");
+				} else if (args.length == 1) {
+					addSection(args[0], 1);
+				} else System.out.println("ERROR: Must specify a loop file or \"current\".");
+				break;
+			case rmsection:
+				if (args.length >= 1) {
+					if (isNumeric(args[0])) {
+						if (!controller.removeSection(Integer.parseInt(args[0]))) {
+							System.out.println("ERROR: Section " + args[0] + " does not exist.");
+						}
+					} else System.out.println("ERROR: Arguemnt must be numeric.");
+				} else System.out.println("ERROR: Requires one argument.");
+				break;
+			case song:
+				song();
+				break;
+			case playsong:
+				playSong();
+				break;
+			case setsongrepeat:
+				if (args.length >= 1) {
+					setSongRepeat(args[0]);
+				} else System.out.println("ERROR: Requires one argument.");
+				break;
+			case rendersong:
+				if (args.length >= 1) {
+					renderSongToFile(args[0]);
+				} else System.out.println("ERROR: Must specify file to render to.");
+				break;
+			case search:
+				search(String.join(" ", args));
+				break;
+			case index:
+				index(args.length >= 1 ? String.join(" ", args) : null);
+				break;
 			default:
 				System.out.println("ERROR: Unrecognised Command \"" + command + "\". Type \"help\" for help");
 				break;
 		}
 	}
 	
+	/**
+	 * Prints the indexed samples whose path contains every word of the query, without waiting for a scan
+	 * @param query The words to search for, separated by spaces
+	 */
+	public void search(String query) {
+		SampleIndex index = SampleIndex.getInstance();
+		List<SampleInfo> matches = index.search(query);
+		System.out.println();
+		for (int i = 0; i < matches.size() && i < SEARCH_RESULTS; i++) {
+			System.out.println(matches.get(i).getFilePath());
+			System.out.println("    " + matches.get(i));
+		}
+		if (matches.size() > SEARCH_RESULTS) {
+			System.out.println("... and " + (matches.size() - SEARCH_RESULTS) + " more, add words to narrow the search");
+		}
+		System.out.println(matches.size() + " of " + index.getSamples().size() + " samples"
+				+ (index.isScanning() ? " (still indexing)" : ""));
+		System.out.println();
+	}
+	
+	/**
+	 * Adds a directory to the sample index if given, then rescans every indexed directory, waiting until it's done
+	 * @param directory The directory to add, or null to only rescan
+	 */
+	public void index(String directory) {
+		SampleIndex index = SampleIndex.getInstance();
+		if (directory != null && !index.addDirectory(directory)) {
+			System.out.println("ERROR: Not a directory: " + directory);
+			return;
+		}
+		System.out.println("Indexing " + String.join(", ", index.getDirectories()));
+		long start = System.nanoTime();
+		int analysed = index.scanAsync().join();
+		System.out.printf("Done. %d samples indexed, %d analysed in %.3fs%n", index.getSamples().size(), analysed,
+				(System.nanoTime() - start) / 1e9);
+	}
+	
 	/**
 	 * Returns whether the program is running or not
 	 * @return The boolean value 'running'.
@@ -394,6 +863,8 @@ public class DLooperCLI extends Application {
 		bpm();
 		patternLength();
 		System.out.println("Type 'help' for help with commands.\n");
+		//index the sample library in the background so searches are ready when needed
+		SampleIndex.getInstance().scanAsync();
 		System.out.print(">>");
 		
 		//loop command execution until.
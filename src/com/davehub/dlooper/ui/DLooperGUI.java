@@ -6,6 +6,7 @@ import javax.swing.JFrame;
 
 import com.davehub.dlooper.DLooper;
 import com.davehub.dlooper.gooey.DLooperWindow;
+import com.davehub.dlooper.loop.SampleIndex;
 
 import javafx.application.Application;
 import javafx.stage.Stage;
@@ -21,5 +22,7 @@ public class DLooperGUI extends Application {
 		DLooper dl = new DLooper();
 		DLooperWindow window = new DLooperWindow(dl);
 		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		//index the sample library in the background so the browser is ready when needed
+		SampleIndex.getInstance().scanAsync();
 	}
 }
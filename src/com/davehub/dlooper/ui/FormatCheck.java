@@ -0,0 +1,277 @@
+package com.davehub.dlooper.ui;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.davehub.dlooper.DLooper;
+import com.davehub.dlooper.loop.Loop;
+import com.davehub.dlooper.loop.LoopReader;
+import com.davehub.dlooper.loop.Pattern;
+
+/**
+ * Headless check of the .dlb and .dlpack formats. Writes loops using everything each format stores, reads them back
+ * and compares them field by field, then checks damaged files are rejected with the byte offset of the problem.
+ * The loops and their sounds are made in a temporary directory, so no files or audio device are needed.
+ * Run it after changing either format, it exits with 1 if any check fails.
+ * @author dave
+ *
+ */
+public class FormatCheck {
+	
+	/**
+	 * A loop with only what version 1 of the .dlb format stores, given the paths of two sounds
+	 */
+	private static final String PLAIN_LOOP = "16\n97.5\nx---x---x---x--- %1$s\n--x---x---x---xx %2$s\n";
+	/**
+	 * A loop using everything version 2 of the .dlb format stores: the loop's steps per beat, a pattern's own
+	 * resolution and length, and step velocities, probabilities and nudges, given the paths of two sounds and a copy
+	 * of the first. Three patterns play the same audio, so a bundle of it should hold two samples.
+	 */
+	private static final String EXTENDED_LOOP = "16 4\n140\n"
+			+ "x---x---x---x--- @0:v=64,p=50 @4:n=-40 @12:v=100,p=25,n=48 %1$s\n"
+			+ "x-x-x-x-x-x- @res=3 @2:n=-8 %1$s\n"
+			+ "x---x @len=5 @4:v=1 %3$s\n"
+			+ "-x-x-x-x-x-x-x-x %2$s\n";
+	/**
+	 * The directory the loops and sounds are written to
+	 */
+	private Path dir;
+	/**
+	 * The number of checks made
+	 */
+	private int checks;
+	/**
+	 * The number of checks that failed
+	 */
+	private int failures;
+	
+	
+	// -----------
+	// Constructor
+	// -----------
+	
+	
+	/**
+	 * Creates a check writing to the given directory
+	 * @param dir An empty directory to write the loops and sounds to
+	 */
+	public FormatCheck(Path dir) {
+		this.dir = dir;
+		this.checks = 0;
+		this.failures = 0;
+	}
+	
+	
+	// -------
+	// Methods
+	// -------
+	
+	
+	/**
+	 * Runs every check, printing each one that fails and a summary
+	 * @return The number of checks that failed
+	 * @throws Exception When the loops or sounds can't be written or a loop can't be read at all
+	 */
+	public int run() throws Exception {
+		String kick = writeSound("kick.wav", 60);
+		String hat = writeSound("hat.wav", 5000);
+		String copy = dir.resolve("kick copy.wav").toString();
+		Files.copy(Path.of(kick), Path.of(copy));
+		
+		Path plain = checkRoundTrip("plain.dlb", String.format(PLAIN_LOOP, kick, hat), 1);
+		Path extended = checkRoundTrip("extended.dlb", String.format(EXTENDED_LOOP, kick, hat, copy), 2);
+		Path bundle = checkRoundTrip("extended.dlpack", String.format(EXTENDED_LOOP, kick, hat, copy), 1);
+		checkBundle(bundle);
+		
+		checkDamaged(plain, "bad magic", 0, new byte[] {0}, "Byte 0: Not a DLooper binary file");
+		checkDamaged(plain, "unknown version", 4, new byte[] {0, 9}, "Byte 4: Unsupported version 9");
+		checkDamaged(plain, "bpm of 0", 8, new byte[Double.BYTES], "Byte 8: Beats Per Minute");
+		checkDamaged(plain, "pattern length of 0", 16, new byte[Integer.BYTES], "Byte 16: Pattern Length");
+		checkDamaged(plain, "truncated steps", (int) Files.size(plain) - 4, null, "The file ends early");
+		//the first pattern's resolution follows the header, the three paths and its sound index
+		int resolution = 28 + Integer.BYTES;
+		for (String path: new String[] {kick, hat, copy}) {
+			resolution += Integer.BYTES + path.getBytes("UTF-8").length;
+		}
+		checkDamaged(extended, "resolution of 5", resolution, new byte[] {5}, "Byte " + resolution + ": Pattern 0 has 5 steps per beat");
+		checkDamaged(bundle, "bad bundle magic", 0, new byte[] {0}, "Byte 0: Not a DLooper bundle");
+		checkDamaged(bundle, "unknown bundle version", 4, new byte[] {0, 9}, "Byte 4: Unsupported version 9");
+		checkDamaged(bundle, "too many samples", 8, new byte[] {0x7F}, "Byte 8: The number of samples");
+		checkDamaged(bundle, "sample past the end", 20 + 32, new byte[] {0x7F}, "Byte 20: Sample 0 doesn't fit");
+		
+		System.out.println("Format check: " + checks + " checks, " + failures + " failed");
+		return failures;
+	}
+	
+	/**
+	 * Writes a loop in a format, reads it back and checks it's the same loop
+	 * @param name The file name to write, its extension choosing the format
+	 * @param text The loop in the .dlf format
+	 * @param version The format version expected in the file's header
+	 * @return The path of the file written
+	 * @throws Exception When the loop can't be written or read
+	 */
+	private Path checkRoundTrip(String name, String text, int version) throws Exception {
+		Path source = dir.resolve(name + ".dlf");
+		Files.write(source, text.getBytes("UTF-8"));
+		Loop expected = LoopReader.read(source.toString());
+		expected.setRepeat(true);
+		Path file = dir.resolve(name);
+		DLooper.writeToFile(expected, file.toString());
+		check(ByteBuffer.wrap(Files.readAllBytes(file)).getShort(4) == version, name + " is version " + version);
+		compare(expected, DLooper.readFromFile(file.toString()), name);
+		return file;
+	}
+	
+	/**
+	 * Checks a bundle stores audio used by several patterns once, shares it between them when read,
+	 * and can be saved over the file it was opened from
+	 * @param bundle The bundle of EXTENDED_LOOP
+	 * @throws Exception When the bundle can't be read or written
+	 */
+	private void checkBundle(Path bundle) throws Exception {
+		check(ByteBuffer.wrap(Files.readAllBytes(bundle)).getInt(8) == 2, "the bundle holds 2 samples for 3 sounds");
+		Loop loop = DLooper.readFromFile(bundle.toString());
+		check(loop.getPatternAt(0).getSound().getSample() == loop.getPatternAt(1).getSound().getSample()
+				&& loop.getPatternAt(0).getSound().getSample() == loop.getPatternAt(2).getSound().getSample(),
+				"patterns with the same audio share one sample");
+		check(loop.getPatternAt(0).getSound().getSample() != loop.getPatternAt(3).getSound().getSample(),
+				"patterns with different audio have their own samples");
+		DLooper.writeToFile(loop, bundle.toString());
+		compare(loop, DLooper.readFromFile(bundle.toString()), "bundle saved over itself");
+	}
+	
+	/**
+	 * Checks a damaged copy of a file is rejected with the given error
+	 * @param file The undamaged file
+	 * @param what What is wrong with the copy
+	 * @param offset The position to damage, or to cut the copy at when bytes is null
+	 * @param bytes The bytes to write at offset, or null to cut the copy short
+	 * @param error The start of the error expected, or its end when the copy is cut short
+	 * @throws IOException When the copy can't be written
+	 */
+	private void checkDamaged(Path file, String what, int offset, byte[] bytes, String error) throws IOException {
+		String name = file.getFileName().toString();
+		Path damaged = dir.resolve("damaged " + what + name.substring(name.lastIndexOf('.')));
+		byte[] contents = Files.readAllBytes(file);
+		if (bytes != null) {
+			System.arraycopy(bytes, 0, contents, offset, bytes.length);
+		} else {
+			contents = Arrays.copyOf(contents, offset);
+		}
+		Files.write(damaged, contents);
+		String message;
+		try {
+			DLooper.readFromFile(damaged.toString());
+			message = "no error";
+		} catch (Exception e) {
+			message = String.valueOf(e.getMessage());
+		}
+		check(bytes != null ? message.startsWith(error) : message.startsWith("Byte ") && message.endsWith(error),
+				name + " with " + what + " gives \"" + error + "\", got \"" + message + "\"");
+	}
+	
+	/**
+	 * Checks two loops hold the same settings, patterns, steps and step settings
+	 * @param expected The loop written
+	 * @param actual The loop read back
+	 * @param name What was written, for the failure messages
+	 */
+	private void compare(Loop expected, Loop actual, String name) {
+		check(actual.getBpm() == expected.getBpm(), name + " bpm");
+		check(actual.getPatternLength() == expected.getPatternLength(), name + " pattern length");
+		check(actual.getStepsPerBeat() == expected.getStepsPerBeat(), name + " steps per beat");
+		//repeat is a playback setting none of the formats store, so a loop is always read with the default
+		check(!actual.getRepeat(), name + " read with repeat off");
+		if (!check(actual.getNumPatterns() == expected.getNumPatterns(), name + " number of patterns")) {
+			return;
+		}
+		for (int i = 0; i < expected.getNumPatterns(); i++) {
+			Pattern want = expected.getPatternAt(i);
+			Pattern got = actual.getPatternAt(i);
+			String pattern = name + " pattern " + i;
+			check(got.getSound().getFilePath().equals(want.getSound().getFilePath()), pattern + " sound path");
+			check(got.getStepsPerBeat() == want.getStepsPerBeat(), pattern + " steps per beat");
+			check(got.hasOwnLength() == want.hasOwnLength(), pattern + " own length");
+			if (!check(got.getLength() == want.getLength(), pattern + " length")) {
+				continue;
+			}
+			check(got.getPattern().equals(want.getPattern()), pattern + " steps");
+			for (int step = 0; step < want.getLength(); step++) {
+				check(got.getVelocity(step) == want.getVelocity(step) && got.getProbability(step) == want.getProbability(step)
+						&& got.getNudge(step) == want.getNudge(step), pattern + " step " + step + " settings");
+			}
+		}
+	}
+	
+	/**
+	 * Counts a check, printing it if it failed
+	 * @param passed Whether the check passed
+	 * @param what What was checked
+	 * @return passed
+	 */
+	private boolean check(boolean passed, String what) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.err.println("FAILED: " + what);
+		}
+		return passed;
+	}
+	
+	/**
+	 * Writes a short mono sine wave to a WAV file in the directory
+	 * @param name The file name
+	 * @param frequency The frequency of the sine wave in Hz
+	 * @return The path of the file written
+	 * @throws IOException When the file can't be written
+	 */
+	private String writeSound(String name, double frequency) throws IOException {
+		AudioFormat format = new AudioFormat(44100, 16, 1, true, false);
+		int frames = 4410;
+		ByteBuffer pcm = ByteBuffer.allocate(frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < frames; i++) {
+			pcm.putShort((short) (Math.sin(2 * Math.PI * frequency * i / 44100) * (frames - i) / frames * Short.MAX_VALUE));
+		}
+		Path file = dir.resolve(name);
+		try (AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm.array()), format, frames)) {
+			AudioSystem.write(in, AudioFileFormat.Type.WAVE, file.toFile());
+		}
+		return file.toString();
+	}
+	
+	
+	// ------------
+	// Main Methods
+	// ------------
+	
+	
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("dlooper-format-check");
+		int failed;
+		try {
+			failed = new FormatCheck(dir).run();
+		} finally {
+			try (Stream<Path> walk = Files.walk(dir)) {
+				for (Path path: (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+					Files.deleteIfExists(path);
+				}
+			} catch (IOException e) {
+				//mapped bundles can't be deleted on some systems until the process ends
+			}
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}